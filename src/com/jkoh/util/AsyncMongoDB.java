@@ -0,0 +1,212 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Asynchronous facade over MongoDB.
+ * Every operation runs the blocking call on the executor and returns a CompletableFuture,
+ * so independent queries can be issued concurrently and joined.
+ */
+public class AsyncMongoDB implements Closeable {
+	private final MongoDB mongoDB;
+	private final Executor executor;
+	private final boolean ownsExecutor;
+
+	/** Run operations on a bounded pool sized for typical connection pools */
+	public AsyncMongoDB (MongoDB mongoDB) {
+		this(mongoDB, boundedExecutor(Runtime.getRuntime().availableProcessors() * 4, 1000), true);
+	}
+	/** Run operations on the given executor, which is not shut down on close */
+	public AsyncMongoDB (MongoDB mongoDB, Executor executor) {
+		this(mongoDB, executor, false);
+	}
+	private AsyncMongoDB (MongoDB mongoDB, Executor executor, boolean ownsExecutor) {
+		this.mongoDB = mongoDB;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+	/** Run operations on virtual threads, limited to maxConcurrency at a time, or on a bounded pool before JDK 21 */
+	public static AsyncMongoDB withVirtualThreads (MongoDB mongoDB, int maxConcurrency) {
+		return new AsyncMongoDB(mongoDB, virtualThreadExecutor(maxConcurrency), true);
+	}
+	/** Shut down the executor if it was created by this facade */
+	@Override
+	public void close () {
+		if(ownsExecutor && executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+	public MongoDB getMongoDB () {
+		return mongoDB;
+	}
+
+	/** Run any operation on the executor */
+	public <T> CompletableFuture<T> submit (Function<MongoDB, T> operation) {
+		return CompletableFuture.supplyAsync(() -> operation.apply(mongoDB), executor);
+	}
+	/** Run operations concurrently and join their results in order */
+	public <T> CompletableFuture<List<T>> submitAll (List<? extends Function<MongoDB, ? extends T>> operations) {
+		List<CompletableFuture<? extends T>> futures = new ArrayList<>();
+		for(Function<MongoDB, ? extends T> operation : operations) {
+			futures.add(submit(operation));
+		}
+		return all(futures);
+	}
+	/** Join futures into a list of their results in order */
+	public static <T> CompletableFuture<List<T>> all (List<? extends CompletableFuture<? extends T>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+			List<T> results = new ArrayList<>(futures.size());
+			for(CompletableFuture<? extends T> future : futures) {
+				results.add(future.join());
+			}
+			return results;
+		});
+	}
+
+	/** Count documents */
+	public CompletableFuture<Long> count (String collectionName, Query query) {
+		return submit(db -> db.count(collectionName, query));
+	}
+	/** Check if a specific document exists */
+	public CompletableFuture<Boolean> exists (String collectionName, Query query) {
+		return submit(db -> db.exists(collectionName, query));
+	}
+	/** Count position of a document by id in the list of results */
+	public CompletableFuture<Long> countPosition (String collectionName, String id, Query query, String sort) {
+		return submit(db -> db.countPosition(collectionName, id, query, sort));
+	}
+	/** Count documents returned by find */
+	public CompletableFuture<Integer> countFindResults (String collectionName, Query query, FindOptions options) {
+		return submit(db -> db.countFindResults(collectionName, query, options));
+	}
+
+	/** Get a document by id */
+	public <T> CompletableFuture<T> get (Class<T> clazz, String id) {
+		return submit(db -> db.get(clazz, id));
+	}
+	/** Get a document by id */
+	public <T> CompletableFuture<T> get (String collectionName, String id, Class<T> clazz) {
+		return submit(db -> db.get(collectionName, id, clazz));
+	}
+	/** Find a document */
+	public <T> CompletableFuture<T> findOne (Class<T> clazz, Query query) {
+		return submit(db -> db.findOne(clazz, query));
+	}
+	/** Find a document */
+	public <T> CompletableFuture<T> findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options) {
+		return submit(db -> db.findOne(collectionName, query, clazz, options));
+	}
+	/** Find documents */
+	public <T> CompletableFuture<List<T>> find (Class<T> clazz, Query query) {
+		return submit(db -> db.find(clazz, query));
+	}
+	/** Find documents */
+	public <T> CompletableFuture<List<T>> find (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		return submit(db -> db.find(collectionName, query, clazz, options));
+	}
+	/** Find and modify one document */
+	public <T> CompletableFuture<T> findAndModify (String collectionName, Query query, Query modifier, Class<T> clazz, FindAndModifyOptions options) {
+		return submit(db -> db.findAndModify(collectionName, query, modifier, clazz, options));
+	}
+	/** Find and remove one document */
+	public <T> CompletableFuture<T> findAndRemove (String collectionName, Query query, Class<T> clazz, FindAndRemoveOptions options) {
+		return submit(db -> db.findAndRemove(collectionName, query, clazz, options));
+	}
+
+	/** Upsert */
+	public <T> CompletableFuture<Boolean> set (String collectionName, T object) {
+		return submit(db -> db.set(collectionName, object));
+	}
+	/** Bulk upsert */
+	public <T> CompletableFuture<Integer> bulkSet (String collectionName, List<T> objects) {
+		return submit(db -> db.bulkSet(collectionName, objects));
+	}
+	/** Insert */
+	public CompletableFuture<Boolean> insert (String collectionName, Query query) {
+		return submit(db -> db.insert(collectionName, query));
+	}
+	/** Insert */
+	public <T> CompletableFuture<Boolean> insert (String collectionName, T object) {
+		return submit(db -> db.insert(collectionName, object));
+	}
+	/** Update documents */
+	public CompletableFuture<Integer> update (String collectionName, Query query, Query modifier, UpdateOptions options) {
+		return submit(db -> db.update(collectionName, query, modifier, options));
+	}
+	/** Remove documents */
+	public CompletableFuture<Integer> remove (String collectionName, Query query) {
+		return submit(db -> db.remove(collectionName, query));
+	}
+
+	/** Get distinct values for a key */
+	public CompletableFuture<List<Object>> distinct (String collectionName, String key, Query query) {
+		return submit(db -> db.distinct(collectionName, key, query));
+	}
+	/** Aggregate */
+	public <T> CompletableFuture<List<T>> aggregate (String collectionName, List<Query> pipelines, Class<T> clazz) {
+		return submit(db -> db.aggregate(collectionName, pipelines, clazz));
+	}
+
+	/** Create a fixed pool with a bounded queue, callers run the operation themselves when the queue is full */
+	public static ExecutorService boundedExecutor (int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+			MongoDB.daemonThreadFactory("mongodb-async"), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+	/** Create a virtual thread per task executor limited to maxConcurrency running operations, or a bounded pool before JDK 21 */
+	public static ExecutorService virtualThreadExecutor (int maxConcurrency) {
+		ExecutorService virtualThreads;
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			virtualThreads = (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return boundedExecutor(maxConcurrency, maxConcurrency * 16);
+		}
+		return new ConcurrencyLimitedExecutor(virtualThreads, maxConcurrency);
+	}
+	/** Executor that lets at most a number of tasks run at once, waiting tasks block their own (virtual) thread */
+	private static class ConcurrencyLimitedExecutor extends AbstractExecutorService {
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+		private ConcurrencyLimitedExecutor (ExecutorService delegate, int maxConcurrency) {
+			this.delegate = delegate;
+			this.permits = new Semaphore(maxConcurrency);
+		}
+		@Override
+		public void execute (Runnable command) {
+			delegate.execute(() -> {
+				permits.acquireUninterruptibly();
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+		@Override
+		public void shutdown () {
+			delegate.shutdown();
+		}
+		@Override
+		public List<Runnable> shutdownNow () {
+			return delegate.shutdownNow();
+		}
+		@Override
+		public boolean isShutdown () {
+			return delegate.isShutdown();
+		}
+		@Override
+		public boolean isTerminated () {
+			return delegate.isTerminated();
+		}
+		@Override
+		public boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
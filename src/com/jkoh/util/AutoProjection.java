@@ -0,0 +1,97 @@
+package com.jkoh.util;
+
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.jkoh.util.MongoDB.Query;
+import com.mongodb.BasicDBObject;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Projections derived from the fields a class deserializes, cached by class.
+ * Properties are found with the mapper's visibility rules, and fields holding other classes are projected by their own fields.
+ * Classes that accept any property, like maps or classes with an any setter or unwrapped fields, get no projection,
+ * and fields of abstract types are projected whole.
+ */
+class AutoProjection {
+	private static final int MAX_DEPTH = 8;
+	private static final Query NONE = MongoDB.query("{}");
+	private final DeserializationConfig config;
+	private final Map<Class<?>, Query> projections = new ConcurrentHashMap<>();
+
+	AutoProjection (ObjectMapper objectMapper) {
+		this.config = objectMapper.getDeserializationConfig();
+	}
+
+	/** Get the projection of a class, null if it cannot be projected */
+	Query get (Class<?> clazz) {
+		Query projection = projections.get(clazz);
+		if(projection == null) {
+			projection = derive(clazz);
+			projections.put(clazz, projection);
+		}
+		return projection != NONE ? projection : null;
+	}
+	private Query derive (Class<?> clazz) {
+		if(projectedClass(config.constructType(clazz)) == null) {
+			return NONE;
+		}
+		BasicDBObject projection = new BasicDBObject();
+		if(!addFields(config.constructType(clazz), "", projection, new HashSet<>(), 0) || projection.isEmpty()) {
+			return NONE;
+		}
+		return MongoDB.query(projection.toString());
+	}
+	/** Add the fields of a class to the projection, false if the class cannot be projected */
+	private boolean addFields (JavaType type, String prefix, BasicDBObject projection, Set<Class<?>> visiting, int depth) {
+		BeanDescription description = config.introspect(type);
+		if(description.findAnySetterAccessor() != null) {
+			return false;
+		}
+		AnnotationIntrospector introspector = config.getAnnotationIntrospector();
+		visiting.add(type.getRawClass());
+		Map<String, Object> fields = new LinkedHashMap<>();
+		for(BeanPropertyDefinition property : description.findProperties()) {
+			if(!property.couldDeserialize()) {
+				continue;
+			}
+			if(property.getPrimaryMember() != null && introspector.findUnwrappingNameTransformer(property.getPrimaryMember()) != null) {
+				return false;
+			}
+			String name = prefix + property.getName();
+			Class<?> nested = projectedClass(property.getPrimaryType());
+			BasicDBObject nestedProjection = new BasicDBObject();
+			if(nested != null && depth < MAX_DEPTH && !visiting.contains(nested)
+				&& addFields(config.constructType(nested), name + ".", nestedProjection, visiting, depth + 1) && !nestedProjection.isEmpty()) {
+				fields.putAll(nestedProjection);
+			} else {
+				fields.put(name, 1);
+			}
+		}
+		visiting.remove(type.getRawClass());
+		projection.putAll(fields);
+		return true;
+	}
+	/** Class whose fields are projected for a value of this type, the element class for arrays and collections, null for values projected whole */
+	private static Class<?> projectedClass (JavaType type) {
+		if(type.isArrayType() || type.isCollectionLikeType()) {
+			type = type.getContentType();
+		}
+		if(type == null || type.isContainerType() || type.isPrimitive() || type.isEnumType()) {
+			return null;
+		}
+		Class<?> clazz = type.getRawClass();
+		String name = clazz.getName();
+		if(clazz == LazyDocument.class || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || name.startsWith("java.") || name.startsWith("org.bson.")
+			|| name.startsWith("com.mongodb.") || name.startsWith("com.fasterxml.")) {
+			return null;
+		}
+		return clazz;
+	}
+}
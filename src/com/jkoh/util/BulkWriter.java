@@ -0,0 +1,293 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.jkoh.util.MongoDB.UpdateOptions;
+import com.mongodb.*;
+
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind bulk writer for a single collection.
+ * Operations from any thread are buffered and executed as unordered bulk writes once the buffer reaches the
+ * batch size or byte limit, or when the flush interval elapses. Batches run in parallel, and callers block
+ * when too many operations are pending. Each operation's future completes with false if it failed.
+ */
+public class BulkWriter implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(BulkWriter.class);
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Options options;
+	private final Semaphore pending;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+	private final Object lock = new Object();
+	private List<Operation> buffer = new ArrayList<>();
+	private long bufferBytes = 0;
+	private volatile boolean closed = false;
+
+	BulkWriter (MongoDB mongoDB, String collectionName, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.options = options;
+		this.pending = new Semaphore(options.maxPending);
+		this.executor = Executors.newFixedThreadPool(options.parallelism, MongoDB.daemonThreadFactory("bulkwriter-" + collectionName));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(MongoDB.daemonThreadFactory("bulkwriter-flush-" + collectionName));
+		this.scheduler.scheduleWithFixedDelay(this::flush, options.flushIntervalMillis, options.flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Upsert an object by its _id, or insert it if it has none */
+	public <T> CompletableFuture<Boolean> upsert (T object) {
+		org.jongo.bson.BsonDocument document = mongoDB.marshall(object);
+		DBObject dbObject = document.toDBObject();
+		OperationType type = dbObject.get("_id") != null ? OperationType.UPSERT : OperationType.INSERT;
+		return add(new Operation(type, null, dbObject, false, false, document.getSize()));
+	}
+	/** Insert an object */
+	public <T> CompletableFuture<Boolean> insert (T object) {
+		org.jongo.bson.BsonDocument document = mongoDB.marshall(object);
+		return add(new Operation(OperationType.INSERT, null, document.toDBObject(), false, false, document.getSize()));
+	}
+	/** Insert a document */
+	public CompletableFuture<Boolean> insert (Query document) {
+		DBObject dbObject = mongoDB.toDBObject(document);
+		return add(new Operation(OperationType.INSERT, null, dbObject, false, false, sizeOf(dbObject)));
+	}
+	/** Update documents */
+	public CompletableFuture<Boolean> update (Query query, Query modifier) {
+		return update(query, modifier, null);
+	}
+	/** Update documents */
+	public CompletableFuture<Boolean> update (Query query, Query modifier, UpdateOptions updateOptions) {
+		DBObject queryObject = mongoDB.toDBObject(query);
+		DBObject modifierObject = mongoDB.toDBObject(modifier);
+		boolean upsert = updateOptions != null && updateOptions.isUpsert();
+		boolean multi = updateOptions != null && updateOptions.isMulti();
+		return add(new Operation(OperationType.UPDATE, queryObject, modifierObject, upsert, multi, sizeOf(queryObject) + sizeOf(modifierObject)));
+	}
+	/** Remove documents */
+	public CompletableFuture<Boolean> remove (Query query) {
+		DBObject queryObject = mongoDB.toDBObject(query);
+		return add(new Operation(OperationType.REMOVE, queryObject, null, false, true, sizeOf(queryObject)));
+	}
+
+	/** Execute all buffered operations, the returned future completes when they are written */
+	public CompletableFuture<Void> flush () {
+		List<Operation> batch;
+		synchronized (lock) {
+			batch = takeBuffer();
+		}
+		return submit(batch);
+	}
+	/** Flush and wait for all pending operations, then stop the writer threads */
+	@Override
+	public void close () {
+		synchronized (lock) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		}
+		mongoDB.removeCloseOnStop(this);
+		scheduler.shutdown();
+		flush();
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.warn("BulkWriter for " + collectionName + " did not finish in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	/** Number of operations buffered or in flight */
+	public int getPendingCount () {
+		return options.maxPending - pending.availablePermits();
+	}
+
+	private CompletableFuture<Boolean> add (Operation operation) {
+		if(closed) {
+			throw new IllegalStateException("BulkWriter for " + collectionName + " is closed");
+		}
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			operation.future.complete(false);
+			return operation.future;
+		}
+		List<Operation> batch = null;
+		synchronized (lock) {
+			// checked again under the lock, so close takes every buffered operation in its final flush
+			if(closed) {
+				pending.release();
+				throw new IllegalStateException("BulkWriter for " + collectionName + " is closed");
+			}
+			buffer.add(operation);
+			bufferBytes += operation.size;
+			if(buffer.size() >= options.maxBatchSize || bufferBytes >= options.maxBatchBytes) {
+				batch = takeBuffer();
+			}
+		}
+		if(batch != null) {
+			submit(batch);
+		}
+		return operation.future;
+	}
+	private List<Operation> takeBuffer () {
+		List<Operation> batch = buffer;
+		buffer = new ArrayList<>();
+		bufferBytes = 0;
+		return batch;
+	}
+	private CompletableFuture<Void> submit (List<Operation> batch) {
+		if(batch.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					execute(batch);
+				} finally {
+					done.complete(null);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// executor already shut down, write on the calling thread
+			execute(batch);
+			done.complete(null);
+		}
+		return done;
+	}
+	private void execute (List<Operation> batch) {
+		boolean[] failed = new boolean[batch.size()];
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.BULK_WRITE);
+		try {
+			BulkWriteOperation bulkWriteOperation = mongoDB.getDBCollection(collectionName).initializeUnorderedBulkOperation();
+			for(Operation operation : batch) {
+				operation.addTo(bulkWriteOperation);
+			}
+			bulkWriteOperation.execute(mongoDB.getWriteConcern(collectionName));
+			timer.documents(batch.size());
+		} catch (BulkWriteException e) {
+			timer.error(e);
+			timer.documents(batch.size() - e.getWriteErrors().size());
+			for(BulkWriteError error : e.getWriteErrors()) {
+				failed[error.getIndex()] = true;
+			}
+			if(e.getWriteConcernError() != null) {
+				logger.warn("BulkWriter write concern error on " + collectionName + ": " + e.getWriteConcernError().getMessage());
+			}
+		} catch (RuntimeException e) {
+			timer.error(e);
+			logger.warn("BulkWriter batch failed", e);
+			Arrays.fill(failed, true);
+		} finally {
+			timer.stop();
+			mongoDB.invalidateNearCache(collectionName);
+			for(int i = 0; i < batch.size(); i++) {
+				batch.get(i).future.complete(!failed[i]);
+			}
+			pending.release(batch.size());
+		}
+	}
+	private static int sizeOf (DBObject dbObject) {
+		return new BasicBSONEncoder().encode(dbObject).length;
+	}
+
+	private enum OperationType {
+		INSERT,
+		UPSERT,
+		UPDATE,
+		REMOVE
+	}
+	private static class Operation {
+		private final OperationType type;
+		private final DBObject query;
+		private final DBObject document;
+		private final boolean upsert;
+		private final boolean multi;
+		private final int size;
+		private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+		private Operation (OperationType type, DBObject query, DBObject document, boolean upsert, boolean multi, int size) {
+			this.type = type;
+			this.query = query;
+			this.document = document;
+			this.upsert = upsert;
+			this.multi = multi;
+			this.size = size;
+		}
+		private void addTo (BulkWriteOperation bulkWriteOperation) {
+			switch(type) {
+				case INSERT:
+					bulkWriteOperation.insert(document);
+					break;
+				case UPSERT:
+					bulkWriteOperation.find(new BasicDBObject("_id", document.get("_id"))).upsert().replaceOne(document);
+					break;
+				case UPDATE:
+					BulkWriteRequestBuilder find = bulkWriteOperation.find(query);
+					if(upsert) {
+						if(multi) {
+							find.upsert().update(document);
+						} else {
+							find.upsert().updateOne(document);
+						}
+					} else if(multi) {
+						find.update(document);
+					} else {
+						find.updateOne(document);
+					}
+					break;
+				case REMOVE:
+					bulkWriteOperation.find(query).remove();
+					break;
+			}
+		}
+	}
+
+	/** Options for BulkWriter */
+	public static class Options {
+		private int maxBatchSize = 1000;
+		private long maxBatchBytes = 8 * 1024 * 1024;
+		private long flushIntervalMillis = 100;
+		private int parallelism = 4;
+		private int maxPending = 100000;
+		private Options() {}
+		/** Flush once this many operations are buffered */
+		public Options maxBatchSize(int maxBatchSize) {
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+		/** Flush once the buffered operations reach this many BSON bytes */
+		public Options maxBatchBytes(long maxBatchBytes) {
+			this.maxBatchBytes = maxBatchBytes;
+			return this;
+		}
+		/** Flush whatever is buffered at this interval */
+		public Options flushIntervalMillis(long flushIntervalMillis) {
+			this.flushIntervalMillis = flushIntervalMillis;
+			return this;
+		}
+		/** Number of batches written in parallel */
+		public Options parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+		/** Block callers once this many operations are buffered or in flight */
+		public Options maxPending(int maxPending) {
+			this.maxPending = maxPending;
+			return this;
+		}
+	}
+	/** Create options for BulkWriter */
+	public static Options bulkWriterOptions () {
+		return new Options();
+	}
+}
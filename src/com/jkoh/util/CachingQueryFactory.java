@@ -0,0 +1,245 @@
+package com.jkoh.util;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import org.bson.BSONObject;
+import org.jongo.bson.Bson;
+import org.jongo.bson.BsonDocument;
+import org.jongo.marshall.Marshaller;
+import org.jongo.marshall.MarshallingException;
+import org.jongo.query.Query;
+import org.jongo.query.QueryFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Jongo query factory that parses each query string once into a skeleton with parameter slots,
+ * and binds parameters straight into a copy of the skeleton on later executions.
+ * Queries the skeleton cannot represent, like parameters used as keys or inside $oid/$regex/$date, are handed to the delegate.
+ * Templates are kept in a bounded concurrent map, a full map drops a quarter of its templates in no particular order,
+ * so query strings built by concatenation cannot grow it and lookups never lock.
+ * Query strings are parsed with the driver's deprecated JSON parser on purpose, it is the one jongo parses them with.
+ */
+class CachingQueryFactory implements QueryFactory {
+	private static final int MAX_CACHED_TEMPLATES = 10000;
+	private static final String TOKEN = "#";
+	private static final String MARSHALL_OPERATOR = "$marshall";
+	/** Keys that JSONCallback converts using their value at parse time */
+	private static final Set<String> PARSE_TIME_KEYS = new HashSet<>(Arrays.asList(
+		"$oid", "$date", "$regex", "$ts", "$timestamp", "$code", "$ref", "$minKey", "$maxKey",
+		"$uuid", "$binary", "$undefined", "$numberLong", "$numberDecimal"));
+	private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+	private final QueryFactory delegate;
+	private final Marshaller marshaller;
+
+	CachingQueryFactory (QueryFactory delegate, Marshaller marshaller) {
+		this.delegate = delegate;
+		this.marshaller = marshaller;
+	}
+
+	@Override
+	public Query createQuery (String query, Object... parameters) {
+		if(query == null) {
+			return delegate.createQuery(query, parameters);
+		}
+		if(parameters == null) {
+			parameters = new Object[] {null};
+		}
+		Template template = compile(query);
+		if(!template.cacheable || template.slots != parameters.length) {
+			return delegate.createQuery(query, parameters);
+		}
+		final Object bound = bind(template.skeleton, parameters);
+		if(!(bound instanceof DBObject)) {
+			return delegate.createQuery(query, parameters);
+		}
+		return () -> (DBObject) bound;
+	}
+
+	/** Parse a query string into a cached template, parsing only on the first call */
+	static Template compile (String query) {
+		Template template = templates.get(query);
+		if(template == null) {
+			template = parse(query);
+			if(templates.size() >= MAX_CACHED_TEMPLATES) {
+				evict();
+			}
+			templates.put(query, template);
+		}
+		return template;
+	}
+	private static void evict () {
+		Iterator<String> keys = templates.keySet().iterator();
+		for(int i = 0; i < MAX_CACHED_TEMPLATES / 4 && keys.hasNext(); i++) {
+			keys.next();
+			keys.remove();
+		}
+	}
+	@SuppressWarnings("deprecation")
+	private static Template parse (String query) {
+		StringBuilder marked = new StringBuilder();
+		int slots = 0;
+		int position = 0;
+		int index;
+		while((index = query.indexOf(TOKEN, position)) != -1) {
+			if(!isValueToken(query, index)) {
+				// parameter is inlined into the query text, the parsed shape depends on its value
+				return Template.UNCACHEABLE;
+			}
+			marked.append(query, position, index).append("{\"").append(MARSHALL_OPERATOR).append("\":").append(slots++).append("}");
+			position = index + TOKEN.length();
+		}
+		marked.append(query, position, query.length());
+		try {
+			SlotCallback callback = new SlotCallback();
+			return new Template(com.mongodb.util.JSON.parse(marked.toString(), callback), slots);
+		} catch (RuntimeException e) {
+			return Template.UNCACHEABLE;
+		}
+	}
+	/** Same rule as jongo's BsonQueryFactory for whether a token is a value or part of the query text */
+	private static boolean isValueToken (String query, int tokenIndex) {
+		for(int i = tokenIndex; i >= 0; i--) {
+			char c = query.charAt(i);
+			if(c == ':') {
+				return true;
+			} else if(c == '{' || c == '.') {
+				return false;
+			} else if(c == ',') {
+				return !isPropertyName(query, i - 1);
+			}
+		}
+		return true;
+	}
+	private static boolean isPropertyName (String query, int index) {
+		for(int i = index; i >= 0; i--) {
+			char c = query.charAt(i);
+			if(c == '[') {
+				return false;
+			} else if(c == '{') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Copy the skeleton, replacing slots with marshalled parameters */
+	private Object bind (Object node, Object[] parameters) {
+		if(node instanceof Slot) {
+			return marshallParameter(parameters[((Slot) node).index]);
+		}
+		if(node instanceof BasicDBList) {
+			BasicDBList copy = new BasicDBList();
+			for(Object element : (BasicDBList) node) {
+				copy.add(bind(element, parameters));
+			}
+			return copy;
+		}
+		if(node instanceof BSONObject) {
+			BSONObject object = (BSONObject) node;
+			BasicDBObject copy = new BasicDBObject();
+			for(String key : object.keySet()) {
+				copy.put(key, bind(object.get(key), parameters));
+			}
+			return copy;
+		}
+		return node;
+	}
+	/** Same marshalling as jongo's BsonQueryFactory */
+	private Object marshallParameter (Object parameter) {
+		try {
+			if(parameter == null || Bson.isPrimitive(parameter)) {
+				return parameter;
+			}
+			if(parameter instanceof Collection) {
+				BasicDBList list = new BasicDBList();
+				for(Object element : (Collection<?>) parameter) {
+					list.add(marshallParameter(element));
+				}
+				return list;
+			}
+			if(parameter instanceof Object[]) {
+				BasicDBList list = new BasicDBList();
+				for(Object element : (Object[]) parameter) {
+					list.add(marshallParameter(element));
+				}
+				return list;
+			}
+			if(parameter instanceof Enum) {
+				return marshallParameterAsPrimitive(parameter);
+			}
+			BsonDocument document = marshaller.marshall(parameter);
+			byte[] bytes = document.toByteArray();
+			if(bytes.length <= 4 || bytes.length != document.getSize()) {
+				return marshallParameterAsPrimitive(parameter);
+			}
+			return document.toDBObject();
+		} catch (Exception e) {
+			throw new MarshallingException(String.format("Unable to marshall parameter: %s", parameter), e);
+		}
+	}
+	private Object marshallParameterAsPrimitive (Object parameter) {
+		return marshaller.marshall(Collections.singletonMap("wrapped", parameter)).toDBObject().get("wrapped");
+	}
+
+	/** Parsed query with parameter slots */
+	static class Template {
+		private static final Template UNCACHEABLE = new Template(null, -1);
+		private final Object skeleton;
+		private final int slots;
+		private final boolean cacheable;
+		private Template (Object skeleton, int slots) {
+			this.skeleton = skeleton;
+			this.slots = slots;
+			this.cacheable = skeleton != null;
+		}
+		boolean isCacheable () {
+			return cacheable;
+		}
+		int getSlots () {
+			return slots;
+		}
+	}
+	/** Placeholder for a parameter in a skeleton */
+	private static class Slot {
+		private final int index;
+		private Slot (int index) {
+			this.index = index;
+		}
+	}
+	/** Replaces {$marshall:n} objects with slots while parsing */
+	@SuppressWarnings("deprecation")
+	private static class SlotCallback extends com.mongodb.util.JSONCallback {
+		@Override
+		public Object objectDone () {
+			BSONObject current = cur();
+			boolean hasSlot = false;
+			boolean hasParseTimeKey = false;
+			for(String key : current.keySet()) {
+				hasSlot |= current.get(key) instanceof Slot;
+				hasParseTimeKey |= PARSE_TIME_KEYS.contains(key);
+			}
+			if(hasSlot && hasParseTimeKey) {
+				throw new IllegalArgumentException("Parameter is converted at parse time");
+			}
+			String name = curName();
+			Object object = super.objectDone();
+			if(object instanceof BSONObject && !(object instanceof List)) {
+				Object index = ((BSONObject) object).get(MARSHALL_OPERATOR);
+				if(index != null) {
+					Slot slot = new Slot(((Number) index).intValue());
+					if(!isStackEmpty()) {
+						_put(name, slot);
+					} else {
+						setRoot(slot);
+					}
+					return slot;
+				}
+			}
+			return object;
+		}
+	}
+}
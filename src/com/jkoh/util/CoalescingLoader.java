@@ -0,0 +1,171 @@
+package com.jkoh.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loader by id for a single collection that coalesces gets into batched getMany queries.
+ * Ids requested from any thread within the batch window are loaded together, and an id requested again
+ * while it is pending shares the pending future, so callers of the same id in a batch get the same object.
+ * A window of 0 batches the ids requested before the dispatch thread runs.
+ * Batches are loaded on an executor, the scheduler and the callers of load only hand them off.
+ */
+public class CoalescingLoader<T> implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(CoalescingLoader.class);
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Class<T> clazz;
+	private final Options options;
+	private final ScheduledExecutorService scheduler;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;
+	private final Object lock = new Object();
+	private Map<String, CompletableFuture<T>> pending = new LinkedHashMap<>();
+	private volatile boolean closed = false;
+
+	CoalescingLoader (MongoDB mongoDB, String collectionName, Class<T> clazz, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.clazz = clazz;
+		this.options = options;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(MongoDB.daemonThreadFactory("loader-" + collectionName));
+		this.ownExecutor = options.executor == null ? Executors.newFixedThreadPool(options.parallelism, MongoDB.daemonThreadFactory("loader-batch-" + collectionName)) : null;
+		this.executor = options.executor != null ? options.executor : ownExecutor;
+	}
+
+	/** Load a document by id, the future completes with null if it is missing or the query failed */
+	public CompletableFuture<T> load (String id) {
+		if(closed) {
+			throw new IllegalStateException("CoalescingLoader for " + collectionName + " is closed");
+		}
+		CompletableFuture<T> future;
+		Map<String, CompletableFuture<T>> batch = null;
+		boolean first;
+		synchronized (lock) {
+			future = pending.get(id);
+			if(future != null) {
+				return future;
+			}
+			future = new CompletableFuture<>();
+			first = pending.isEmpty();
+			pending.put(id, future);
+			if(pending.size() >= options.maxBatchSize) {
+				batch = takePending();
+			}
+		}
+		if(batch != null) {
+			dispatch(batch);
+		} else if(first) {
+			scheduleDispatch();
+		}
+		return future;
+	}
+	/** Load documents by ids, results are in the order of the ids with null for missing ids */
+	public CompletableFuture<List<T>> loadMany (Collection<String> ids) {
+		List<CompletableFuture<T>> futures = new ArrayList<>(ids.size());
+		for(String id : ids) {
+			futures.add(load(id));
+		}
+		return AsyncMongoDB.all(futures);
+	}
+	/** Load a document by id and wait for it */
+	public T get (String id) {
+		return load(id).join();
+	}
+	/** Load the pending ids now instead of waiting for the batch window */
+	public void flush () {
+		Map<String, CompletableFuture<T>> batch;
+		synchronized (lock) {
+			batch = takePending();
+		}
+		dispatch(batch);
+	}
+	/** Load the pending ids, then stop the dispatch threads */
+	@Override
+	public void close () {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		mongoDB.removeCloseOnStop(this);
+		scheduler.shutdown();
+		flush();
+		if(ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+
+	private void scheduleDispatch () {
+		try {
+			scheduler.schedule(this::flush, options.windowMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// loader closed while scheduling, load on the calling thread
+			flush();
+		}
+	}
+	private Map<String, CompletableFuture<T>> takePending () {
+		Map<String, CompletableFuture<T>> batch = pending;
+		pending = new LinkedHashMap<>();
+		return batch;
+	}
+	private void dispatch (Map<String, CompletableFuture<T>> batch) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		try {
+			executor.execute(() -> loadBatch(batch));
+		} catch (RejectedExecutionException e) {
+			// executor already shut down, load on the calling thread
+			loadBatch(batch);
+		}
+	}
+	private void loadBatch (Map<String, CompletableFuture<T>> batch) {
+		List<String> ids = new ArrayList<>(batch.keySet());
+		List<T> results = null;
+		try {
+			results = mongoDB.getMany(collectionName, ids, clazz);
+		} catch (RuntimeException e) {
+			logger.warn("CoalescingLoader batch failed", e);
+		}
+		for(int i = 0; i < ids.size(); i++) {
+			batch.get(ids.get(i)).complete(results != null ? results.get(i) : null);
+		}
+	}
+
+	/** Options for CoalescingLoader */
+	public static class Options {
+		private long windowMillis = 2;
+		private int maxBatchSize = 1000;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private Executor executor = null;
+		private Options() {}
+		/** Wait this long after the first pending id before loading the batch, 0 to load once the dispatch thread runs */
+		public Options windowMillis(long windowMillis) {
+			this.windowMillis = windowMillis;
+			return this;
+		}
+		/** Load the batch as soon as this many ids are pending */
+		public Options maxBatchSize(int maxBatchSize) {
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+		/** Number of batches loaded at the same time by the executor of the loader */
+		public Options parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+		/** Load batches on this executor instead of one of the loader, it is not shut down on close */
+		public Options executor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+	}
+	/** Create options for CoalescingLoader */
+	public static Options loaderOptions () {
+		return new Options();
+	}
+}
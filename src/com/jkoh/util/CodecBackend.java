@@ -0,0 +1,134 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.jongo.ObjectIdUpdater;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backend on the driver's MongoCollection API, objects are encoded straight to and decoded straight from BSON by JacksonCodec.
+ * Objects are mapped with the same JsonUtil date handling and field visibility as the mapper of MongoDB.
+ */
+class CodecBackend implements MongoBackend {
+	private final MongoDB mongoDB;
+	private final MongoDatabase database;
+	private final CodecRegistry registry;
+	private final ObjectIdUpdater objectIdUpdater;
+
+	CodecBackend (MongoDB mongoDB, MongoDatabase database, CodecRegistry registry, ObjectIdUpdater objectIdUpdater) {
+		this.mongoDB = mongoDB;
+		this.objectIdUpdater = objectIdUpdater;
+		this.registry = registry;
+		this.database = database.withCodecRegistry(registry).withWriteConcern(WriteConcern.ACKNOWLEDGED);
+	}
+
+	@Override
+	public <T> T findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options) {
+		FindIterable<T> find = collection(collectionName, clazz, options != null ? options.getReadPreference() : null).find(bson(query)).limit(1);
+		if(options != null) {
+			if(options.getProjection() != null) {
+				find.projection(bson(options.getProjection()));
+			}
+			if(options.getOrderBy() != null) {
+				find.sort(bson(MongoDB.query(options.getOrderBy())));
+			}
+		}
+		return find.first();
+	}
+	private <T> MongoCollection<T> collection (String collectionName, Class<T> clazz, ReadPreference readPreference) {
+		MongoCollection<T> collection = database.getCollection(collectionName, clazz);
+		return readPreference != null ? collection.withReadPreference(readPreference) : collection;
+	}
+	@Override
+	public <T> Cursor<T> find (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		FindIterable<T> find = collection(collectionName, clazz, options != null ? options.getReadPreference() : null).find(bson(query));
+		if(options != null) {
+			if(options.getProjection() != null) {
+				find.projection(bson(options.getProjection()));
+			}
+			if(options.getLimit() > 0) {
+				find.limit(options.getLimit());
+			}
+			if(options.getSkip() > 0) {
+				find.skip(options.getSkip());
+			}
+			if(options.getSort() != null) {
+				find.sort(bson(MongoDB.query(options.getSort())));
+			}
+			if(options.getHint() != null) {
+				find.hint(bson(MongoDB.query(options.getHint())));
+			}
+			if(options.getBatchSize() > 0) {
+				find.batchSize(options.getBatchSize());
+			}
+		}
+		com.mongodb.client.MongoCursor<T> cursor = find.iterator();
+		return MongoBackend.cursor(cursor, cursor::close);
+	}
+	@Override
+	public <T> int save (String collectionName, T object, WriteConcern writeConcern) {
+		if(objectIdUpdater.mustGenerateObjectId(object)) {
+			insert(collectionName, object, writeConcern);
+			return 1;
+		}
+		RawBsonDocument document = encode(object);
+		UpdateResult result = database.getCollection(collectionName, RawBsonDocument.class).withWriteConcern(writeConcern)
+			.replaceOne(idFilter(document), document, new ReplaceOptions().upsert(true));
+		if(!result.wasAcknowledged()) {
+			return 1;
+		}
+		return (int) result.getMatchedCount() + (result.getUpsertedId() != null ? 1 : 0);
+	}
+	@Override
+	public <T> void insert (String collectionName, T object, WriteConcern writeConcern) {
+		@SuppressWarnings("unchecked")
+		Class<T> clazz = (Class<T>) object.getClass();
+		database.getCollection(collectionName, clazz).withWriteConcern(writeConcern).insertOne(object);
+	}
+	@Override
+	public <T> int bulkSet (String collectionName, List<T> objects, WriteConcern writeConcern) {
+		if(objects.isEmpty()) {
+			return 0;
+		}
+		List<WriteModel<RawBsonDocument>> requests = new ArrayList<>(objects.size());
+		for (T object : objects) {
+			RawBsonDocument document = encode(object);
+			requests.add(new ReplaceOneModel<>(idFilter(document), document, new ReplaceOptions().upsert(true)));
+		}
+		com.mongodb.bulk.BulkWriteResult result = database.getCollection(collectionName, RawBsonDocument.class).withWriteConcern(writeConcern)
+			.bulkWrite(requests, new BulkWriteOptions().ordered(false));
+		return result.wasAcknowledged() ? result.getUpserts().size() : 0;
+	}
+
+	private Bson bson (Query query) {
+		return mongoDB.toBson(query);
+	}
+	/** Encode an object once, the filter on its _id is read from the encoded document */
+	@SuppressWarnings("unchecked")
+	private <T> RawBsonDocument encode (T object) {
+		return new RawBsonDocument(object, (Codec<T>) registry.get(object.getClass()));
+	}
+	private static BsonDocument idFilter (RawBsonDocument document) {
+		BsonValue id = document.get("_id");
+		return new BsonDocument("_id", id != null ? id : BsonNull.VALUE);
+	}
+}
@@ -0,0 +1,448 @@
+package com.jkoh.util;
+
+import com.mongodb.*;
+
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export of a collection to a directory of files, one per _id range, and restore of such a directory into a collection.
+ * Ranges are split as by ParallelScan and each is streamed by its own worker to a gzipped NDJSON file, in extended JSON so
+ * types survive, or a BSON file of the raw documents as mongodump writes them. A manifest lists the ranges with the number
+ * of documents and the CRC32 of the uncompressed content of each file, restore checks it and inserts the documents in large
+ * unordered bulks. Both resume an interrupted run: export skips the ranges the manifest marks as done and writes the others
+ * again, restore skips the ranges recorded in its state file and inserts the others again, ignoring duplicate keys.
+ * Ranges are those of ParallelScan, with a last range for the _ids of other types than the bounds. Once every range is written
+ * the number of documents exported is compared with the count of the collection, a mismatch is only logged, as writes during
+ * the export change the count.
+ */
+public class CollectionArchive {
+	private final static Logger logger = LoggerFactory.getLogger(CollectionArchive.class);
+	private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+	private static final int DUPLICATE_KEY = 11000;
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Path directory;
+	private final Options options;
+	private final Path manifestFile;
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final AtomicInteger completedPartitions = new AtomicInteger();
+	private volatile int partitionCount = 0;
+
+	CollectionArchive (MongoDB mongoDB, String collectionName, Path directory, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.directory = directory;
+		this.options = options;
+		this.manifestFile = directory.resolve(collectionName + ".manifest.json");
+	}
+
+	/** Export the collection to the directory, and return true if every range was written */
+	public boolean export () {
+		BasicDBObject manifest = readManifest();
+		List<DBObject> partitions;
+		if(manifest != null && !isComplete(manifest) && options.format.name().equals(manifest.get("format"))) {
+			logger.info("Resuming export of " + collectionName + " to " + directory);
+			partitions = new ArrayList<>();
+			for(DBObject partition : partitions(manifest)) {
+				if(!Boolean.TRUE.equals(partition.get("done"))) {
+					partitions.add(partition);
+				}
+			}
+		} else {
+			partitions = new ArrayList<>();
+			for(ParallelScan.Range range : scan().split()) {
+				partitions.add(new BasicDBObject("index", range.getIndex())
+					.append("lower", range.getLower())
+					.append("upper", range.getUpper())
+					.append("excludedType", range.getExcludedType())
+					.append("file", collectionName + "." + range.getIndex() + options.format.extension)
+					.append("done", false));
+			}
+			manifest = new BasicDBObject("collection", collectionName)
+				.append("format", options.format.name())
+				.append("createdAt", new Date())
+				.append("partitions", partitions);
+			try {
+				Files.createDirectories(directory);
+				writeManifest(manifest);
+			} catch (IOException e) {
+				logger.warn("Export of " + collectionName + " failed to write " + manifestFile, e);
+				return false;
+			}
+		}
+		final BasicDBObject finalManifest = manifest;
+		if(!run("export-" + collectionName, partitions, partition -> exportPartition(finalManifest, partition))) {
+			return false;
+		}
+		checkCount(manifest);
+		return true;
+	}
+	/** Restore the directory into the collection it was exported from, and return true if every range was inserted */
+	public boolean restore () {
+		return restore(collectionName);
+	}
+	/** Restore the directory into a collection, and return true if every range was inserted */
+	public boolean restore (String targetCollection) {
+		BasicDBObject manifest = readManifest();
+		if(manifest == null || !isComplete(manifest)) {
+			logger.warn("Restore of " + collectionName + " needs a complete export in " + directory);
+			return false;
+		}
+		Path stateFile = directory.resolve(collectionName + ".restore-" + targetCollection + ".json");
+		Set<Object> restored = ConcurrentHashMap.newKeySet();
+		if(Files.exists(stateFile)) {
+			try {
+				restored.addAll((List<?>) BasicDBObject.parse(new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8)).get("done"));
+				logger.info("Resuming restore of " + collectionName + " into " + targetCollection + ", " + restored.size() + " ranges done");
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Restore of " + collectionName + " could not read " + stateFile + ", starting over", e);
+			}
+		}
+		List<DBObject> partitions = new ArrayList<>();
+		for(DBObject partition : partitions(manifest)) {
+			if(!restored.contains(partition.get("index"))) {
+				partitions.add(partition);
+			}
+		}
+		Format format = Format.valueOf((String) manifest.get("format"));
+		boolean completed = run("restore-" + targetCollection, partitions, partition -> {
+			if(!restorePartition(format, targetCollection, partition)) {
+				return false;
+			}
+			restored.add(partition.get("index"));
+			synchronized (this) {
+				write(stateFile, new BasicDBObject("done", new ArrayList<>(restored)));
+			}
+			return true;
+		});
+		if(completed) {
+			try {
+				Files.deleteIfExists(stateFile);
+			} catch (IOException e) {
+				logger.warn("Restore of " + collectionName + " could not remove " + stateFile, e);
+			}
+		}
+		return completed;
+	}
+	/** Number of documents exported or restored by the current run */
+	public long getDocumentCount () {
+		return documents.sum();
+	}
+	/** Number of uncompressed bytes exported or restored by the current run */
+	public long getByteCount () {
+		return bytes.sum();
+	}
+	/** Number of ranges of the current run */
+	public int getPartitionCount () {
+		return partitionCount;
+	}
+	/** Number of ranges of the current run that completed */
+	public int getCompletedPartitions () {
+		return completedPartitions.get();
+	}
+
+	private interface PartitionTask {
+		boolean run(DBObject partition) throws IOException;
+	}
+	/** Run a task per range on a worker pool, and return true if all of them succeeded */
+	private boolean run (String name, List<DBObject> partitions, PartitionTask task) {
+		documents.reset();
+		bytes.reset();
+		completedPartitions.set(0);
+		partitionCount = partitions.size();
+		if(partitions.isEmpty()) {
+			return true;
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(options.parallelism, partitions.size()), MongoDB.daemonThreadFactory(name));
+		List<Future<Boolean>> results = new ArrayList<>();
+		for(DBObject partition : partitions) {
+			results.add(workers.submit(() -> {
+				try {
+					if(!task.run(partition)) {
+						return false;
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.warn(name + " range " + partition.get("index") + " failed", e);
+					return false;
+				}
+				logger.info(name + " range " + partition.get("index") + " done, " + completedPartitions.incrementAndGet() + "/" + partitionCount
+					+ " ranges, " + documents.sum() + " documents");
+				return true;
+			}));
+		}
+		workers.shutdown();
+		boolean completed = true;
+		for(Future<Boolean> result : results) {
+			try {
+				completed &= result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				workers.shutdownNow();
+				return false;
+			} catch (ExecutionException e) {
+				completed = false;
+			}
+		}
+		return completed;
+	}
+	private boolean exportPartition (BasicDBObject manifest, DBObject partition) throws IOException {
+		ParallelScan.Range range = new ParallelScan.Range((Integer) partition.get("index"), partition.get("lower"), partition.get("upper"),
+			(String) partition.get("excludedType"));
+		Path file = directory.resolve((String) partition.get("file"));
+		CRC32 crc = new CRC32();
+		long count = 0;
+		long length = 0;
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.CURSOR);
+		try (DBCursor cursor = scan().open(range);
+			OutputStream out = new GZIPOutputStream(Channels.newOutputStream(FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), 1 << 16)) {
+			if(options.format == Format.BSON) {
+				cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+			}
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			while(cursor.hasNext()) {
+				DBObject document = cursor.next();
+				buffer.reset();
+				if(options.format == Format.BSON) {
+					((LazyDBObject) document).pipe(buffer);
+				} else {
+					buffer.write(((BasicDBObject) document).toJson(JSON_SETTINGS).getBytes(StandardCharsets.UTF_8));
+					buffer.write('\n');
+				}
+				crc.update(buffer.toByteArray(), 0, buffer.size());
+				buffer.writeTo(out);
+				count++;
+				length += buffer.size();
+				documents.increment();
+				bytes.add(buffer.size());
+				timer.addDocument();
+			}
+		} catch (MongoException | IOException e) {
+			timer.error(e);
+			throw e;
+		} finally {
+			timer.stop();
+		}
+		synchronized (this) {
+			partition.put("documents", count);
+			partition.put("bytes", length);
+			partition.put("crc32", crc.getValue());
+			partition.put("done", true);
+			writeManifest(manifest);
+		}
+		return true;
+	}
+	/** Compare the documents exported with the count of the collection, and log a mismatch */
+	private void checkCount (DBObject manifest) {
+		long exported = 0;
+		for(DBObject partition : partitions(manifest)) {
+			exported += ((Number) partition.get("documents")).longValue();
+		}
+		try {
+			long count = mongoDB.getDBCollection(collectionName).count();
+			if(exported != count) {
+				logger.warn("Export of " + collectionName + " holds " + exported + " documents but the collection now has " + count
+					+ ", as documents were written during the export or ranges missed some");
+			}
+		} catch (MongoException e) {
+			logger.warn("Export of " + collectionName + " failed to count the collection", e);
+		}
+	}
+	private boolean restorePartition (Format format, String targetCollection, DBObject partition) throws IOException {
+		Path file = directory.resolve((String) partition.get("file"));
+		CRC32 crc = new CRC32();
+		long count = 0;
+		List<DBObject> batch = new ArrayList<>(options.batchSize);
+		try (InputStream in = new BufferedInputStream(new GZIPInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)), 1 << 16))) {
+			DefaultDBDecoder decoder = new DefaultDBDecoder();
+			byte[] document;
+			while((document = format == Format.BSON ? readBson(in) : readLine(in)) != null) {
+				crc.update(document, 0, document.length);
+				batch.add(format == Format.BSON ? decoder.decode(document, (DBCollection) null)
+					: BasicDBObject.parse(new String(document, StandardCharsets.UTF_8)));
+				count++;
+				bytes.add(document.length);
+				if(batch.size() >= options.batchSize) {
+					insert(targetCollection, batch);
+				}
+			}
+		}
+		insert(targetCollection, batch);
+		if(count != ((Number) partition.get("documents")).longValue() || crc.getValue() != ((Number) partition.get("crc32")).longValue()) {
+			logger.warn("Restore of " + file + " does not match the manifest: " + count + " documents with CRC32 " + crc.getValue());
+			return false;
+		}
+		return true;
+	}
+	/** Insert a batch as an unordered bulk and clear it, documents already in the collection are skipped */
+	private void insert (String targetCollection, List<DBObject> batch) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(targetCollection, MongoMetrics.Operation.BULK_WRITE);
+		try {
+			BulkWriteOperation bulk = mongoDB.getDBCollection(targetCollection).initializeUnorderedBulkOperation();
+			for(DBObject document : batch) {
+				bulk.insert(document);
+			}
+			BulkWriteResult result = bulk.execute(mongoDB.getWriteConcern(targetCollection));
+			timer.documents(batch.size());
+			documents.add(result.isAcknowledged() ? result.getInsertedCount() : batch.size());
+		} catch (BulkWriteException e) {
+			for(BulkWriteError error : e.getWriteErrors()) {
+				if(error.getCode() != DUPLICATE_KEY) {
+					timer.error(e);
+					throw e;
+				}
+			}
+			timer.documents(batch.size());
+			documents.add(e.getWriteResult().getInsertedCount());
+		} catch (MongoException e) {
+			timer.error(e);
+			throw e;
+		} finally {
+			timer.stop();
+			batch.clear();
+		}
+	}
+	/** Read the next raw BSON document, null at the end of the stream */
+	private static byte[] readBson (InputStream in) throws IOException {
+		byte[] header = new byte[4];
+		int read = in.read(header);
+		if(read <= 0) {
+			return null;
+		}
+		readFully(in, header, read, 4 - read);
+		int size = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16 | (header[3] & 0xff) << 24;
+		byte[] document = Arrays.copyOf(header, size);
+		readFully(in, document, 4, size - 4);
+		return document;
+	}
+	private static void readFully (InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			int read = in.read(bytes, offset, length);
+			if(read < 0) {
+				throw new EOFException("Truncated BSON document");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+	/** Read the next line with its newline, null at the end of the stream */
+	private static byte[] readLine (InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) >= 0) {
+			line.write(b);
+			if(b == '\n') {
+				break;
+			}
+		}
+		return line.size() > 0 ? line.toByteArray() : null;
+	}
+
+	private ParallelScan<DBObject> scan () {
+		return new ParallelScan<>(mongoDB, collectionName, null, DBObject.class, ParallelScan.parallelScanOptions()
+			.partitions(options.partitions)
+			.batchSize(options.cursorBatchSize));
+	}
+	@SuppressWarnings("unchecked")
+	private static List<DBObject> partitions (DBObject manifest) {
+		return (List<DBObject>) manifest.get("partitions");
+	}
+	private static boolean isComplete (DBObject manifest) {
+		for(DBObject partition : partitions(manifest)) {
+			if(!Boolean.TRUE.equals(partition.get("done"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	private BasicDBObject readManifest () {
+		if(!Files.exists(manifestFile)) {
+			return null;
+		}
+		try {
+			return BasicDBObject.parse(new String(Files.readAllBytes(manifestFile), StandardCharsets.UTF_8));
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not read " + manifestFile, e);
+			return null;
+		}
+	}
+	private void writeManifest (BasicDBObject manifest) throws IOException {
+		write(manifestFile, manifest);
+	}
+	/** Write a file as extended JSON through a temporary file, so an interrupted write leaves the previous one */
+	private static void write (Path file, BasicDBObject content) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tmp, content.toJson(JSON_SETTINGS).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** File format of an archive */
+	public enum Format {
+		/** One document per line in extended JSON */
+		NDJSON(".ndjson.gz"),
+		/** Raw BSON documents back to back, as written by mongodump */
+		BSON(".bson.gz");
+		private final String extension;
+		Format (String extension) {
+			this.extension = extension;
+		}
+	}
+	/** Options for CollectionArchive */
+	public static class Options {
+		private Format format = Format.NDJSON;
+		private int partitions = Runtime.getRuntime().availableProcessors() * 4;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private int cursorBatchSize = 1000;
+		private int batchSize = 10000;
+		private Options() {}
+		/** File format of exports, restores use the format of the manifest */
+		public Options format(Format format) {
+			this.format = format;
+			return this;
+		}
+		/** Number of ranges to split the collection into on export */
+		public Options partitions(int partitions) {
+			this.partitions = partitions;
+			return this;
+		}
+		/** Number of ranges exported or restored at the same time */
+		public Options parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+		/** Cursor batch size of each range on export */
+		public Options cursorBatchSize(int cursorBatchSize) {
+			this.cursorBatchSize = cursorBatchSize;
+			return this;
+		}
+		/** Number of documents per bulk insert on restore */
+		public Options batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+	}
+	/** Create options for CollectionArchive */
+	public static Options collectionArchiveOptions () {
+		return new Options();
+	}
+}
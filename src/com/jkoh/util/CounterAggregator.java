@@ -0,0 +1,268 @@
+package com.jkoh.util;
+
+import com.mongodb.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces $inc updates in memory and writes them as one upsert per document.
+ * Increments from any thread are added to LongAdders per collection, _id and field, so hot documents never
+ * contend on a lock, and are flushed as unordered bulk writes at the flush interval or once too many documents are tracked.
+ * Increments not yet flushed are lost if the process dies, at most one flush interval of them.
+ */
+public class CounterAggregator implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(CounterAggregator.class);
+	private final MongoDB mongoDB;
+	private final Options options;
+	private final ConcurrentHashMap<DocumentKey, Counters> counters = new ConcurrentHashMap<>();
+	private final AtomicInteger documents = new AtomicInteger();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final ScheduledExecutorService scheduler;
+	private final Object flushLock = new Object();
+	private volatile boolean closed = false;
+
+	CounterAggregator (MongoDB mongoDB, Options options) {
+		this.mongoDB = mongoDB;
+		this.options = options;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(MongoDB.daemonThreadFactory("counter-flush"));
+		this.scheduler.scheduleWithFixedDelay(this::flush, options.flushIntervalMillis, options.flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Add 1 to a field of a document */
+	public <T> void increment (Class<T> clazz, Object id, String field) {
+		increment(clazz.getSimpleName(), id, field, 1);
+	}
+	/** Add to a field of a document */
+	public <T> void increment (Class<T> clazz, Object id, String field, long delta) {
+		increment(clazz.getSimpleName(), id, field, delta);
+	}
+	/** Add 1 to a field of a document */
+	public void increment (String collectionName, Object id, String field) {
+		increment(collectionName, id, field, 1);
+	}
+	/** Add to a field of a document, the document is upserted when the increment is flushed */
+	public void increment (String collectionName, Object id, String field, long delta) {
+		if(closed) {
+			throw new IllegalStateException("CounterAggregator is closed");
+		}
+		add(new DocumentKey(collectionName, id), field, delta);
+	}
+
+	/** Write all pending increments now and return the number of documents written */
+	public int flush () {
+		synchronized (flushLock) {
+			flushRequested.set(false);
+			Map<String, Map<Object, Map<String, Long>>> updates = new HashMap<>();
+			for(Map.Entry<DocumentKey, Counters> entry : counters.entrySet()) {
+				Counters documentCounters = entry.getValue();
+				Map<String, Long> deltas = documentCounters.drain();
+				if(deltas.isEmpty()) {
+					// idle since the last flush, stop tracking it once no increment is in flight
+					documentCounters.retired = true;
+					counters.remove(entry.getKey(), documentCounters);
+					documents.decrementAndGet();
+					while(documentCounters.active.sum() != 0) {
+						Thread.yield();
+					}
+					deltas = documentCounters.drain();
+				}
+				if(!deltas.isEmpty()) {
+					updates.computeIfAbsent(entry.getKey().collectionName, k -> new LinkedHashMap<>()).put(entry.getKey().id, deltas);
+				}
+			}
+			int written = 0;
+			for(Map.Entry<String, Map<Object, Map<String, Long>>> collectionUpdates : updates.entrySet()) {
+				List<Map.Entry<Object, Map<String, Long>>> batch = new ArrayList<>();
+				for(Map.Entry<Object, Map<String, Long>> update : collectionUpdates.getValue().entrySet()) {
+					batch.add(update);
+					if(batch.size() >= options.maxBatchSize) {
+						written += write(collectionUpdates.getKey(), batch);
+						batch = new ArrayList<>();
+					}
+				}
+				if(!batch.isEmpty()) {
+					written += write(collectionUpdates.getKey(), batch);
+				}
+			}
+			return written;
+		}
+	}
+	/** Stop the flush schedule and write all pending increments */
+	@Override
+	public void close () {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		mongoDB.removeCloseOnStop(this);
+		scheduler.shutdown();
+		flush();
+	}
+	/** Number of documents with increments being tracked */
+	public int getDocumentCount () {
+		return documents.get();
+	}
+
+	private void add (DocumentKey key, String field, long delta) {
+		while(true) {
+			Counters documentCounters = counters.get(key);
+			if(documentCounters == null) {
+				Counters created = new Counters();
+				documentCounters = counters.putIfAbsent(key, created);
+				if(documentCounters == null) {
+					documentCounters = created;
+					if(documents.incrementAndGet() >= options.maxDocuments && flushRequested.compareAndSet(false, true)) {
+						requestFlush();
+					}
+				}
+			}
+			// active is raised before retired is checked, and the flush sets retired before waiting for active to drop,
+			// so an increment either lands in counters the flush drains or retries on a fresh entry
+			documentCounters.active.increment();
+			try {
+				if(!documentCounters.retired) {
+					documentCounters.field(field).add(delta);
+					return;
+				}
+			} finally {
+				documentCounters.active.decrement();
+			}
+		}
+	}
+	private void requestFlush () {
+		try {
+			scheduler.execute(this::flush);
+		} catch (RejectedExecutionException e) {
+			// closing, the final flush writes it
+			flushRequested.set(false);
+		}
+	}
+	/** Upsert a batch of $inc updates, failed increments are added back to be retried by the next flush */
+	private int write (String collectionName, List<Map.Entry<Object, Map<String, Long>>> batch) {
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.BULK_WRITE);
+		boolean[] failed = new boolean[batch.size()];
+		try {
+			BulkWriteOperation bulkWriteOperation = mongoDB.getDBCollection(collectionName).initializeUnorderedBulkOperation();
+			for(Map.Entry<Object, Map<String, Long>> update : batch) {
+				bulkWriteOperation.find(new BasicDBObject("_id", update.getKey())).upsert()
+					.updateOne(new BasicDBObject("$inc", new BasicDBObject(update.getValue())));
+			}
+			bulkWriteOperation.execute();
+			timer.documents(batch.size());
+		} catch (BulkWriteException e) {
+			timer.error(e);
+			timer.documents(batch.size() - e.getWriteErrors().size());
+			for(BulkWriteError error : e.getWriteErrors()) {
+				failed[error.getIndex()] = true;
+			}
+			logger.warn("CounterAggregator failed to write " + e.getWriteErrors().size() + " documents to " + collectionName);
+		} catch (RuntimeException e) {
+			timer.error(e);
+			logger.warn("CounterAggregator flush failed", e);
+			Arrays.fill(failed, true);
+		} finally {
+			timer.stop();
+			mongoDB.invalidateNearCache(collectionName);
+		}
+		int written = 0;
+		for(int i = 0; i < batch.size(); i++) {
+			if(!failed[i]) {
+				written++;
+				continue;
+			}
+			DocumentKey key = new DocumentKey(collectionName, batch.get(i).getKey());
+			for(Map.Entry<String, Long> delta : batch.get(i).getValue().entrySet()) {
+				add(key, delta.getKey(), delta.getValue());
+			}
+		}
+		return written;
+	}
+
+	/** Counters of one document */
+	private static class Counters {
+		private final ConcurrentHashMap<String, FieldCounter> fields = new ConcurrentHashMap<>();
+		private final LongAdder active = new LongAdder();
+		private volatile boolean retired = false;
+		private LongAdder field (String field) {
+			FieldCounter counter = fields.get(field);
+			if(counter == null) {
+				counter = fields.computeIfAbsent(field, k -> new FieldCounter());
+			}
+			return counter.total;
+		}
+		/** Take the increments added since the last drain, only called by the flush */
+		private Map<String, Long> drain () {
+			Map<String, Long> deltas = new LinkedHashMap<>();
+			for(Map.Entry<String, FieldCounter> entry : fields.entrySet()) {
+				FieldCounter counter = entry.getValue();
+				// the total is never reset, so increments missed by a sum are picked up by the next drain
+				long total = counter.total.sum();
+				long delta = total - counter.flushed;
+				counter.flushed = total;
+				if(delta != 0) {
+					deltas.put(entry.getKey(), delta);
+				}
+			}
+			return deltas;
+		}
+	}
+	private static class FieldCounter {
+		private final LongAdder total = new LongAdder();
+		private long flushed = 0;
+	}
+	private static class DocumentKey {
+		private final String collectionName;
+		private final Object id;
+		private DocumentKey (String collectionName, Object id) {
+			this.collectionName = collectionName;
+			this.id = id;
+		}
+		@Override
+		public boolean equals (Object obj) {
+			if(!(obj instanceof DocumentKey)) {
+				return false;
+			}
+			DocumentKey other = (DocumentKey) obj;
+			return collectionName.equals(other.collectionName) && id.equals(other.id);
+		}
+		@Override
+		public int hashCode () {
+			return collectionName.hashCode() * 31 + id.hashCode();
+		}
+	}
+
+	/** Options for CounterAggregator */
+	public static class Options {
+		private long flushIntervalMillis = 1000;
+		private int maxDocuments = 100000;
+		private int maxBatchSize = 1000;
+		private Options() {}
+		/** Write pending increments at this interval, which bounds how many increments a crash can lose */
+		public Options flushIntervalMillis(long flushIntervalMillis) {
+			this.flushIntervalMillis = flushIntervalMillis;
+			return this;
+		}
+		/** Flush early once this many documents are tracked */
+		public Options maxDocuments(int maxDocuments) {
+			this.maxDocuments = maxDocuments;
+			return this;
+		}
+		/** Maximum number of upserts per bulk write */
+		public Options maxBatchSize(int maxBatchSize) {
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+	}
+	/** Create options for CounterAggregator */
+	public static Options counterAggregatorOptions () {
+		return new Options();
+	}
+}
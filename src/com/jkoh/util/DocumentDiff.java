@@ -0,0 +1,127 @@
+package com.jkoh.util;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * Minimal update modifier between two versions of a document.
+ * Changed fields are $set at the deepest path that changed and removed fields are $unset. Arrays of the same length are diffed
+ * by index, arrays that only grew at the end get a $push of the new elements, and other arrays are $set whole, as are arrays
+ * where most elements changed.
+ */
+public class DocumentDiff {
+	private DocumentDiff() {}
+
+	/** Modifier turning before into after, empty if they are equal, _id is never changed */
+	public static DBObject diff (DBObject before, DBObject after) {
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+		BasicDBObject push = new BasicDBObject();
+		diffDocuments("", before, after, set, unset, push);
+		BasicDBObject modifier = new BasicDBObject();
+		if(!set.isEmpty()) {
+			modifier.put("$set", set);
+		}
+		if(!unset.isEmpty()) {
+			modifier.put("$unset", unset);
+		}
+		if(!push.isEmpty()) {
+			modifier.put("$push", push);
+		}
+		return modifier;
+	}
+
+	private static void diffDocuments (String prefix, DBObject before, DBObject after, DBObject set, DBObject unset, DBObject push) {
+		for(String key : before.keySet()) {
+			if(prefix.isEmpty() && key.equals("_id")) {
+				continue;
+			}
+			if(!after.containsField(key)) {
+				unset.put(prefix + key, "");
+			}
+		}
+		for(String key : after.keySet()) {
+			if(prefix.isEmpty() && key.equals("_id")) {
+				continue;
+			}
+			diffValues(prefix + key, before.containsField(key), before.get(key), after.get(key), set, unset, push);
+		}
+	}
+	private static void diffValues (String path, boolean existed, Object before, Object after, DBObject set, DBObject unset, DBObject push) {
+		if(!existed) {
+			set.put(path, after);
+		} else if(isDocument(before) && isDocument(after)) {
+			diffDocuments(path + ".", (DBObject) before, (DBObject) after, set, unset, push);
+		} else if(before instanceof List && after instanceof List) {
+			diffArrays(path, (List<?>) before, (List<?>) after, set, unset, push);
+		} else if(!valueEquals(before, after)) {
+			set.put(path, after);
+		}
+	}
+	private static void diffArrays (String path, List<?> before, List<?> after, DBObject set, DBObject unset, DBObject push) {
+		if(after.size() > before.size() && !before.isEmpty() && valueEquals(before, after.subList(0, before.size()))) {
+			push.put(path, new BasicDBObject("$each", new ArrayList<>(after.subList(before.size(), after.size()))));
+			return;
+		}
+		if(after.size() != before.size()) {
+			set.put(path, after);
+			return;
+		}
+		BasicDBObject elementSet = new BasicDBObject();
+		BasicDBObject elementUnset = new BasicDBObject();
+		BasicDBObject elementPush = new BasicDBObject();
+		int changed = 0;
+		for(int i = 0; i < after.size(); i++) {
+			if(!valueEquals(before.get(i), after.get(i))) {
+				changed++;
+				diffValues(path + "." + i, true, before.get(i), after.get(i), elementSet, elementUnset, elementPush);
+			}
+		}
+		if(changed == 0) {
+			return;
+		}
+		if(changed * 2 > after.size() || !elementUnset.isEmpty() || !elementPush.isEmpty()) {
+			// $unset would leave null in the array and nested pushes cost more paths than the array, set it whole
+			set.put(path, after);
+			return;
+		}
+		set.putAll((org.bson.BSONObject) elementSet);
+	}
+	private static boolean isDocument (Object value) {
+		return value instanceof DBObject && !(value instanceof List);
+	}
+	private static boolean valueEquals (Object before, Object after) {
+		if(before instanceof byte[] && after instanceof byte[]) {
+			return Arrays.equals((byte[]) before, (byte[]) after);
+		}
+		if(before instanceof List && after instanceof List) {
+			List<?> x = (List<?>) before;
+			List<?> y = (List<?>) after;
+			if(x.size() != y.size()) {
+				return false;
+			}
+			for(int i = 0; i < x.size(); i++) {
+				if(!valueEquals(x.get(i), y.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if(isDocument(before) && isDocument(after)) {
+			DBObject x = (DBObject) before;
+			DBObject y = (DBObject) after;
+			if(!x.keySet().equals(y.keySet())) {
+				return false;
+			}
+			for(String key : x.keySet()) {
+				if(!valueEquals(x.get(key), y.get(key))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return Objects.equals(before, after);
+	}
+}
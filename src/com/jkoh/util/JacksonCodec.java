@@ -0,0 +1,616 @@
+package com.jkoh.util;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.core.base.GeneratorBase;
+import com.fasterxml.jackson.core.base.ParserMinimalBase;
+import com.fasterxml.jackson.core.json.JsonReadContext;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.mongodb.MongoClient;
+
+import org.bson.*;
+import org.bson.codecs.*;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.*;
+import org.jongo.ObjectIdUpdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Driver codec that maps objects with a Jackson ObjectMapper straight to and from the BSON reader and writer of the driver,
+ * without building an intermediate DBObject or byte array.
+ * Dates, ObjectIds and other BSON types are passed between Jackson and BSON as embedded objects, so they keep their native BSON type.
+ */
+class JacksonCodec<T> implements CollectibleCodec<T> {
+	private final Class<T> clazz;
+	private final ObjectMapper objectMapper;
+	private final ObjectReader reader;
+	private final ObjectIdUpdater objectIdUpdater;
+	private final CodecRegistry registry;
+	private final BsonTypeCodecMap bsonTypeCodecMap;
+
+	private JacksonCodec (Class<T> clazz, ObjectMapper objectMapper, ObjectIdUpdater objectIdUpdater, CodecRegistry registry) {
+		this.clazz = clazz;
+		this.objectMapper = objectMapper;
+		this.reader = objectMapper.readerFor(clazz);
+		this.objectIdUpdater = objectIdUpdater;
+		this.registry = registry;
+		this.bsonTypeCodecMap = new BsonTypeCodecMap(new BsonTypeClassMap(), registry);
+	}
+
+	@Override
+	public Class<T> getEncoderClass () {
+		return clazz;
+	}
+	@Override
+	public void encode (BsonWriter writer, T value, EncoderContext encoderContext) {
+		try (BsonWriterGenerator generator = new BsonWriterGenerator(writer, objectMapper, registry, encoderContext)) {
+			objectMapper.writeValue(generator, value);
+		} catch (IOException e) {
+			throw new BsonSerializationException("Unable to encode " + clazz.getName() + ": " + e.getMessage());
+		}
+	}
+	@Override
+	public T decode (BsonReader bsonReader, DecoderContext decoderContext) {
+		BsonReaderParser parser = new BsonReaderParser(bsonReader, objectMapper, bsonTypeCodecMap, decoderContext);
+		try {
+			T result = reader.readValue(parser);
+			parser.skipRemaining();
+			return result;
+		} catch (IOException e) {
+			throw new BsonSerializationException("Unable to decode " + clazz.getName() + ": " + e.getMessage());
+		}
+	}
+	@Override
+	public T generateIdIfAbsentFromDocument (T document) {
+		if(objectIdUpdater.mustGenerateObjectId(document)) {
+			objectIdUpdater.setObjectId(document, new ObjectId());
+		}
+		return document;
+	}
+	@Override
+	public boolean documentHasId (T document) {
+		return objectIdUpdater.getId(document) != null;
+	}
+	@Override
+	public BsonValue getDocumentId (T document) {
+		BsonValue id = new RawBsonDocument(document, this).get("_id");
+		if(id == null) {
+			throw new IllegalStateException("The document does not contain an _id");
+		}
+		return id;
+	}
+
+	/** Module writing dates and BSON types as embedded objects and reading native dates, register it after the other modules */
+	static Module nativeTypesModule () {
+		SimpleModule module = new SimpleModule("JacksonCodec");
+		NativeSerializer serializer = new NativeSerializer();
+		for(Class<?> nativeType : new Class<?>[] {Date.class, ObjectId.class, Binary.class, BSONTimestamp.class, MinKey.class, MaxKey.class, Decimal128.class}) {
+			module.addSerializer(nativeType, serializer);
+		}
+		module.addDeserializer(Date.class, new NativeDateDeserializer());
+		return module;
+	}
+	/** Writes BSON types as embedded objects so they keep their type */
+	private static class NativeSerializer extends JsonSerializer<Object> {
+		@Override
+		public void serialize (Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+			generator.writeEmbeddedObject(value);
+		}
+	}
+	/** Reads native dates, and {$date:...} documents like JsonUtil.DateDeserializer */
+	private static class NativeDateDeserializer extends JsonDeserializer<Date> {
+		private final JsonUtil.DateDeserializer delegate = new JsonUtil.DateDeserializer();
+		@Override
+		public Date deserialize (JsonParser parser, DeserializationContext context) throws IOException {
+			if(parser.getCurrentToken() == JsonToken.VALUE_EMBEDDED_OBJECT && parser.getEmbeddedObject() instanceof Date) {
+				return (Date) parser.getEmbeddedObject();
+			}
+			return delegate.deserialize(parser, context);
+		}
+	}
+
+	/** Registry with the codec of LazyDocument, Jackson codecs for objects and the default codecs for BSON types, the mapper must include nativeTypesModule */
+	static CodecRegistry registry (ObjectMapper objectMapper, ObjectIdUpdater objectIdUpdater) {
+		return CodecRegistries.fromRegistries(
+			CodecRegistries.fromProviders(new LazyDocument.Provider(), new Provider(objectMapper, objectIdUpdater)),
+			MongoClient.getDefaultCodecRegistry());
+	}
+	/** Provides Jackson codecs for all classes except BSON documents and values, which keep the default codecs */
+	static class Provider implements CodecProvider {
+		private final ObjectMapper objectMapper;
+		private final ObjectIdUpdater objectIdUpdater;
+		private final CodecProvider valueCodecProvider = new ValueCodecProvider();
+		Provider (ObjectMapper objectMapper, ObjectIdUpdater objectIdUpdater) {
+			this.objectMapper = objectMapper;
+			this.objectIdUpdater = objectIdUpdater;
+		}
+		@Override
+		public <C> Codec<C> get (Class<C> clazz, CodecRegistry registry) {
+			if(Bson.class.isAssignableFrom(clazz) || BSONObject.class.isAssignableFrom(clazz) || clazz.getName().startsWith("org.bson.")
+				|| valueCodecProvider.get(clazz, registry) != null) {
+				return null;
+			}
+			return new JacksonCodec<>(clazz, objectMapper, objectIdUpdater, registry);
+		}
+	}
+
+	/** Jackson generator writing to a BsonWriter */
+	private static class BsonWriterGenerator extends GeneratorBase {
+		private final BsonWriter writer;
+		private final CodecRegistry registry;
+		private final EncoderContext encoderContext;
+
+		private BsonWriterGenerator (BsonWriter writer, ObjectCodec codec, CodecRegistry registry, EncoderContext encoderContext) {
+			super(0, codec);
+			this.writer = writer;
+			this.registry = registry;
+			this.encoderContext = encoderContext;
+		}
+
+		@Override
+		public void writeStartObject () throws IOException {
+			_verifyValueWrite("start an object");
+			_writeContext = _writeContext.createChildObjectContext();
+			writer.writeStartDocument();
+		}
+		@Override
+		public void writeEndObject () throws IOException {
+			_writeContext = _writeContext.clearAndGetParent();
+			writer.writeEndDocument();
+		}
+		@Override
+		public void writeStartArray () throws IOException {
+			_verifyValueWrite("start an array");
+			_writeContext = _writeContext.createChildArrayContext();
+			writer.writeStartArray();
+		}
+		@Override
+		public void writeEndArray () throws IOException {
+			_writeContext = _writeContext.clearAndGetParent();
+			writer.writeEndArray();
+		}
+		@Override
+		public void writeFieldName (String name) throws IOException {
+			_writeContext.writeFieldName(name);
+			writer.writeName(name);
+		}
+		@Override
+		public void writeString (String text) throws IOException {
+			_verifyValueWrite("write a string");
+			if(text == null) {
+				writeNull();
+			} else {
+				writer.writeString(text);
+			}
+		}
+		@Override
+		public void writeString (char[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length));
+		}
+		@Override
+		public void writeRawUTF8String (byte[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length, "UTF-8"));
+		}
+		@Override
+		public void writeUTF8String (byte[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length, "UTF-8"));
+		}
+		@Override
+		public void writeRaw (String text) throws IOException {
+			_reportUnsupportedOperation();
+		}
+		@Override
+		public void writeRaw (String text, int offset, int length) throws IOException {
+			_reportUnsupportedOperation();
+		}
+		@Override
+		public void writeRaw (char[] text, int offset, int length) throws IOException {
+			_reportUnsupportedOperation();
+		}
+		@Override
+		public void writeRaw (char c) throws IOException {
+			_reportUnsupportedOperation();
+		}
+		@Override
+		public void writeBinary (Base64Variant variant, byte[] data, int offset, int length) throws IOException {
+			_verifyValueWrite("write binary");
+			byte[] bytes = data;
+			if(offset != 0 || length != data.length) {
+				bytes = new byte[length];
+				System.arraycopy(data, offset, bytes, 0, length);
+			}
+			writer.writeBinaryData(new BsonBinary(bytes));
+		}
+		@Override
+		public int writeBinary (Base64Variant variant, InputStream data, int dataLength) throws IOException {
+			_reportUnsupportedOperation();
+			return 0;
+		}
+		@Override
+		public void writeNumber (int value) throws IOException {
+			_verifyValueWrite("write a number");
+			writer.writeInt32(value);
+		}
+		@Override
+		public void writeNumber (long value) throws IOException {
+			_verifyValueWrite("write a number");
+			writer.writeInt64(value);
+		}
+		@Override
+		public void writeNumber (BigInteger value) throws IOException {
+			if(value == null) {
+				writeNull();
+			} else if(value.bitLength() < 64) {
+				writeNumber(value.longValue());
+			} else {
+				writeString(value.toString());
+			}
+		}
+		@Override
+		public void writeNumber (double value) throws IOException {
+			_verifyValueWrite("write a number");
+			writer.writeDouble(value);
+		}
+		@Override
+		public void writeNumber (float value) throws IOException {
+			writeNumber((double) value);
+		}
+		@Override
+		public void writeNumber (BigDecimal value) throws IOException {
+			if(value == null) {
+				writeNull();
+				return;
+			}
+			Decimal128 decimal;
+			try {
+				decimal = new Decimal128(value);
+			} catch (NumberFormatException e) {
+				// a double would silently round it
+				throw new JsonGenerationException("BigDecimal " + value + " does not fit a Decimal128 without rounding", this);
+			}
+			_verifyValueWrite("write a number");
+			writer.writeDecimal128(decimal);
+		}
+		@Override
+		public void writeNumber (String encodedValue) throws IOException {
+			writeString(encodedValue);
+		}
+		@Override
+		public void writeBoolean (boolean state) throws IOException {
+			_verifyValueWrite("write a boolean");
+			writer.writeBoolean(state);
+		}
+		@Override
+		public void writeNull () throws IOException {
+			_verifyValueWrite("write null");
+			writer.writeNull();
+		}
+		@Override
+		public void writeEmbeddedObject (Object object) throws IOException {
+			if(object == null) {
+				writeNull();
+				return;
+			}
+			if(object instanceof byte[]) {
+				writeBinary((byte[]) object);
+				return;
+			}
+			_verifyValueWrite("write an embedded object");
+			if(object instanceof Date) {
+				writer.writeDateTime(((Date) object).getTime());
+			} else {
+				encodeWithRegistry(object);
+			}
+		}
+		@SuppressWarnings("unchecked")
+		private <V> void encodeWithRegistry (V object) {
+			Codec<V> codec = (Codec<V>) registry.get(object.getClass());
+			encoderContext.encodeWithChildContext(codec, writer, object);
+		}
+		@Override
+		public void flush () {}
+		@Override
+		protected void _releaseBuffers () {}
+		@Override
+		protected void _verifyValueWrite (String typeMsg) throws IOException {
+			_writeContext.writeValue();
+		}
+	}
+
+	/**
+	 * Jackson parser reading one document from a BsonReader.
+	 * Dates, ObjectIds, binaries and other BSON types without a JSON counterpart are returned as embedded objects.
+	 */
+	private static class BsonReaderParser extends ParserMinimalBase {
+		private final BsonReader reader;
+		private final BsonTypeCodecMap bsonTypeCodecMap;
+		private final DecoderContext decoderContext;
+		private ObjectCodec codec;
+		private JsonReadContext context = JsonReadContext.createRootContext(null);
+		private int depth = 0;
+		private boolean started = false;
+		private boolean closed = false;
+		private String text;
+		private Number number;
+		private Object embedded;
+
+		private BsonReaderParser (BsonReader reader, ObjectCodec codec, BsonTypeCodecMap bsonTypeCodecMap, DecoderContext decoderContext) {
+			this.reader = reader;
+			this.codec = codec;
+			this.bsonTypeCodecMap = bsonTypeCodecMap;
+			this.decoderContext = decoderContext;
+		}
+
+		@Override
+		public JsonToken nextToken () throws IOException {
+			if(closed) {
+				return _currToken = null;
+			}
+			if(!started) {
+				started = true;
+				reader.readStartDocument();
+				context = context.createChildObjectContext(0, 0);
+				depth++;
+				return _currToken = JsonToken.START_OBJECT;
+			}
+			if(_currToken == JsonToken.FIELD_NAME) {
+				return _currToken = readValue(reader.getCurrentBsonType());
+			}
+			if(depth == 0) {
+				return _currToken = null;
+			}
+			BsonType type = reader.readBsonType();
+			if(type == BsonType.END_OF_DOCUMENT) {
+				depth--;
+				boolean array = context.inArray();
+				context = context.clearAndGetParent();
+				if(array) {
+					reader.readEndArray();
+					return _currToken = JsonToken.END_ARRAY;
+				}
+				reader.readEndDocument();
+				return _currToken = JsonToken.END_OBJECT;
+			}
+			if(context.inArray()) {
+				context.expectComma();
+				return _currToken = readValue(type);
+			}
+			context.setCurrentName(reader.readName());
+			return _currToken = JsonToken.FIELD_NAME;
+		}
+		private JsonToken readValue (BsonType type) {
+			text = null;
+			number = null;
+			embedded = null;
+			switch(type) {
+				case DOCUMENT:
+					reader.readStartDocument();
+					context = context.createChildObjectContext(0, 0);
+					depth++;
+					return JsonToken.START_OBJECT;
+				case ARRAY:
+					reader.readStartArray();
+					context = context.createChildArrayContext(0, 0);
+					depth++;
+					return JsonToken.START_ARRAY;
+				case STRING:
+					text = reader.readString();
+					return JsonToken.VALUE_STRING;
+				case SYMBOL:
+					text = reader.readSymbol();
+					return JsonToken.VALUE_STRING;
+				case INT32:
+					number = reader.readInt32();
+					return JsonToken.VALUE_NUMBER_INT;
+				case INT64:
+					number = reader.readInt64();
+					return JsonToken.VALUE_NUMBER_INT;
+				case DOUBLE:
+					number = reader.readDouble();
+					return JsonToken.VALUE_NUMBER_FLOAT;
+				case DECIMAL128:
+					number = reader.readDecimal128().bigDecimalValue();
+					return JsonToken.VALUE_NUMBER_FLOAT;
+				case BOOLEAN:
+					return reader.readBoolean() ? JsonToken.VALUE_TRUE : JsonToken.VALUE_FALSE;
+				case NULL:
+					reader.readNull();
+					return JsonToken.VALUE_NULL;
+				case UNDEFINED:
+					reader.readUndefined();
+					return JsonToken.VALUE_NULL;
+				case DATE_TIME:
+					embedded = new Date(reader.readDateTime());
+					return JsonToken.VALUE_EMBEDDED_OBJECT;
+				case OBJECT_ID:
+					embedded = reader.readObjectId();
+					return JsonToken.VALUE_EMBEDDED_OBJECT;
+				case BINARY:
+					BsonBinary binary = reader.readBinaryData();
+					if(binary.getType() == BsonBinarySubType.BINARY.getValue() || binary.getType() == BsonBinarySubType.OLD_BINARY.getValue()) {
+						embedded = binary.getData();
+					} else {
+						embedded = new Binary(binary.getType(), binary.getData());
+					}
+					return JsonToken.VALUE_EMBEDDED_OBJECT;
+				default:
+					embedded = bsonTypeCodecMap.get(type).decode(reader, decoderContext);
+					return JsonToken.VALUE_EMBEDDED_OBJECT;
+			}
+		}
+		/** Read the rest of the document, in case the deserializer did not consume all of it */
+		private void skipRemaining () throws IOException {
+			while(depth > 0 && nextToken() != null) {}
+		}
+
+		@Override
+		protected void _handleEOF () {}
+		@Override
+		public String getCurrentName () {
+			if((_currToken == JsonToken.START_OBJECT || _currToken == JsonToken.START_ARRAY) && context.getParent() != null) {
+				return context.getParent().getCurrentName();
+			}
+			return context.getCurrentName();
+		}
+		@Override
+		public void overrideCurrentName (String name) {
+			try {
+				context.setCurrentName(name);
+			} catch (JsonProcessingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		@Override
+		public void close () {
+			closed = true;
+		}
+		@Override
+		public boolean isClosed () {
+			return closed;
+		}
+		@Override
+		public JsonStreamContext getParsingContext () {
+			return context;
+		}
+		@Override
+		public String getText () {
+			if(_currToken == null) {
+				return null;
+			}
+			switch(_currToken) {
+				case FIELD_NAME:
+					return context.getCurrentName();
+				case VALUE_STRING:
+					return text;
+				case VALUE_NUMBER_INT:
+				case VALUE_NUMBER_FLOAT:
+					return number.toString();
+				case VALUE_EMBEDDED_OBJECT:
+					return embedded != null ? embedded.toString() : null;
+				default:
+					return _currToken.asString();
+			}
+		}
+		@Override
+		public char[] getTextCharacters () {
+			String value = getText();
+			return value != null ? value.toCharArray() : null;
+		}
+		@Override
+		public boolean hasTextCharacters () {
+			return false;
+		}
+		@Override
+		public int getTextLength () {
+			String value = getText();
+			return value != null ? value.length() : 0;
+		}
+		@Override
+		public int getTextOffset () {
+			return 0;
+		}
+		@Override
+		public byte[] getBinaryValue (Base64Variant variant) throws IOException {
+			if(_currToken == JsonToken.VALUE_EMBEDDED_OBJECT && embedded instanceof byte[]) {
+				return (byte[]) embedded;
+			}
+			if(_currToken == JsonToken.VALUE_EMBEDDED_OBJECT && embedded instanceof Binary) {
+				return ((Binary) embedded).getData();
+			}
+			if(_currToken == JsonToken.VALUE_STRING) {
+				return variant.decode(text);
+			}
+			throw _constructError("Current token (" + _currToken + ") is not binary data");
+		}
+		@Override
+		public Object getEmbeddedObject () {
+			return _currToken == JsonToken.VALUE_EMBEDDED_OBJECT ? embedded : null;
+		}
+		@Override
+		public ObjectCodec getCodec () {
+			return codec;
+		}
+		@Override
+		public void setCodec (ObjectCodec codec) {
+			this.codec = codec;
+		}
+		@Override
+		public Version version () {
+			return Version.unknownVersion();
+		}
+		@Override
+		public JsonLocation getCurrentLocation () {
+			return JsonLocation.NA;
+		}
+		@Override
+		public JsonLocation getTokenLocation () {
+			return JsonLocation.NA;
+		}
+		@Override
+		public Number getNumberValue () throws IOException {
+			if(number == null) {
+				throw _constructError("Current token (" + _currToken + ") is not numeric");
+			}
+			return number;
+		}
+		@Override
+		public NumberType getNumberType () throws IOException {
+			Number value = getNumberValue();
+			if(value instanceof Integer) {
+				return NumberType.INT;
+			} else if(value instanceof Long) {
+				return NumberType.LONG;
+			} else if(value instanceof BigDecimal) {
+				return NumberType.BIG_DECIMAL;
+			}
+			return NumberType.DOUBLE;
+		}
+		@Override
+		public int getIntValue () throws IOException {
+			return getNumberValue().intValue();
+		}
+		@Override
+		public long getLongValue () throws IOException {
+			return getNumberValue().longValue();
+		}
+		@Override
+		public BigInteger getBigIntegerValue () throws IOException {
+			Number value = getNumberValue();
+			if(value instanceof BigDecimal) {
+				return ((BigDecimal) value).toBigInteger();
+			}
+			if(value instanceof Double) {
+				return BigDecimal.valueOf(value.doubleValue()).toBigInteger();
+			}
+			return BigInteger.valueOf(value.longValue());
+		}
+		@Override
+		public float getFloatValue () throws IOException {
+			return getNumberValue().floatValue();
+		}
+		@Override
+		public double getDoubleValue () throws IOException {
+			return getNumberValue().doubleValue();
+		}
+		@Override
+		public BigDecimal getDecimalValue () throws IOException {
+			Number value = getNumberValue();
+			if(value instanceof BigDecimal) {
+				return (BigDecimal) value;
+			}
+			if(value instanceof Double) {
+				return BigDecimal.valueOf(value.doubleValue());
+			}
+			return BigDecimal.valueOf(value.longValue());
+		}
+	}
+}
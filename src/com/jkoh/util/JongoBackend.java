@@ -0,0 +1,110 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+import com.mongodb.*;
+
+import org.bson.codecs.configuration.CodecRegistry;
+import org.jongo.*;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backend mapping objects with jongo, the default.
+ */
+class JongoBackend implements MongoBackend {
+	private final Jongo jongo;
+	private final Mapper mapper;
+	private final CodecRegistry registry;
+
+	JongoBackend (Jongo jongo, Mapper mapper, CodecRegistry registry) {
+		this.jongo = jongo;
+		this.mapper = mapper;
+		this.registry = registry;
+	}
+
+	@Override
+	public <T> T findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options) {
+		if(clazz == LazyDocument.class) {
+			FindOptions findOptions = MongoDB.findOptions().limit(1);
+			if(options != null) {
+				findOptions.projection(options.getProjection()).sort(options.getOrderBy()).readPreference(options.getReadPreference());
+			}
+			try (MongoCursor<T> cursor = cursorFind(collectionName, query, clazz, findOptions)) {
+				return cursor.hasNext() ? cursor.next() : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		FindOne findOne = collection(collectionName, options != null ? options.getReadPreference() : null).findOne(query.getQuery(), query.getParams());
+		if(options != null) {
+			if(options.getProjection() != null) {
+				findOne.projection(options.getProjection().getQuery(), options.getProjection().getParams());
+			}
+			if(options.getOrderBy() != null) {
+				findOne.orderBy(options.getOrderBy());
+			}
+		}
+		return findOne.as(clazz);
+	}
+	private MongoCollection collection (String collectionName, ReadPreference readPreference) {
+		MongoCollection collection = jongo.getCollection(collectionName);
+		return readPreference != null ? collection.withReadPreference(readPreference) : collection;
+	}
+	@Override
+	public <T> Cursor<T> find (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		MongoCursor<T> cursor = cursorFind(collectionName, query, clazz, options);
+		return MongoBackend.cursor(cursor, cursor);
+	}
+	/** Find documents and return the jongo cursor, LazyDocument results keep the raw bytes of the documents */
+	<T> MongoCursor<T> cursorFind (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		Find find = collection(collectionName, options != null ? options.getReadPreference() : null).find(query.getQuery(), query.getParams());
+		if(options != null) {
+			if(options.getProjection() != null) {
+				find.projection(options.getProjection().getQuery(), options.getProjection().getParams());
+			}
+			if(options.getLimit() > 0) {
+				find.limit(options.getLimit());
+			}
+			if(options.getSkip() > 0) {
+				find.skip(options.getSkip());
+			}
+			if(options.getSort() != null) {
+				find.sort(options.getSort());
+			}
+			if(options.getHint() != null) {
+				find.hint(options.getHint());
+			}
+			if(options.getBatchSize() > 0) {
+				final int batchSize = options.getBatchSize();
+				find.with(cursor -> cursor.batchSize(batchSize));
+			}
+		}
+		if(clazz == LazyDocument.class) {
+			find.with(cursor -> cursor.setDecoderFactory(LazyDocument.DECODER_FACTORY));
+			@SuppressWarnings("unchecked")
+			MongoCursor<T> cursor = (MongoCursor<T>) find.map(LazyDocument.resultHandler(registry));
+			return cursor;
+		}
+		return find.as(clazz);
+	}
+	@Override
+	public <T> int save (String collectionName, T object, WriteConcern writeConcern) {
+		WriteResult result = jongo.getCollection(collectionName).withWriteConcern(writeConcern).save(object);
+		return result.wasAcknowledged() ? result.getN() : 1;
+	}
+	@Override
+	public <T> void insert (String collectionName, T object, WriteConcern writeConcern) {
+		jongo.getCollection(collectionName).withWriteConcern(writeConcern).insert(object);
+	}
+	@Override
+	public <T> int bulkSet (String collectionName, List<T> objects, WriteConcern writeConcern) {
+		BulkWriteOperation bulkWriteOperation = jongo.getDatabase().getCollection(collectionName).initializeUnorderedBulkOperation();
+		for (T object : objects) {
+			DBObject dbObject = mapper.getMarshaller().marshall(object).toDBObject();
+			bulkWriteOperation.find(new BasicDBObject("_id", dbObject.get("_id"))).upsert().replaceOne(dbObject);
+		}
+		BulkWriteResult result = bulkWriteOperation.execute(writeConcern);
+		return result.isAcknowledged() ? result.getUpserts().size() : 0;
+	}
+}
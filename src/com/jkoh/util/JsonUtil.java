@@ -22,8 +22,9 @@ import java.util.*;
 
 public class JsonUtil {
 	private static ObjectMapper jsonMapper = null;
-	private static final SimpleDateFormat format1 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-	private static final SimpleDateFormat format2 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ");
+	/** SimpleDateFormat is not thread-safe, so each thread has its own */
+	private static final ThreadLocal<SimpleDateFormat> format1 = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+	private static final ThreadLocal<SimpleDateFormat> format2 = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ"));
 	
 	public static ObjectMapper getJsonMapper () {
 		if (jsonMapper == null) {
@@ -100,7 +101,7 @@ public class JsonUtil {
 		@Override
 		public void serialize (Date value, JsonGenerator jgen, SerializerProvider provider) throws IOException {
 			jgen.writeStartObject();
-			jgen.writeStringField("$date", format1.format(value));
+			jgen.writeStringField("$date", format1.get().format(value));
 			jgen.writeEndObject();
 		}
 	}
@@ -111,19 +112,24 @@ public class JsonUtil {
 		@Override
 		public Date deserialize (JsonParser jsonparser, DeserializationContext ctxt) throws IOException {
 			TreeNode treeNode = jsonparser.readValueAsTree();
-			String date = ((ObjectNode) treeNode).findValue("$date").asText();
-			date = date.replace("Z", "+0000");
+			return parseDate(((ObjectNode) treeNode).findValue("$date").asText());
+		}
+	}
+	/**
+	 * Parse the $date string written by DateSerializer
+	 */
+	public static Date parseDate (String date) {
+		date = date.replace("Z", "+0000");
+		try {
+			return format1.get().parse(date);
+		} catch (ParseException e) {
 			try {
-				return format1.parse(date);
-			} catch (ParseException e) {
-				try {
-					return format2.parse(date);
-				} catch (ParseException e1) {
-					e1.printStackTrace();
-				}
+				return format2.get().parse(date);
+			} catch (ParseException e1) {
+				e1.printStackTrace();
 			}
-			return null;
 		}
+		return null;
 	}
 	
 	/**
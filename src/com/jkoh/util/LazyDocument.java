@@ -0,0 +1,233 @@
+package com.jkoh.util;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+import org.bson.*;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.jongo.ResultHandler;
+
+import java.util.*;
+
+/**
+ * Read only view of a document over its raw BSON bytes, a field is only decoded when it is read.
+ * Dates are read from BSON dates and from the {$date: "..."} documents of JsonUtil alike.
+ * Use as to bind the whole document to a class once it is known to be needed.
+ */
+public class LazyDocument {
+	private final RawBsonDocument document;
+	private final CodecRegistry registry;
+
+	LazyDocument (RawBsonDocument document, CodecRegistry registry) {
+		this.document = document;
+		this.registry = registry;
+	}
+
+	/** Get the raw document */
+	public RawBsonDocument getRawDocument () {
+		return document;
+	}
+	/** Check if the document has a field */
+	public boolean containsKey (String key) {
+		return document.containsKey(key);
+	}
+	/** Get the field names, in document order */
+	public Set<String> keySet () {
+		return document.keySet();
+	}
+	/** Get a field as a plain Java value, documents as LazyDocument, arrays as List and {$date: "..."} documents as Date, null if missing */
+	public Object get (String key) {
+		return toJava(document.get(key));
+	}
+	/** Get a string field, null if missing or not a string */
+	public String getString (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isString() ? value.asString().getValue() : null;
+	}
+	/** Get a numeric field as an Integer, null if missing or not a number */
+	public Integer getInteger (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isNumber() ? value.asNumber().intValue() : null;
+	}
+	/** Get a numeric field as a Long, null if missing or not a number */
+	public Long getLong (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isNumber() ? value.asNumber().longValue() : null;
+	}
+	/** Get a numeric field as a Double, null if missing or not a number */
+	public Double getDouble (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isNumber() ? value.asNumber().doubleValue() : null;
+	}
+	/** Get a boolean field, null if missing or not a boolean */
+	public Boolean getBoolean (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isBoolean() ? value.asBoolean().getValue() : null;
+	}
+	/** Get a date field stored as a BSON date or a JsonUtil {$date: "..."} document, null if missing or not a date */
+	public Date getDate (String key) {
+		return toDate(document.get(key));
+	}
+	/** Get an ObjectId field, null if missing or not an ObjectId */
+	public ObjectId getObjectId (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isObjectId() ? value.asObjectId().getValue() : null;
+	}
+	/** Get a sub document field as a lazy view, null if missing or not a document */
+	public LazyDocument getDocument (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isDocument() ? new LazyDocument(raw(value.asDocument()), registry) : null;
+	}
+	/** Get an array field as plain Java values, null if missing or not an array */
+	public List<Object> getList (String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isArray() ? toList(value.asArray()) : null;
+	}
+	/** Bind the document to a class, with the same mapping as MongoDB */
+	public <T> T as (Class<T> clazz) {
+		return document.decode(registry.get(clazz));
+	}
+	/** Bind a sub document field to a class, null if missing or not a document */
+	public <T> T get (String key, Class<T> clazz) {
+		LazyDocument subDocument = getDocument(key);
+		return subDocument != null ? subDocument.as(clazz) : null;
+	}
+	public String toJson () {
+		return document.toJson();
+	}
+	@Override
+	public String toString () {
+		return toJson();
+	}
+	@Override
+	public boolean equals (Object obj) {
+		return obj instanceof LazyDocument && document.equals(((LazyDocument) obj).document);
+	}
+	@Override
+	public int hashCode () {
+		return document.hashCode();
+	}
+
+	private Object toJava (BsonValue value) {
+		if(value == null) {
+			return null;
+		}
+		switch(value.getBsonType()) {
+			case NULL:
+			case UNDEFINED:
+				return null;
+			case STRING:
+				return value.asString().getValue();
+			case INT32:
+				return value.asInt32().getValue();
+			case INT64:
+				return value.asInt64().getValue();
+			case DOUBLE:
+				return value.asDouble().getValue();
+			case DECIMAL128:
+				return value.asDecimal128().getValue();
+			case BOOLEAN:
+				return value.asBoolean().getValue();
+			case DATE_TIME:
+				return new Date(value.asDateTime().getValue());
+			case OBJECT_ID:
+				return value.asObjectId().getValue();
+			case BINARY:
+				return value.asBinary().getData();
+			case ARRAY:
+				return toList(value.asArray());
+			case DOCUMENT:
+				Date date = toDate(value);
+				return date != null ? date : new LazyDocument(raw(value.asDocument()), registry);
+			default:
+				return value;
+		}
+	}
+	private List<Object> toList (BsonArray array) {
+		List<Object> list = new ArrayList<>(array.size());
+		for(BsonValue value : array) {
+			list.add(toJava(value));
+		}
+		return list;
+	}
+	private static Date toDate (BsonValue value) {
+		if(value == null) {
+			return null;
+		}
+		if(value.isDateTime()) {
+			return new Date(value.asDateTime().getValue());
+		}
+		if(value.isDocument()) {
+			BsonValue date = value.asDocument().get("$date");
+			if(date != null && date.isString()) {
+				return JsonUtil.parseDate(date.asString().getValue());
+			}
+			if(date != null && date.isDateTime()) {
+				return new Date(date.asDateTime().getValue());
+			}
+		}
+		return null;
+	}
+	/** Sub documents of a raw document are raw, other documents are copied once */
+	private static RawBsonDocument raw (BsonDocument document) {
+		return document instanceof RawBsonDocument ? (RawBsonDocument) document
+			: new RawBsonDocument(document, new BsonDocumentCodec());
+	}
+
+	/** Decoder for legacy cursors that keeps each document as its raw bytes */
+	static final DBDecoderFactory DECODER_FACTORY = () -> new DefaultDBDecoder() {
+		@Override
+		public DBObject decode (byte[] bytes, DBCollection collection) {
+			return new RawDBObject(bytes);
+		}
+	};
+	/** Result handler for documents read by a cursor decoded with DECODER_FACTORY */
+	static ResultHandler<LazyDocument> resultHandler (final CodecRegistry registry) {
+		return dbObject -> new LazyDocument(((RawDBObject) dbObject).toRawBsonDocument(), registry);
+	}
+	private static class RawDBObject extends LazyDBObject {
+		private RawDBObject (byte[] bytes) {
+			super(bytes, new LazyDBCallback(null));
+		}
+		private RawBsonDocument toRawBsonDocument () {
+			return new RawBsonDocument(getBytes(), 0, getBSONSize());
+		}
+	}
+
+	/** Provides the codec of LazyDocument, wrapping documents read by the driver without decoding them */
+	static class Provider implements CodecProvider {
+		@Override
+		@SuppressWarnings("unchecked")
+		public <C> Codec<C> get (Class<C> clazz, final CodecRegistry registry) {
+			if(clazz != LazyDocument.class) {
+				return null;
+			}
+			final Codec<RawBsonDocument> rawCodec = new RawBsonDocumentCodec();
+			return (Codec<C>) new Codec<LazyDocument>() {
+				@Override
+				public LazyDocument decode (BsonReader reader, DecoderContext decoderContext) {
+					return new LazyDocument(rawCodec.decode(reader, decoderContext), registry);
+				}
+				@Override
+				public void encode (BsonWriter writer, LazyDocument value, EncoderContext encoderContext) {
+					rawCodec.encode(writer, value.document, encoderContext);
+				}
+				@Override
+				public Class<LazyDocument> getEncoderClass () {
+					return LazyDocument.class;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+import com.mongodb.WriteConcern;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage backend behind MongoDB for the operations that map objects to and from documents.
+ * Implementations throw MongoException on failure, MongoDB records and logs it.
+ */
+interface MongoBackend {
+	/** Find a document, null if none matches */
+	public <T> T findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options);
+	/** Find documents, the cursor must be closed */
+	public <T> Cursor<T> find (String collectionName, Query query, Class<T> clazz, FindOptions options);
+	/** Upsert an object by its _id, generating one if it has none, and return the number of documents written, 1 if unacknowledged */
+	public <T> int save (String collectionName, T object, WriteConcern writeConcern);
+	/** Insert an object, generating an _id if it has none */
+	public <T> void insert (String collectionName, T object, WriteConcern writeConcern);
+	/** Upsert objects by their _id and return the number of inserted documents, 0 if unacknowledged */
+	public <T> int bulkSet (String collectionName, List<T> objects, WriteConcern writeConcern);
+
+	/** Results of find */
+	public interface Cursor<T> extends Iterator<T>, Closeable {}
+	/** Create a cursor from an iterator and the resource to close */
+	static <T> Cursor<T> cursor (final Iterator<T> iterator, final Closeable closeable) {
+		return new Cursor<T>() {
+			@Override
+			public boolean hasNext () {
+				return iterator.hasNext();
+			}
+			@Override
+			public T next () {
+				return iterator.next();
+			}
+			@Override
+			public void close () throws IOException {
+				closeable.close();
+			}
+		};
+	}
+}
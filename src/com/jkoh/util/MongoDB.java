@@ -1,25 +1,70 @@
 package com.jkoh.util;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.introspect.VisibilityChecker;
 import com.mongodb.*;
+import com.mongodb.client.AggregateIterable;
 
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.jongo.*;
+import org.jongo.bson.Bson;
+import org.jongo.marshall.Marshaller;
+import org.jongo.marshall.Unmarshaller;
+import org.jongo.query.QueryFactory;
 import org.jongo.marshall.jackson.JacksonMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import lombok.Getter;
 
 public class MongoDB {
 	private final static Logger logger = LoggerFactory.getLogger(MongoDB.class);
+	private final static int GET_MANY_CHUNK_SIZE = 500;
 	private Config config = null;
 	private MongoClient mongoClient = null;
 	private Jongo jongo = null;
 	private Mapper mapper = null;
+	/** ObjectMapper of the mapper, kept when it is built as JacksonEngine.getObjectMapper is deprecated */
+	private ObjectMapper objectMapper = null;
+	private JongoBackend jongoBackend = null;
+	private MongoBackend backend = null;
+	private AutoProjection autoProjection = null;
+	private CodecRegistry codecRegistry = null;
+	private ThreadPoolExecutor readExecutor = null;
+	private ThreadPoolExecutor hedgeExecutor = null;
+	private ReadPreference hedgeReadPreference = null;
+	private final List<Closeable> closeOnStop = new CopyOnWriteArrayList<>();
+	private final Map<String, NearCache> nearCaches = new ConcurrentHashMap<>();
+	private final Map<String, WriteConcern> writeConcerns = new ConcurrentHashMap<>();
+	private WriteConcern defaultWriteConcern = WriteConcern.ACKNOWLEDGED;
+	private final MongoMetrics metrics = new MongoMetrics();
+	private QueryProfiler profiler;
 
 	public MongoDB (Config config) {
 		this.config = config;
@@ -34,21 +79,39 @@ public class MongoDB {
 				}
 				MongoCredential credential = MongoCredential.createScramSha1Credential(
 					config.getUsername(), config.getAuthDB(), config.getPassword().toCharArray());
-				List<MongoCredential> auth = Arrays.asList(credential);
-				mongoClient = new MongoClient(addresses, auth);
+				mongoClient = new MongoClient(addresses, credential, clientOptions(config));
 				DB db = mongoClient.getDB(config.getDbName());
-				db.setWriteConcern(WriteConcern.ACKNOWLEDGED);
-				jongo = new Jongo(db);
-				mapper = new JacksonMapper.Builder()
-					.addDeserializer(Date.class, new JsonUtil.DateDeserializer())
-					.addSerializer(Date.class, new JsonUtil.DateSerializer())
-					.setVisibilityChecker(VisibilityChecker.Std.defaultInstance()
-						.withFieldVisibility(JsonAutoDetect.Visibility.ANY)
-						.withGetterVisibility(JsonAutoDetect.Visibility.NONE)
-						.withIsGetterVisibility(JsonAutoDetect.Visibility.NONE)
-						.withSetterVisibility(JsonAutoDetect.Visibility.NONE)
-						.withCreatorVisibility(JsonAutoDetect.Visibility.NONE))
-					.build();
+				defaultWriteConcern = writeConcern(config.getWriteConcern());
+				db.setWriteConcern(defaultWriteConcern);
+				if(config.getCollectionWriteConcerns() != null) {
+					for(Map.Entry<String, String> collectionWriteConcern : config.getCollectionWriteConcerns().entrySet()) {
+						writeConcerns.putIfAbsent(collectionWriteConcern.getKey(), writeConcern(collectionWriteConcern.getValue()));
+					}
+				}
+				jongo = new Jongo(db, cachingQueries(JacksonMapper.Builder.jacksonMapper().build()));
+				mapper = mapperBuilder().addModifier(built -> objectMapper = built).build();
+				ObjectMapper[] codecObjectMapper = new ObjectMapper[1];
+				Mapper codecMapper = mapperBuilder().registerModule(JacksonCodec.nativeTypesModule()).addModifier(built -> codecObjectMapper[0] = built).build();
+				codecRegistry = JacksonCodec.registry(codecObjectMapper[0], codecMapper.getObjectIdUpdater());
+				jongoBackend = new JongoBackend(jongo, mapper, codecRegistry);
+				if(config.getBackend() == Backend.CODEC) {
+					backend = new CodecBackend(this, mongoClient.getDatabase(config.getDbName()), codecRegistry, codecMapper.getObjectIdUpdater());
+				} else {
+					backend = jongoBackend;
+				}
+				int readThreads = Runtime.getRuntime().availableProcessors();
+				readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), daemonThreadFactory("mongodb-read"));
+				readExecutor.allowCoreThreadTimeOut(true);
+				if(config.isHedgedReads()) {
+					hedgeReadPreference = readPreference(config.getHedgeReadPreference(), config.getMaxStalenessSeconds());
+					// bounded, a saturated pool falls back to reads without hedge instead of adding threads when the server is slow
+					hedgeExecutor = new ThreadPoolExecutor(0, config.getMaxHedgeThreads(), 60, TimeUnit.SECONDS,
+						new SynchronousQueue<>(), daemonThreadFactory("mongodb-hedge"));
+				}
+				if(config.isAutoProjection()) {
+					autoProjection = new AutoProjection(objectMapper);
+				}
 				logger.info("Connected to mongodb");
 				return true;
 			} catch (MongoException e) {
@@ -61,15 +124,142 @@ public class MongoDB {
 	}
 	public void stop () {
 		logger.info("Disconnecting from mongodb");
+		for (Closeable closeable : closeOnStop) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close " + closeable, e);
+			}
+		}
+		closeOnStop.clear();
+		disableProfiler();
+		if (readExecutor != null) {
+			readExecutor.shutdown();
+		}
+		if (hedgeExecutor != null) {
+			hedgeExecutor.shutdown();
+		}
 		if (mongoClient != null) {
 			mongoClient.close();
 		}
 		jongo = null;
+		jongoBackend = null;
+		backend = null;
+		autoProjection = null;
+		codecRegistry = null;
+		readExecutor = null;
+		hedgeExecutor = null;
+		hedgeReadPreference = null;
 		mongoClient = null;
 		config = null;
 		logger.info("Disconnected from mongodb");
 	}
 
+	/** Jackson mapping with JsonUtil dates and field visibility, shared by the mapper and the codec backend */
+	static JacksonMapper.Builder mapperBuilder () {
+		return new JacksonMapper.Builder()
+			.addDeserializer(Date.class, new JsonUtil.DateDeserializer())
+			.addSerializer(Date.class, new JsonUtil.DateSerializer())
+			.setVisibilityChecker(VisibilityChecker.Std.defaultInstance()
+				.withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+				.withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+				.withIsGetterVisibility(JsonAutoDetect.Visibility.NONE)
+				.withSetterVisibility(JsonAutoDetect.Visibility.NONE)
+				.withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
+	}
+
+	/** Client options from the pool, timeout, compression and read preference settings of the config */
+	static MongoClientOptions clientOptions (Config config) {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder()
+			.minConnectionsPerHost(config.getMinPoolSize())
+			.connectionsPerHost(config.getMaxPoolSize())
+			.maxWaitTime(config.getMaxWaitMillis())
+			.connectTimeout(config.getConnectTimeoutMillis())
+			.socketTimeout(config.getSocketTimeoutMillis())
+			.serverSelectionTimeout(config.getServerSelectionTimeoutMillis())
+			.readPreference(readPreference(config.getReadPreference(), config.getMaxStalenessSeconds()));
+		if(config.getCompressors() != null) {
+			List<MongoCompressor> compressors = new ArrayList<>();
+			for(String compressor : config.getCompressors()) {
+				if(compressor.equalsIgnoreCase("zlib")) {
+					compressors.add(MongoCompressor.createZlibCompressor());
+				} else if(compressor.equalsIgnoreCase("snappy")) {
+					compressors.add(MongoCompressor.createSnappyCompressor());
+				} else {
+					throw new IllegalArgumentException("Unknown compressor " + compressor);
+				}
+			}
+			builder.compressorList(compressors);
+		}
+		return builder.build();
+	}
+	/** Read preference by mode name, maxStalenessSeconds of 0 for no limit, ignored for primary */
+	public static ReadPreference readPreference (String mode, long maxStalenessSeconds) {
+		if(mode == null || mode.equals("primary")) {
+			return ReadPreference.primary();
+		}
+		if(maxStalenessSeconds <= 0) {
+			return ReadPreference.valueOf(mode);
+		}
+		return ReadPreference.valueOf(mode, Collections.<TagSet>emptyList(), maxStalenessSeconds, TimeUnit.SECONDS);
+	}
+
+	/** Write concern by name: unacknowledged, acknowledged, w1, w2, w3, journaled, majority or majority_journaled */
+	public static WriteConcern writeConcern (String name) {
+		if(name.equalsIgnoreCase("majority_journaled")) {
+			return WriteConcern.MAJORITY.withJournal(true);
+		}
+		WriteConcern writeConcern = WriteConcern.valueOf(name);
+		if(writeConcern == null) {
+			throw new IllegalArgumentException("Unknown write concern " + name);
+		}
+		return writeConcern;
+	}
+	/** Set the write concern of writes to a collection that do not give one, null for the configured default */
+	public <T> void setWriteConcern (Class<T> clazz, WriteConcern writeConcern) {
+		setWriteConcern(clazz.getSimpleName(), writeConcern);
+	}
+	/** Set the write concern of writes to a collection that do not give one, null for the configured default */
+	public void setWriteConcern (String collectionName, WriteConcern writeConcern) {
+		if(writeConcern == null) {
+			writeConcerns.remove(collectionName);
+		} else {
+			writeConcerns.put(collectionName, writeConcern);
+		}
+	}
+	/** Get the write concern of writes to a collection that do not give one */
+	public WriteConcern getWriteConcern (String collectionName) {
+		WriteConcern writeConcern = writeConcerns.get(collectionName);
+		return writeConcern != null ? writeConcern : defaultWriteConcern;
+	}
+	private WriteConcern writeConcern (String collectionName, WriteConcern writeConcern) {
+		return writeConcern != null ? writeConcern : getWriteConcern(collectionName);
+	}
+
+	/** Get the operation metrics of this instance */
+	public MongoMetrics getMetrics () {
+		return metrics;
+	}
+	/** Profile slow and sampled queries by shape, recording needs metrics enabled */
+	public synchronized QueryProfiler enableProfiler (QueryProfiler.Options options) {
+		disableProfiler();
+		profiler = new QueryProfiler(this, options);
+		metrics.setProfiler(profiler);
+		return profiler;
+	}
+	/** Stop profiling queries */
+	public synchronized void disableProfiler () {
+		if(profiler != null) {
+			metrics.setProfiler(null);
+			profiler.close();
+			profiler = null;
+		}
+	}
+	/** Get the query profiler, null if it is not enabled */
+	public QueryProfiler getProfiler () {
+		return profiler;
+	}
+
 	/** Check if a collection exists */
 	public <T> boolean collectionExists (Class<T> clazz) {
 		return collectionExists(clazz.getSimpleName());
@@ -110,13 +300,40 @@ public class MongoDB {
 	}
 	/** Ensure a indexed field on a collection */
 	public void index (String collectionName, String index, String options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.INDEX);
 		try {
 			jongo.getCollection(collectionName).ensureIndex(index, options);
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Index failed", e);
+		} finally {
+			timer.stop();
 		}
 	}
 
+	/** Cache documents read by get for a collection, writes through this instance invalidate them */
+	public <T> NearCache enableNearCache (Class<T> clazz, NearCache.Options options) {
+		return enableNearCache(clazz.getSimpleName(), options);
+	}
+	/** Cache documents read by get for a collection, writes through this instance invalidate them */
+	public NearCache enableNearCache (String collectionName, NearCache.Options options) {
+		NearCache nearCache = new NearCache(options);
+		nearCaches.put(collectionName, nearCache);
+		return nearCache;
+	}
+	/** Stop caching documents for a collection */
+	public <T> void disableNearCache (Class<T> clazz) {
+		disableNearCache(clazz.getSimpleName());
+	}
+	/** Stop caching documents for a collection */
+	public void disableNearCache (String collectionName) {
+		nearCaches.remove(collectionName);
+	}
+	/** Get the near cache of a collection, null if it is not enabled */
+	public NearCache getNearCache (String collectionName) {
+		return nearCaches.get(collectionName);
+	}
+
 	/** Check if a specific document exists */
 	public <T> boolean exists (Class<T> clazz, Query query) {
 		return exists(clazz.getSimpleName(), query);
@@ -132,11 +349,15 @@ public class MongoDB {
 	}
 	/** Count documents */
 	public long count (String collectionName, Query query) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.COUNT).query(query, null);
 		try {
 			return jongo.getCollection(collectionName).count(query.query, query.params);
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Count failed", e);
 			return 0;
+		} finally {
+			timer.stop();
 		}
 	}
 	
@@ -154,6 +375,52 @@ public class MongoDB {
 	}
 	/** Count position of a document by id in the list of results */
 	public long countPosition (String collectionName, String id, Query query, String sort) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.COUNT_POSITION);
+		try {
+			if(sort != null) {
+				Long position = countPositionBySortKeys(collectionName, id, query, sort);
+				if(position != null) {
+					return position;
+				}
+			}
+			return countPositionByWalk(collectionName, id, query, sort);
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("CountPosition failed", e);
+			return -1;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** 
+	 * Count position with a single count of the documents sorted before the target document, ties are broken by ascending _id.
+	 * Documents with a null or missing ascending sort key sort first and are counted, range operators alone would skip them.
+	 * Returns null if the sort cannot be translated to a range predicate.
+	 */
+	private Long countPositionBySortKeys (String collectionName, String id, Query query, String sort) {
+		DBObject sortObject = toDBObject(query(sort));
+		if(sortObject.keySet().isEmpty()) {
+			// natural order is not _id order
+			return null;
+		}
+		SortKeys sortKeys = SortKeys.parse(sortObject);
+		if(sortKeys == null) {
+			return null;
+		}
+		DBCollection collection = jongo.getDatabase().getCollection(collectionName);
+		DBObject queryObject = toDBObject(query);
+		DBObject target = collection.findOne(new BasicDBObject("$and", Arrays.asList(queryObject, new BasicDBObject("_id", id))), sortKeys.projection());
+		if(target == null) {
+			return -1L;
+		}
+		DBObject before = sortKeys.seekPredicate(sortKeys.values(target), false);
+		if(before == null) {
+			return null;
+		}
+		return collection.count(new BasicDBObject("$and", Arrays.asList(queryObject, before)));
+	}
+	/** Count position by walking the ids of all results in order */
+	private long countPositionByWalk (String collectionName, String id, Query query, String sort) {
 		MongoCursor<Map> cursor = cursorFind(collectionName, query, Map.class, 
 			findOptions().projection(idQuery(1)).sort(sort));
 		boolean found = false;
@@ -170,7 +437,6 @@ public class MongoDB {
 		} catch (IOException e) {}
 		return found ? position : -1;
 	}
-	
 	/** Count documents returned by find */
 	public <T> int countFindResults (Class<T> clazz, Query query) {
 		return countFindResults(clazz.getSimpleName(), query);
@@ -185,12 +451,20 @@ public class MongoDB {
 	}
 	/** Count documents returned by find  */
 	public int countFindResults (String collectionName, Query query, FindOptions options) {
-		MongoCursor<?> cursor = cursorFind(collectionName, query, Object.class, options);
-		int count = cursor.count();
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.COUNT).query(query, options != null ? options.sort : null);
 		try {
-			cursor.close();
-		} catch (IOException e) {}
-		return count;
+			MongoCursor<?> cursor = cursorFind(collectionName, query, Object.class, options);
+			int count = cursor.count();
+			try {
+				cursor.close();
+			} catch (IOException e) {}
+			return count;
+		} catch (RuntimeException e) {
+			timer.error(e);
+			throw e;
+		} finally {
+			timer.stop();
+		}
 	}
 	
 	
@@ -200,8 +474,124 @@ public class MongoDB {
 	}
 	/** Get a document by id */
 	public <T> T get (String collectionName, String id, Class<T> clazz) {
+		NearCache nearCache = nearCaches.get(collectionName);
+		if(nearCache != null) {
+			return getCached(nearCache, collectionName, id, clazz);
+		}
 		return findOne(collectionName, idQuery(id), clazz);
 	}
+	/** Get a document by id through the near cache */
+	private <T> T getCached (NearCache nearCache, String collectionName, String id, Class<T> clazz) {
+		NearCache.Entry entry = nearCache.lookup(id);
+		if(entry == null) {
+			long generation = nearCache.generation();
+			DBObject document;
+			MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND_ONE);
+			try {
+				document = jongo.getCollection(collectionName).findOne("{_id:#}", id).map(new RawResultHandler<DBObject>());
+				timer.documents(document != null ? 1 : 0);
+			} catch (MongoException e) {
+				timer.error(e);
+				logger.warn("Get failed", e);
+				return null;
+			} finally {
+				timer.stop();
+			}
+			nearCache.put(id, document, generation);
+			return document != null ? unmarshall(document, clazz) : null;
+		}
+		return entry.getDocument() != null ? unmarshall(entry.getDocument(), clazz) : null;
+	}
+	/** Get documents by ids, results are in the order of the ids with null for missing ids, null if the query failed */
+	public <T> List<T> getMany (Class<T> clazz, Collection<String> ids) {
+		return getMany(clazz.getSimpleName(), ids, clazz);
+	}
+	/**
+	 * Get documents by ids, results are in the order of the ids with null for missing ids, null if the query failed.
+	 * Repeated ids are queried once, ids are queried in $in chunks run in parallel and the near cache is used if enabled.
+	 */
+	public <T> List<T> getMany (String collectionName, Collection<String> ids, Class<T> clazz) {
+		NearCache nearCache = nearCaches.get(collectionName);
+		long generation = nearCache != null ? nearCache.generation() : 0;
+		Map<String, DBObject> documents = new HashMap<>();
+		List<String> missing = new ArrayList<>();
+		for(String id : new LinkedHashSet<>(ids)) {
+			NearCache.Entry entry = nearCache != null ? nearCache.lookup(id) : null;
+			if(entry == null) {
+				missing.add(id);
+			} else if(entry.getDocument() != null) {
+				documents.put(id, entry.getDocument());
+			}
+		}
+		List<List<String>> chunks = new ArrayList<>();
+		for(int i = 0; i < missing.size(); i += GET_MANY_CHUNK_SIZE) {
+			chunks.add(missing.subList(i, Math.min(i + GET_MANY_CHUNK_SIZE, missing.size())));
+		}
+		List<Map<String, DBObject>> loaded = new ArrayList<>();
+		if(chunks.size() == 1) {
+			loaded.add(findByIds(collectionName, chunks.get(0)));
+		} else if(chunks.size() > 1) {
+			List<CompletableFuture<Map<String, DBObject>>> futures = new ArrayList<>();
+			for(List<String> chunk : chunks) {
+				futures.add(CompletableFuture.supplyAsync(() -> findByIds(collectionName, chunk), readExecutor));
+			}
+			for(CompletableFuture<Map<String, DBObject>> future : futures) {
+				loaded.add(future.join());
+			}
+		}
+		for(int i = 0; i < loaded.size(); i++) {
+			if(loaded.get(i) == null) {
+				return null;
+			}
+			documents.putAll(loaded.get(i));
+			if(nearCache != null) {
+				for(String id : chunks.get(i)) {
+					nearCache.put(id, loaded.get(i).get(id), generation);
+				}
+			}
+		}
+		List<T> results = new ArrayList<>(ids.size());
+		for(String id : ids) {
+			DBObject document = documents.get(id);
+			results.add(document != null ? unmarshall(document, clazz) : null);
+		}
+		return results;
+	}
+	/** Find raw documents by ids with a single $in query, null if it failed */
+	private Map<String, DBObject> findByIds (String collectionName, List<String> ids) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND);
+		try {
+			Map<String, DBObject> documents = new HashMap<>();
+			try (MongoCursor<DBObject> cursor = jongo.getCollection(collectionName).find("{_id:{$in:#}}", ids).map(new RawResultHandler<DBObject>())) {
+				while(cursor.hasNext()) {
+					DBObject document = cursor.next();
+					documents.put(String.valueOf(document.get("_id")), document);
+				}
+			} catch (IOException e) {}
+			timer.documents(documents.size());
+			return documents;
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("GetMany failed", e);
+			return null;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Create a loader that coalesces concurrent gets by id into batched getMany queries, it is closed on stop */
+	public <T> CoalescingLoader<T> loader (Class<T> clazz) {
+		return loader(clazz.getSimpleName(), clazz, CoalescingLoader.loaderOptions());
+	}
+	/** Create a loader that coalesces concurrent gets by id into batched getMany queries, it is closed on stop */
+	public <T> CoalescingLoader<T> loader (Class<T> clazz, CoalescingLoader.Options options) {
+		return loader(clazz.getSimpleName(), clazz, options);
+	}
+	/** Create a loader that coalesces concurrent gets by id into batched getMany queries, it is closed on stop */
+	public <T> CoalescingLoader<T> loader (String collectionName, Class<T> clazz, CoalescingLoader.Options options) {
+		CoalescingLoader<T> loader = new CoalescingLoader<>(this, collectionName, clazz, options);
+		closeOnStop(loader);
+		return loader;
+	}
 	/** Find a document */
 	public <T> T findOne (Class<T> clazz, Query query) {
 		return findOne(clazz.getSimpleName(), query, clazz);
@@ -216,20 +606,19 @@ public class MongoDB {
 	}
 	/** Find a document */
 	public <T> T findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND_ONE).query(query, options != null ? options.orderBy : null);
 		try {
-			FindOne findOne = jongo.getCollection(collectionName).findOne(query.query, query.params);
-			if(options != null) {
-				if(options.projection != null) {
-					findOne.projection(options.projection.query, options.projection.params);
-				}
-				if(options.orderBy != null) {
-					findOne.orderBy(options.orderBy);
-				}
-			}
-			return findOne.as(clazz);
+			FindOneOptions findOneOptions = withAutoProjection(options, clazz);
+			T result = hedgedRead(collectionName, MongoMetrics.Operation.FIND_ONE, findOneOptions != null ? findOneOptions.readPreference : null,
+				readPreference -> backend.findOne(collectionName, query, clazz, withReadPreference(findOneOptions, readPreference)));
+			timer.documents(result != null ? 1 : 0);
+			return result;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("FindOne failed", e);
 			return null;
+		} finally {
+			timer.stop();
 		}
 	}
 
@@ -247,14 +636,32 @@ public class MongoDB {
 	}
 	/** Find documents */
 	public <T> List<T> find (String collectionName, Query query, Class<T> clazz, FindOptions options) {
-		List<T> results = new ArrayList<>();
-		MongoCursor<T> cursor = cursorFind(collectionName, query, clazz, options);
-		while(cursor.hasNext()) {
-			results.add(cursor.next());
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND).query(query, options != null ? options.sort : null);
+		try {
+			FindOptions findOptions = withAutoProjection(options, clazz);
+			List<T> results = hedgedRead(collectionName, MongoMetrics.Operation.FIND, findOptions != null ? findOptions.readPreference : null,
+				readPreference -> findAll(collectionName, query, clazz, withReadPreference(findOptions, readPreference)));
+			timer.documents(results.size());
+			return results;
+		} catch (RuntimeException e) {
+			timer.error(e);
+			throw e;
+		} finally {
+			timer.stop();
 		}
+	}
+	private <T> List<T> findAll (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		List<T> results = new ArrayList<>();
+		MongoBackend.Cursor<T> cursor = backend.find(collectionName, query, clazz, options);
 		try {
-			cursor.close();
-		} catch (IOException e) {}
+			while(cursor.hasNext()) {
+				results.add(cursor.next());
+			}
+		} finally {
+			try {
+				cursor.close();
+			} catch (IOException e) {}
+		}
 		return results;
 	}
 	/** Find documents and return the cursor */
@@ -269,32 +676,240 @@ public class MongoDB {
 	public <T> MongoCursor<T> cursorFind (Class<T> clazz, Query query, FindOptions options) {
 		return cursorFind(clazz.getSimpleName(), query, clazz, options);
 	}
-	/** Find documents and return the cursor */
+	/** Find documents and return the cursor, always mapped by jongo whatever the configured backend */
 	public <T> MongoCursor<T> cursorFind (String collectionName, Query query, Class<T> clazz, FindOptions options) {
 		try {
-			Find find = jongo.getCollection(collectionName).find(query.query, query.params);
-			if(options != null) {
-				if(options.projection != null) {
-					find.projection(options.projection.query, options.projection.params);
+			return jongoBackend.cursorFind(collectionName, query, clazz, withAutoProjection(options, clazz));
+		} catch (MongoException e) {
+			logger.warn("Find failed", e);
+			return null;
+		}
+	}
+
+	/** Find documents as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> stream (Class<T> clazz, Query query) {
+		return stream(clazz.getSimpleName(), query, clazz);
+	}
+	/** Find documents as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> stream (String collectionName, Query query, Class<T> clazz) {
+		return stream(collectionName, query, clazz, null);
+	}
+	/** Find documents as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> stream (Class<T> clazz, Query query, FindOptions options) {
+		return stream(clazz.getSimpleName(), query, clazz, options);
+	}
+	/** Find documents as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> stream (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		MongoBackend.Cursor<T> cursor;
+		try {
+			cursor = backend.find(collectionName, query, clazz, withAutoProjection(options, clazz));
+		} catch (MongoException e) {
+			logger.warn("Find failed", e);
+			return Stream.empty();
+		}
+		return closeableStream(cursor, cursor, metrics.start(collectionName, MongoMetrics.Operation.CURSOR));
+	}
+	/** Find documents and pass each one to the consumer without holding them in memory */
+	public <T> void forEach (Class<T> clazz, Query query, Consumer<? super T> consumer) {
+		forEach(clazz.getSimpleName(), query, clazz, consumer);
+	}
+	/** Find documents and pass each one to the consumer without holding them in memory */
+	public <T> void forEach (String collectionName, Query query, Class<T> clazz, Consumer<? super T> consumer) {
+		forEach(collectionName, query, clazz, null, consumer);
+	}
+	/** Find documents and pass each one to the consumer without holding them in memory */
+	public <T> void forEach (Class<T> clazz, Query query, FindOptions options, Consumer<? super T> consumer) {
+		forEach(clazz.getSimpleName(), query, clazz, options, consumer);
+	}
+	/** Find documents and pass each one to the consumer without holding them in memory */
+	public <T> void forEach (String collectionName, Query query, Class<T> clazz, FindOptions options, Consumer<? super T> consumer) {
+		try (Stream<T> stream = stream(collectionName, query, clazz, options)) {
+			stream.forEach(consumer);
+		}
+	}
+
+	/** Scan a collection in _id ranges read in parallel, run it with forEach or stream */
+	public <T> ParallelScan<T> parallelScan (Class<T> clazz, Query query) {
+		return parallelScan(clazz.getSimpleName(), query, clazz, ParallelScan.parallelScanOptions());
+	}
+	/** Scan a collection in _id ranges read in parallel, run it with forEach or stream */
+	public <T> ParallelScan<T> parallelScan (String collectionName, Query query, Class<T> clazz, ParallelScan.Options options) {
+		return new ParallelScan<>(this, collectionName, query, clazz, options);
+	}
+	/** Export a collection to a directory in _id ranges written in parallel, or restore such a directory */
+	public <T> CollectionArchive archive (Class<T> clazz, Path directory) {
+		return archive(clazz.getSimpleName(), directory, CollectionArchive.collectionArchiveOptions());
+	}
+	/** Export a collection to a directory in _id ranges written in parallel, or restore such a directory */
+	public CollectionArchive archive (String collectionName, Path directory, CollectionArchive.Options options) {
+		return new CollectionArchive(this, collectionName, directory, options);
+	}
+
+	/** Find a page of documents after the continuation token of the previous page, sorted by the sort keys then _id */
+	public <T> Page<T> paginate (Class<T> clazz, Query query, String sort, int pageSize, String token) {
+		return paginate(clazz.getSimpleName(), query, clazz, findOptions().sort(sort).limit(pageSize), token);
+	}
+	/** Find a page of documents after the continuation token of the previous page, sorted by the sort keys then _id */
+	public <T> Page<T> paginate (String collectionName, Query query, Class<T> clazz, String sort, int pageSize, String token) {
+		return paginate(collectionName, query, clazz, findOptions().sort(sort).limit(pageSize), token);
+	}
+	/** 
+	 * Find a page of documents after the continuation token of the previous page, sorted by the sort keys then _id.
+	 * The page size is the limit of the options, skip is not supported since the token seeks directly to the next page.
+	 */
+	public <T> Page<T> paginate (String collectionName, Query query, Class<T> clazz, FindOptions options, String token) {
+		if(options.limit <= 0) {
+			throw new IllegalArgumentException("Page size (limit) must be positive");
+		}
+		if(options.skip > 0) {
+			throw new IllegalArgumentException("Skip is not supported by paginate");
+		}
+		SortKeys sortKeys = SortKeys.parse(options.sort != null ? toDBObject(query(options.sort)) : new BasicDBObject());
+		if(sortKeys == null) {
+			throw new IllegalArgumentException("Cannot paginate on sort " + options.sort);
+		}
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND).query(query, options.sort);
+		try {
+			DBObject queryObject = toDBObject(query);
+			if(token != null) {
+				DBObject after = sortKeys.seekPredicate(sortKeys.decodeToken(token), true);
+				queryObject = new BasicDBObject("$and", Arrays.asList(queryObject, after));
+			}
+			DBCursor cursor = jongo.getDatabase().getCollection(collectionName).find(queryObject, projectionWithSortKeys(options.projection, sortKeys))
+				.sort(sortKeys.sortObject()).limit(options.limit + 1);
+			if(options.hint != null) {
+				cursor.hint(toDBObject(query(options.hint)));
+			}
+			if(options.batchSize > 0) {
+				cursor.batchSize(options.batchSize);
+			}
+			List<T> results = new ArrayList<>();
+			DBObject last = null;
+			boolean hasMore = false;
+			try {
+				while(cursor.hasNext()) {
+					DBObject document = cursor.next();
+					if(results.size() == options.limit) {
+						hasMore = true;
+						break;
+					}
+					results.add(unmarshall(document, clazz));
+					last = document;
 				}
-				if(options.limit > 0) {
-					find.limit(options.limit);
+			} finally {
+				cursor.close();
+			}
+			timer.documents(results.size());
+			String nextToken = null;
+			if(hasMore) {
+				List<Object> values = sortKeys.values(last);
+				if(sortKeys.seekPredicate(values, true) == null) {
+					throw new IllegalArgumentException("Cannot paginate on array or embedded document sort values");
+				}
+				nextToken = sortKeys.encodeToken(values);
+			}
+			return new Page<>(results, nextToken);
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("Paginate failed", e);
+			return new Page<>(new ArrayList<>(), null);
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Find a page of documents together with the total count of matching documents in one round trip */
+	public <T> CountedPage<T> findPage (Class<T> clazz, Query query, FindOptions options) {
+		return findPage(clazz.getSimpleName(), query, clazz, options);
+	}
+	/** Find a page of documents together with the total count of matching documents in one round trip */
+	public <T> CountedPage<T> findPage (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		return findPage(collectionName, query, clazz, options, 0);
+	}
+	/** Find a page of documents together with the total count of matching documents in one round trip, counting at most maxCount documents */
+	public <T> CountedPage<T> findPage (Class<T> clazz, Query query, FindOptions options, long maxCount) {
+		return findPage(clazz.getSimpleName(), query, clazz, options, maxCount);
+	}
+	/** Find a page of documents together with the total count of matching documents in one round trip, counting at most maxCount documents */
+	public <T> CountedPage<T> findPage (String collectionName, Query query, Class<T> clazz, FindOptions options, long maxCount) {
+		return findPage(collectionName, query, clazz, options, maxCount, aggregateOptions().allowDiskUse());
+	}
+	/** 
+	 * Find a page of documents together with the total count of matching documents in one round trip, counting at most maxCount documents if it is positive.
+	 * Runs $match and $sort, which can use indexes, then a $facet with the page and the count. The page must fit in one 16MB result document.
+	 * The $sort feeds the count as well, so it sorts every match: without an index for it, allowDiskUse lets it pass the 100MB sort limit,
+	 * and the overloads without aggregate options set it. The hint of the options is not used.
+	 */
+	public <T> CountedPage<T> findPage (String collectionName, Query query, Class<T> clazz, FindOptions options, long maxCount, AggregateOptions aggregateOptions) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.AGGREGATE);
+		try {
+			List<DBObject> pipeline = new ArrayList<>();
+			pipeline.add(new BasicDBObject("$match", toDBObject(query)));
+			List<DBObject> page = new ArrayList<>();
+			List<DBObject> total = new ArrayList<>();
+			if(options != null) {
+				if(options.sort != null) {
+					pipeline.add(new BasicDBObject("$sort", toDBObject(query(options.sort))));
 				}
 				if(options.skip > 0) {
-					find.skip(options.skip);
+					page.add(new BasicDBObject("$skip", options.skip));
 				}
-				if(options.sort != null) {
-					find.sort(options.sort);
+				if(options.limit > 0) {
+					page.add(new BasicDBObject("$limit", options.limit));
 				}
-				if(options.hint != null) {
-					find.hint(options.hint);
+				if(options.projection != null) {
+					page.add(new BasicDBObject("$project", toDBObject(options.projection)));
 				}
 			}
-			return find.as(clazz);
+			if(page.isEmpty()) {
+				// $facet does not accept an empty sub-pipeline
+				page.add(new BasicDBObject("$skip", 0));
+			}
+			if(maxCount > 0) {
+				total.add(new BasicDBObject("$limit", maxCount));
+			}
+			total.add(new BasicDBObject("$count", "count"));
+			pipeline.add(new BasicDBObject("$facet", new BasicDBObject("results", page).append("total", total)));
+			List<T> results = new ArrayList<>();
+			long count = 0;
+			Cursor cursor = jongo.getDatabase().getCollection(collectionName).aggregate(pipeline, aggregationOptions(aggregateOptions));
+			try {
+				if(cursor.hasNext()) {
+					DBObject facets = cursor.next();
+					for(Object result : (List<?>) facets.get("results")) {
+						results.add(unmarshall((DBObject) result, clazz));
+					}
+					List<?> counts = (List<?>) facets.get("total");
+					if(!counts.isEmpty()) {
+						count = ((Number) ((DBObject) counts.get(0)).get("count")).longValue();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			timer.documents(results.size());
+			return new CountedPage<>(results, count, maxCount > 0 && count >= maxCount);
 		} catch (MongoException e) {
-			logger.warn("Find failed", e);
+			timer.error(e);
+			logger.warn("FindPage failed", e);
+			return new CountedPage<>(new ArrayList<>(), 0, false);
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Make sure an inclusion projection contains the sort keys needed for the continuation token */
+	private DBObject projectionWithSortKeys (Query projection, SortKeys sortKeys) {
+		if(projection == null) {
 			return null;
 		}
+		DBObject projectionObject = toDBObject(projection);
+		for(String key : projectionObject.keySet()) {
+			Object value = projectionObject.get(key);
+			if(!"_id".equals(key) && (Boolean.TRUE.equals(value) || (value instanceof Number && ((Number)value).intValue() != 0))) {
+				projectionObject.putAll(sortKeys.projection());
+				break;
+			}
+		}
+		return projectionObject;
 	}
 
 	/** Find and modify one document */
@@ -311,6 +926,8 @@ public class MongoDB {
 	}
 	/** Find and modify one document */
 	public <T> T findAndModify (String collectionName, Query query, Query modifier, Class<T> clazz, FindAndModifyOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND_AND_MODIFY).query(query, options != null ? options.sort : null);
+		options = withAutoProjection(options, clazz);
 		try {
 			FindAndModify findAndModify = jongo.getCollection(collectionName).findAndModify(query.query, query.params)
 				.with(modifier.query, modifier.params);
@@ -328,10 +945,16 @@ public class MongoDB {
 					findAndModify.upsert();
 				}
 			}
-			return findAndModify.as(clazz);
+			T result = findAndModify.as(clazz);
+			timer.documents(result != null ? 1 : 0);
+			return result;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("FindAndModify failed", e);
 			return null;
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName, query);
 		}
 	}
 
@@ -349,6 +972,8 @@ public class MongoDB {
 	}
 	/** Find and remove one document */
 	public <T> T findAndRemove (String collectionName, Query query, Class<T> clazz, FindAndRemoveOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.FIND_AND_REMOVE).query(query, options != null ? options.sort : null);
+		options = withAutoProjection(options, clazz);
 		try {
 			FindAndModify findAndRemove = jongo.getCollection(collectionName).findAndModify(query.query, query.params)
 				.remove();
@@ -360,10 +985,16 @@ public class MongoDB {
 					findAndRemove.sort(options.sort);
 				}
 			}
-			return findAndRemove.as(clazz);
+			T result = findAndRemove.as(clazz);
+			timer.documents(result != null ? 1 : 0);
+			return result;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("FindAndRemove failed", e);
 			return null;
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName, query);
 		}
 	}
 
@@ -373,11 +1004,22 @@ public class MongoDB {
 	}
 	/** Upsert */
 	public <T> boolean set (String collectionName, T object) {
+		return set(collectionName, object, null);
+	}
+	/** Upsert with a write concern, true without waiting for the write if it is unacknowledged */
+	public <T> boolean set (String collectionName, T object, WriteConcern writeConcern) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.SET);
 		try {
-			return jongo.getCollection(collectionName).save(object).getN() > 0;
+			int n = backend.save(collectionName, object, writeConcern(collectionName, writeConcern));
+			timer.documents(n);
+			return n > 0;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Set failed", e);
 			return false;
+		} finally {
+			timer.stop();
+			invalidateNearCacheObject(collectionName, object);
 		}
 	}
 	/** Bulk upsert */
@@ -386,34 +1028,122 @@ public class MongoDB {
 	}
 	/** Bulk upsert */
 	public <T> int bulkSet (String collectionName, List<T> objects) {
+		return bulkSet(collectionName, objects, null);
+	}
+	/** Bulk upsert with a write concern, returns 0 if it is unacknowledged */
+	public <T> int bulkSet (String collectionName, List<T> objects, WriteConcern writeConcern) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.BULK_SET);
 		try {
-			BulkWriteOperation bulkWriteOperation = jongo.getDatabase().getCollection(collectionName).initializeUnorderedBulkOperation();
-			for (T object : objects) {
-				DBObject dbObject = mapper.getMarshaller().marshall(object).toDBObject();
-				bulkWriteOperation.find(new BasicDBObject("_id", dbObject.get("_id"))).upsert().replaceOne(dbObject);
-			}
-			BulkWriteResult result = bulkWriteOperation.execute();
-			return result.getUpserts().size();
+			int upserts = backend.bulkSet(collectionName, objects, writeConcern(collectionName, writeConcern));
+			timer.documents(objects.size());
+			return upserts;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("BulkSet failed", e);
 			return 0;
+		} finally {
+			timer.stop();
+			for (T object : objects) {
+				invalidateNearCacheObject(collectionName, object);
+			}
 		}
 	}
 	
+	/** Load a collection into memory and keep it current with a change stream, it is closed on stop */
+	public <T> ReplicatedCollection<T> replicate (Class<T> clazz, ReplicatedCollection.Options options) {
+		return replicate(clazz.getSimpleName(), clazz, options);
+	}
+	/** Load a collection into memory and keep it current with a change stream, it is closed on stop */
+	public <T> ReplicatedCollection<T> replicate (String collectionName, Class<T> clazz, ReplicatedCollection.Options options) {
+		ReplicatedCollection<T> replica = new ReplicatedCollection<>(this, collectionName, clazz, options);
+		closeOnStop(replica);
+		return replica;
+	}
+
+	/** Serve the results of a query from a local snapshot file, written on the first use and caught up since, it is closed on stop */
+	public <T> SnapshotCache<T> snapshotCache (Class<T> clazz, Query query, SnapshotCache.Options options) {
+		return snapshotCache(clazz.getSimpleName(), query, clazz, options);
+	}
+	/** Serve the results of a query from a local snapshot file, written on the first use and caught up since, it is closed on stop */
+	public <T> SnapshotCache<T> snapshotCache (String collectionName, Query query, Class<T> clazz, SnapshotCache.Options options) {
+		SnapshotCache<T> cache = new SnapshotCache<>(this, collectionName, query, clazz, options);
+		closeOnStop(cache);
+		return cache;
+	}
+
+	/** Create a fire-and-forget inserter for a collection, it is drained and closed on stop */
+	public <T> PipelinedInserter pipelinedInserter (Class<T> clazz) {
+		return pipelinedInserter(clazz.getSimpleName(), PipelinedInserter.pipelinedInserterOptions());
+	}
+	/** Create a fire-and-forget inserter for a collection, it is drained and closed on stop */
+	public PipelinedInserter pipelinedInserter (String collectionName, PipelinedInserter.Options options) {
+		PipelinedInserter inserter = new PipelinedInserter(this, collectionName, options);
+		closeOnStop(inserter);
+		return inserter;
+	}
+
+	/** Create a write-behind bulk writer for a collection, it is flushed and closed on stop */
+	public <T> BulkWriter bulkWriter (Class<T> clazz) {
+		return bulkWriter(clazz.getSimpleName());
+	}
+	/** Create a write-behind bulk writer for a collection, it is flushed and closed on stop */
+	public BulkWriter bulkWriter (String collectionName) {
+		return bulkWriter(collectionName, BulkWriter.bulkWriterOptions());
+	}
+	/** Create a write-behind bulk writer for a collection, it is flushed and closed on stop */
+	public <T> BulkWriter bulkWriter (Class<T> clazz, BulkWriter.Options options) {
+		return bulkWriter(clazz.getSimpleName(), options);
+	}
+	/** Create a write-behind bulk writer for a collection, it is flushed and closed on stop */
+	public BulkWriter bulkWriter (String collectionName, BulkWriter.Options options) {
+		BulkWriter bulkWriter = new BulkWriter(this, collectionName, options);
+		closeOnStop(bulkWriter);
+		return bulkWriter;
+	}
+	
+	/** Create an aggregator that coalesces $inc updates into bulk upserts, it is flushed and closed on stop */
+	public CounterAggregator counterAggregator () {
+		return counterAggregator(CounterAggregator.counterAggregatorOptions());
+	}
+	/** Create an aggregator that coalesces $inc updates into bulk upserts, it is flushed and closed on stop */
+	public CounterAggregator counterAggregator (CounterAggregator.Options options) {
+		CounterAggregator counterAggregator = new CounterAggregator(this, options);
+		closeOnStop(counterAggregator);
+		return counterAggregator;
+	}
+	
+	/** Create a work queue of jobs stored in a collection, it is closed on stop */
+	public <T> MongoQueue<T> queue (String collectionName, Class<T> clazz) {
+		return queue(collectionName, clazz, MongoQueue.queueOptions());
+	}
+	/** Create a work queue of jobs stored in a collection, it is closed on stop */
+	public <T> MongoQueue<T> queue (String collectionName, Class<T> clazz, MongoQueue.Options options) {
+		MongoQueue<T> queue = new MongoQueue<>(this, collectionName, clazz, options);
+		closeOnStop(queue);
+		return queue;
+	}
+	
 	/** Insert */
 	public <T> boolean insert (Class<T> clazz, Query query) {
 		return insert(clazz.getSimpleName(), query);
 	}
 	/** Insert */
 	public <T> boolean insert (String collectionName, Query query) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.INSERT);
 		try {
-			jongo.getCollection(collectionName).insert(query.query, query.params);
+			jongo.getCollection(collectionName).withWriteConcern(getWriteConcern(collectionName)).insert(query.query, query.params);
+			timer.documents(1);
 			return true;
 		} catch (DuplicateKeyException e) {
+			timer.error(e);
 			return false;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Insert failed", e);
 			return false;
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName);
 		}
 	}
 	/** Insert */
@@ -422,14 +1152,24 @@ public class MongoDB {
 	}
 	/** Insert */
 	public <T> boolean insert (String collectionName, T object) {
+		return insert(collectionName, object, null);
+	}
+	/** Insert with a write concern, true without waiting for the write if it is unacknowledged */
+	public <T> boolean insert (String collectionName, T object, WriteConcern writeConcern) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.INSERT);
 		try {
-			jongo.getCollection(collectionName).insert(object);
+			backend.insert(collectionName, object, writeConcern(collectionName, writeConcern));
+			timer.documents(1);
 			return true;
-		} catch (DuplicateKeyException e) {
-			return false;
 		} catch (MongoException e) {
-			logger.warn("Insert failed", e);
+			timer.error(e);
+			if(!isDuplicateKey(e)) {
+				logger.warn("Insert failed", e);
+			}
 			return false;
+		} finally {
+			timer.stop();
+			invalidateNearCacheObject(collectionName, object);
 		}
 	}
 	
@@ -447,8 +1187,10 @@ public class MongoDB {
 	}
 	/** Update documents */
 	public int update (String collectionName, Query query, Query modifier, UpdateOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.UPDATE).query(query, null);
 		try {
-			Update update = jongo.getCollection(collectionName).update(query.query, query.params);
+			Update update = jongo.getCollection(collectionName).withWriteConcern(writeConcern(collectionName, options != null ? options.writeConcern : null))
+				.update(query.query, query.params);
 			if(options != null) {
 				if(options.upsert) {
 					update.upsert();
@@ -457,24 +1199,204 @@ public class MongoDB {
 					update.multi();
 				}
 			}
-			return update.with(modifier.query, modifier.params).getN();
+			WriteResult result = update.with(modifier.query, modifier.params);
+			int n = result.wasAcknowledged() ? result.getN() : 0;
+			timer.documents(n);
+			return n;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Update failed", e);
 			return 0;
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName, query);
 		}
 	}
 
+	/** Track an object loaded from its collection, to update only the fields changed since */
+	public <T> Tracked<T> track (T object) {
+		return track(object.getClass().getSimpleName(), object, null);
+	}
+	/** Track an object loaded from a collection, to update only the fields changed since, optionally checking a version field */
+	public <T> Tracked<T> track (String collectionName, T object, String versionField) {
+		return new Tracked<>(this, collectionName, object, versionField);
+	}
+	/** Get a document by id and track it, null if it is missing */
+	public <T> Tracked<T> getTracked (Class<T> clazz, String id) {
+		return getTracked(clazz.getSimpleName(), id, clazz, null);
+	}
+	/** Get a document by id and track it, null if it is missing */
+	public <T> Tracked<T> getTracked (String collectionName, String id, Class<T> clazz, String versionField) {
+		T object = get(collectionName, id, clazz);
+		return object != null ? track(collectionName, object, versionField) : null;
+	}
+	/**
+	 * Write the fields of a tracked object changed since it was tracked with $set, $unset and $push, true if nothing changed.
+	 * False if it failed, or if the stored version no longer matches the tracked one, in which case reload and reapply the changes.
+	 */
+	public <T> boolean update (Tracked<T> tracked) {
+		DBObject document = marshall(tracked.getObject()).toDBObject();
+		DBObject modifier = tracked.changes(document);
+		if(modifier.keySet().isEmpty()) {
+			return true;
+		}
+		String collectionName = tracked.getCollectionName();
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.UPDATE);
+		try {
+			WriteResult result = getDBCollection(collectionName).update(trackedFilter(tracked), versioned(tracked, modifier), false, false, getWriteConcern(collectionName));
+			int n = result.wasAcknowledged() ? result.getN() : 1;
+			timer.documents(n);
+			if(n == 0) {
+				return false;
+			}
+			written(tracked, document);
+			return true;
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("Update failed", e);
+			return false;
+		} finally {
+			timer.stop();
+			invalidateNearCacheObject(collectionName, tracked.getObject());
+		}
+	}
+	/**
+	 * Write the changed fields of tracked objects with one unordered bulk write per collection, returns the number written.
+	 * Objects with a version field are updated one by one instead, a bulk result does not tell which of its updates missed their version.
+	 */
+	public <T> int bulkUpdate (List<Tracked<T>> trackedObjects) {
+		Map<String, List<Tracked<T>>> byCollection = new LinkedHashMap<>();
+		for(Tracked<T> tracked : trackedObjects) {
+			byCollection.computeIfAbsent(tracked.getCollectionName(), k -> new ArrayList<>()).add(tracked);
+		}
+		int written = 0;
+		for(Map.Entry<String, List<Tracked<T>>> collection : byCollection.entrySet()) {
+			written += bulkUpdate(collection.getKey(), collection.getValue());
+		}
+		return written;
+	}
+	private <T> int bulkUpdate (String collectionName, List<Tracked<T>> trackedObjects) {
+		List<Tracked<T>> changed = new ArrayList<>();
+		List<DBObject> documents = new ArrayList<>();
+		List<Tracked<T>> versionedObjects = new ArrayList<>();
+		BulkWriteOperation bulkWriteOperation = null;
+		for(Tracked<T> tracked : trackedObjects) {
+			DBObject document = marshall(tracked.getObject()).toDBObject();
+			DBObject modifier = tracked.changes(document);
+			if(modifier.keySet().isEmpty()) {
+				continue;
+			}
+			if(tracked.getVersionField() != null) {
+				versionedObjects.add(tracked);
+				continue;
+			}
+			if(bulkWriteOperation == null) {
+				bulkWriteOperation = getDBCollection(collectionName).initializeUnorderedBulkOperation();
+			}
+			bulkWriteOperation.find(trackedFilter(tracked)).updateOne(modifier);
+			changed.add(tracked);
+			documents.add(document);
+		}
+		int written = 0;
+		for(Tracked<T> tracked : versionedObjects) {
+			if(update(tracked)) {
+				written++;
+			}
+		}
+		if(changed.isEmpty()) {
+			return written;
+		}
+		boolean[] failed = new boolean[changed.size()];
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.BULK_WRITE);
+		try {
+			BulkWriteResult result = bulkWriteOperation.execute(getWriteConcern(collectionName));
+			timer.documents(result.isAcknowledged() ? result.getModifiedCount() : changed.size());
+		} catch (BulkWriteException e) {
+			timer.error(e);
+			timer.documents(changed.size() - e.getWriteErrors().size());
+			for(BulkWriteError error : e.getWriteErrors()) {
+				failed[error.getIndex()] = true;
+			}
+			logger.warn("BulkUpdate failed to write " + e.getWriteErrors().size() + " documents to " + collectionName);
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("BulkUpdate failed", e);
+			Arrays.fill(failed, true);
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName);
+		}
+		for(int i = 0; i < changed.size(); i++) {
+			if(!failed[i]) {
+				written(changed.get(i), documents.get(i));
+				written++;
+			}
+		}
+		return written;
+	}
+	private static DBObject trackedFilter (Tracked<?> tracked) {
+		BasicDBObject filter = new BasicDBObject("_id", tracked.id());
+		if(tracked.getVersionField() != null) {
+			filter.put(tracked.getVersionField(), tracked.getVersion());
+		}
+		return filter;
+	}
+	/** Add the version increment to a modifier, a missing or null version becomes 1 */
+	private static DBObject versioned (Tracked<?> tracked, DBObject modifier) {
+		if(tracked.getVersionField() != null) {
+			if(tracked.getVersion() != null) {
+				modifier.put("$inc", new BasicDBObject(tracked.getVersionField(), 1));
+			} else {
+				DBObject set = (DBObject) modifier.get("$set");
+				if(set == null) {
+					set = new BasicDBObject();
+					modifier.put("$set", set);
+				}
+				set.put(tracked.getVersionField(), 1);
+			}
+		}
+		return modifier;
+	}
+	private static long nextVersion (Tracked<?> tracked) {
+		return tracked.getVersion() != null ? tracked.getVersion().longValue() + 1 : 1;
+	}
+	/** Set the new version on the object and take a new snapshot of it */
+	private void written (Tracked<?> tracked, DBObject document) {
+		if(tracked.getVersionField() != null) {
+			long version = nextVersion(tracked);
+			try {
+				objectMapper.updateValue(tracked.getObject(), Collections.singletonMap(tracked.getVersionField(), version));
+			} catch (IOException e) {
+				logger.warn("Failed to set version of " + tracked.getObject(), e);
+			}
+			document.put(tracked.getVersionField(), version);
+		}
+		tracked.written(document);
+	}
+
 	/** Remove documents */
 	public <T> int remove (Class<T> clazz, Query query) {
 		return remove(clazz.getSimpleName(), query);
 	}
 	/** Remove documents */
 	public int remove (String collectionName, Query query) {
+		return remove(collectionName, query, null);
+	}
+	/** Remove documents with a write concern, returns 0 if it is unacknowledged */
+	public int remove (String collectionName, Query query, WriteConcern writeConcern) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.REMOVE).query(query, null);
 		try {
-			return jongo.getCollection(collectionName).remove(query.query, query.params).getN();
+			WriteResult result = jongo.getCollection(collectionName).withWriteConcern(writeConcern(collectionName, writeConcern)).remove(query.query, query.params);
+			int n = result.wasAcknowledged() ? result.getN() : 0;
+			timer.documents(n);
+			return n;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Remove failed", e);
 			return 0;
+		} finally {
+			timer.stop();
+			invalidateNearCache(collectionName, query);
 		}
 	}
 	
@@ -484,15 +1406,21 @@ public class MongoDB {
 	}
 	/** Get distinct values for a key */
 	public List<Object> distinct (String collectionName, String key, Query query) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.DISTINCT);
 		try {
 			Distinct distinct = jongo.getCollection(collectionName).distinct(key);
 			if(query != null) {
 				distinct.query(query.query, query.params);
 			}
-			return distinct.as(Object.class);
+			List<Object> results = distinct.as(Object.class);
+			timer.documents(results.size());
+			return results;
 		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Distint failed", e);
 			return null;
+		} finally {
+			timer.stop();
 		}
 	}
 	
@@ -500,10 +1428,24 @@ public class MongoDB {
 	public <T> List<T> aggregate (String collectionName, Query pipeline, Class<T> clazz) {
 		return aggregate(collectionName, Arrays.asList(pipeline), clazz);
 	}
-	/** Aggregate */
+	/** Aggregate, LazyDocument results keep the raw bytes of the documents */
 	public <T> List<T> aggregate (String collectionName, List<Query> pipelines, Class<T> clazz) {
+		return aggregate(collectionName, pipelines, clazz, null);
+	}
+	/** Aggregate, LazyDocument results keep the raw bytes of the documents */
+	public <T> List<T> aggregate (String collectionName, List<Query> pipelines, Class<T> clazz, AggregateOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.AGGREGATE);
 		try {
 			List<T> results = new ArrayList<>();
+			if(clazz == LazyDocument.class) {
+				try (com.mongodb.client.MongoCursor<LazyDocument> cursor = lazyAggregate(collectionName, pipelines, options)) {
+					while(cursor.hasNext()) {
+						results.add(clazz.cast(cursor.next()));
+					}
+				}
+				timer.documents(results.size());
+				return results;
+			}
 			Aggregate aggregate = null;
 			for(Query pipeline : pipelines) {
 				if(aggregate == null) {
@@ -513,15 +1455,506 @@ public class MongoDB {
 				}
 			}
 			if(aggregate != null) {
+				if(options != null) {
+					aggregate.options(aggregationOptions(options));
+				}
 				Aggregate.ResultsIterator<T> resultsIterator = aggregate.as(clazz);
 				while(resultsIterator.hasNext()) {
 					results.add(resultsIterator.next());
 				}
 			}
+			timer.documents(results.size());
 			return results;
 		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("Aggregate failed", e);
+			return null;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/** Aggregate as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> streamAggregate (String collectionName, List<Query> pipelines, Class<T> clazz) {
+		return streamAggregate(collectionName, pipelines, clazz, 0);
+	}
+	/** Aggregate as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> streamAggregate (String collectionName, List<Query> pipelines, Class<T> clazz, int batchSize) {
+		return streamAggregate(collectionName, pipelines, clazz, aggregateOptions().batchSize(batchSize));
+	}
+	/** Aggregate as a lazy stream, close the stream to release the cursor early */
+	public <T> Stream<T> streamAggregate (String collectionName, List<Query> pipelines, Class<T> clazz, AggregateOptions options) {
+		AggregateCursor<T> cursor = aggregateCursor(collectionName, pipelines, clazz, options);
+		if(cursor == null) {
+			return Stream.empty();
+		}
+		return closeableStream(cursor.iterator);
+	}
+	/** Aggregate and return a lazy cursor, it is closed once exhausted and must be closed if it is not, null if the aggregation failed */
+	public <T> AggregateCursor<T> aggregateCursor (String collectionName, List<Query> pipelines, Class<T> clazz, AggregateOptions options) {
+		try {
+			if(clazz == LazyDocument.class) {
+				@SuppressWarnings("unchecked")
+				com.mongodb.client.MongoCursor<T> cursor = (com.mongodb.client.MongoCursor<T>) lazyAggregate(collectionName, pipelines, options);
+				return new AggregateCursor<>(new AutoCloseIterator<>(cursor, cursor::close, metrics.start(collectionName, MongoMetrics.Operation.CURSOR)));
+			}
+			List<DBObject> pipeline = new ArrayList<>();
+			for(Query stage : pipelines) {
+				pipeline.add(toDBObject(stage));
+			}
+			Cursor cursor = jongo.getDatabase().getCollection(collectionName).aggregate(pipeline, aggregationOptions(options));
+			return new AggregateCursor<>(new AutoCloseIterator<>(unmarshallIterator(cursor, clazz), cursor, metrics.start(collectionName, MongoMetrics.Operation.CURSOR)));
+		} catch (MongoException e) {
+			logger.warn("Aggregate failed", e);
+			return null;
+		}
+	}
+	/** Aggregate into a collection with a final $out stage, which replaces it, and return a summary instead of the results */
+	public AggregateSummary aggregateOut (String collectionName, List<Query> pipelines, String target, AggregateOptions options) {
+		List<Query> stages = new ArrayList<>(pipelines);
+		stages.add(query("{$out:#}", target));
+		return aggregateInto(collectionName, stages, target, options);
+	}
+	/**
+	 * Aggregate into a collection with a final $merge stage and return a summary instead of the results.
+	 * Results are matched on _id, whenMatched is the $merge action for existing documents, like replace, merge or keepExisting.
+	 */
+	public AggregateSummary aggregateMerge (String collectionName, List<Query> pipelines, String target, String whenMatched, AggregateOptions options) {
+		List<Query> stages = new ArrayList<>(pipelines);
+		stages.add(query("{$merge:{into:#,whenMatched:#,whenNotMatched:'insert'}}", target, whenMatched));
+		return aggregateInto(collectionName, stages, target, options);
+	}
+	/** Run an aggregation ending in $out or $merge without reading back its output, null if it failed */
+	private AggregateSummary aggregateInto (String collectionName, List<Query> pipelines, String target, AggregateOptions options) {
+		MongoMetrics.Timer timer = metrics.start(collectionName, MongoMetrics.Operation.AGGREGATE);
+		long start = System.currentTimeMillis();
+		try {
+			List<org.bson.conversions.Bson> pipeline = new ArrayList<>();
+			for(Query stage : pipelines) {
+				pipeline.add(toBson(stage));
+			}
+			com.mongodb.client.MongoDatabase database = mongoClient.getDatabase(config.getDbName());
+			AggregateIterable<org.bson.Document> aggregate = applyOptions(database.getCollection(collectionName).aggregate(pipeline), options);
+			if(pipeline.get(pipeline.size() - 1) instanceof DBObject && ((DBObject) pipeline.get(pipeline.size() - 1)).containsField("$out")) {
+				aggregate.toCollection();
+			} else {
+				// the driver does not know $merge, the server runs it and returns an empty cursor
+				aggregate.iterator().close();
+			}
+			long count = database.getCollection(target).estimatedDocumentCount();
+			timer.documents(count);
+			return new AggregateSummary(target, count, System.currentTimeMillis() - start);
+		} catch (MongoException e) {
+			timer.error(e);
 			logger.warn("Aggregate failed", e);
 			return null;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Aggregate and pass each result to the consumer without holding them in memory */
+	public <T> void forEachAggregate (String collectionName, List<Query> pipelines, Class<T> clazz, Consumer<? super T> consumer) {
+		forEachAggregate(collectionName, pipelines, clazz, 0, consumer);
+	}
+	/** Aggregate and pass each result to the consumer without holding them in memory */
+	public <T> void forEachAggregate (String collectionName, List<Query> pipelines, Class<T> clazz, int batchSize, Consumer<? super T> consumer) {
+		try (Stream<T> stream = streamAggregate(collectionName, pipelines, clazz, batchSize)) {
+			stream.forEach(consumer);
+		}
+	}
+	
+	/** Get distinct values for a key as a lazy stream, backed by an aggregation cursor instead of a single result document */
+	public Stream<Object> streamDistinct (String collectionName, String key, Query query) {
+		return streamDistinct(collectionName, key, query, 0);
+	}
+	/** Get distinct values for a key as a lazy stream, backed by an aggregation cursor instead of a single result document */
+	public Stream<Object> streamDistinct (String collectionName, String key, Query query, int batchSize) {
+		List<Query> pipelines = new ArrayList<>();
+		if(query != null) {
+			pipelines.add(query("{$match:" + query.query + "}", query.params));
+		}
+		pipelines.add(query("{$unwind:#}", "$" + key));
+		pipelines.add(query("{$group:{_id:#}}", "$" + key));
+		return streamAggregate(collectionName, pipelines, Map.class, batchSize).map(result -> result.get("_id"));
+	}
+	/** Get distinct values for a key and pass each one to the consumer without holding them in memory */
+	public void forEachDistinct (String collectionName, String key, Query query, Consumer<Object> consumer) {
+		forEachDistinct(collectionName, key, query, 0, consumer);
+	}
+	/** Get distinct values for a key and pass each one to the consumer without holding them in memory */
+	public void forEachDistinct (String collectionName, String key, Query query, int batchSize, Consumer<Object> consumer) {
+		try (Stream<Object> stream = streamDistinct(collectionName, key, query, batchSize)) {
+			stream.forEach(consumer);
+		}
+	}
+	
+	/** Aggregate with the driver collection API, which reads each result as raw bytes */
+	private com.mongodb.client.MongoCursor<LazyDocument> lazyAggregate (String collectionName, List<Query> pipelines, AggregateOptions options) {
+		List<org.bson.conversions.Bson> pipeline = new ArrayList<>();
+		for(Query stage : pipelines) {
+			pipeline.add(toBson(stage));
+		}
+		return applyOptions(mongoClient.getDatabase(config.getDbName()).withCodecRegistry(codecRegistry)
+			.getCollection(collectionName, LazyDocument.class).aggregate(pipeline), options).iterator();
+	}
+	/** Aggregation options of the legacy API */
+	private static AggregationOptions aggregationOptions (AggregateOptions options) {
+		AggregationOptions.Builder aggregationOptions = AggregationOptions.builder();
+		if(options != null) {
+			if(options.allowDiskUse) {
+				aggregationOptions.allowDiskUse(true);
+			}
+			if(options.batchSize > 0) {
+				aggregationOptions.batchSize(options.batchSize);
+			}
+			if(options.maxTimeMillis > 0) {
+				aggregationOptions.maxTime(options.maxTimeMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		return aggregationOptions.build();
+	}
+	/** Apply aggregation options to the driver collection API */
+	private static <T> AggregateIterable<T> applyOptions (AggregateIterable<T> aggregate, AggregateOptions options) {
+		if(options != null) {
+			if(options.allowDiskUse) {
+				aggregate.allowDiskUse(true);
+			}
+			if(options.batchSize > 0) {
+				aggregate.batchSize(options.batchSize);
+			}
+			if(options.maxTimeMillis > 0) {
+				aggregate.maxTime(options.maxTimeMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		return aggregate;
+	}
+	
+	/** Register a resource to be closed on stop */
+	void closeOnStop (Closeable closeable) {
+		closeOnStop.add(closeable);
+	}
+	/** Unregister a resource that was closed before stop */
+	void removeCloseOnStop (Closeable closeable) {
+		closeOnStop.remove(closeable);
+	}
+	/** Create a factory of named daemon threads for background work */
+	static ThreadFactory daemonThreadFactory (final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	/**
+	 * Run a read, and if it has not answered by the hedge deadline send the same read with the hedge read preference, the first success wins.
+	 * The deadline is the hedge percentile of the recent latencies of the operation on the collection, or the hedge delay until there are enough of them.
+	 * The losing read is not cancelled, its result is dropped. When the hedge pool is saturated the read runs on the calling thread, or is not hedged.
+	 */
+	private <T> T hedgedRead (String collectionName, MongoMetrics.Operation operation, ReadPreference readPreference, Function<ReadPreference, T> read) {
+		ThreadPoolExecutor executor = hedgeExecutor;
+		if(executor == null) {
+			return read.apply(readPreference);
+		}
+		CompletableFuture<T> first;
+		try {
+			first = CompletableFuture.supplyAsync(() -> read.apply(readPreference), executor);
+		} catch (RejectedExecutionException e) {
+			return read.apply(readPreference);
+		}
+		try {
+			return first.get(hedgeDelayMillis(collectionName, operation), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// slower than usual, hedge
+		} catch (ExecutionException e) {
+			throw readFailure(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MongoInterruptedException("Interrupted waiting for a read", e);
+		}
+		CompletableFuture<T> second;
+		try {
+			second = CompletableFuture.supplyAsync(() -> read.apply(hedgeReadPreference), executor);
+		} catch (RejectedExecutionException e) {
+			return awaitRead(first);
+		}
+		metrics.hedged(false);
+		CompletableFuture<T> winner = new CompletableFuture<>();
+		first.whenComplete((result, error) -> {
+			if(error == null) {
+				winner.complete(result);
+			} else if(second.isCompletedExceptionally()) {
+				winner.completeExceptionally(error);
+			}
+		});
+		second.whenComplete((result, error) -> {
+			if(error == null) {
+				if(winner.complete(result)) {
+					metrics.hedged(true);
+				}
+			} else if(first.isCompletedExceptionally()) {
+				winner.completeExceptionally(error);
+			}
+		});
+		return awaitRead(winner);
+	}
+	private static <T> T awaitRead (CompletableFuture<T> read) {
+		try {
+			return read.get();
+		} catch (ExecutionException e) {
+			throw readFailure(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MongoInterruptedException("Interrupted waiting for a read", e);
+		}
+	}
+	private long hedgeDelayMillis (String collectionName, MongoMetrics.Operation operation) {
+		long percentileMicros = metrics.recentPercentileMicros(collectionName, operation, config.getHedgePercentile(), 100);
+		if(percentileMicros < 0) {
+			return config.getHedgeDelayMillis();
+		}
+		return Math.max(config.getMinHedgeDelayMillis(), percentileMicros / 1000);
+	}
+	private static RuntimeException readFailure (Throwable cause) {
+		while(cause instanceof java.util.concurrent.CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if(cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		return new MongoException("Read failed", cause);
+	}
+	/** Invalidate all cached documents of a collection */
+	void invalidateNearCache (String collectionName) {
+		if(!nearCaches.isEmpty()) {
+			NearCache nearCache = nearCaches.get(collectionName);
+			if(nearCache != null) {
+				nearCache.invalidateAll();
+			}
+		}
+	}
+	/** Invalidate cached documents matched by a query, only the id is invalidated for id queries */
+	private void invalidateNearCache (String collectionName, Query query) {
+		if(!nearCaches.isEmpty()) {
+			NearCache nearCache = nearCaches.get(collectionName);
+			if(nearCache != null) {
+				if("{_id:#}".equals(query.query) && query.params.length == 1 && query.params[0] instanceof String) {
+					nearCache.invalidate(query.params[0]);
+				} else {
+					nearCache.invalidateAll();
+				}
+			}
+		}
+	}
+	/** Start a driver session, for the operation time of the commands run in it */
+	com.mongodb.client.ClientSession startSession () {
+		return mongoClient.startSession();
+	}
+	/** Get the driver database, for the APIs jongo does not cover */
+	com.mongodb.client.MongoDatabase getMongoDatabase () {
+		return mongoClient.getDatabase(config.getDbName());
+	}
+	/** Get the _id of an object, generating an ObjectId for it first if it has none */
+	Object objectId (Object object) {
+		ObjectIdUpdater objectIdUpdater = jongo.getMapper().getObjectIdUpdater();
+		if(objectIdUpdater.mustGenerateObjectId(object)) {
+			objectIdUpdater.setObjectId(object, new org.bson.types.ObjectId());
+		}
+		return objectIdUpdater.getId(object);
+	}
+	/** Invalidate the cached document of an object by its id */
+	private void invalidateNearCacheObject (String collectionName, Object object) {
+		if(!nearCaches.isEmpty()) {
+			NearCache nearCache = nearCaches.get(collectionName);
+			if(nearCache != null) {
+				Object id = jongo.getMapper().getObjectIdUpdater().getId(object);
+				if(id instanceof String) {
+					nearCache.invalidate(id);
+				} else {
+					nearCache.invalidateAll();
+				}
+			}
+		}
+	}
+	/** Options with the projection derived from the result class, if auto projection is on and the options have no projection */
+	private FindOneOptions withAutoProjection (FindOneOptions options, Class<?> clazz) {
+		Query projection = autoProjection(options != null ? options.projection : null, clazz);
+		if(projection == null) {
+			return options;
+		}
+		return new FindOneOptions(projection, options != null ? options.orderBy : null).readPreference(options != null ? options.readPreference : null);
+	}
+	/** Options with the projection derived from the result class, if auto projection is on and the options have no projection */
+	private FindOptions withAutoProjection (FindOptions options, Class<?> clazz) {
+		Query projection = autoProjection(options != null ? options.projection : null, clazz);
+		if(projection == null) {
+			return options;
+		}
+		if(options == null) {
+			return findOptions().projection(projection);
+		}
+		return new FindOptions(projection, options.limit, options.skip, options.sort, options.hint).batchSize(options.batchSize).readPreference(options.readPreference);
+	}
+	/** Options read from another read preference, null keeps the read preference of the options */
+	private FindOneOptions withReadPreference (FindOneOptions options, ReadPreference readPreference) {
+		if(readPreference == null || (options != null && readPreference.equals(options.readPreference))) {
+			return options;
+		}
+		if(options == null) {
+			return findOneOptions().readPreference(readPreference);
+		}
+		return new FindOneOptions(options.projection, options.orderBy).readPreference(readPreference);
+	}
+	/** Options read from another read preference, null keeps the read preference of the options */
+	private FindOptions withReadPreference (FindOptions options, ReadPreference readPreference) {
+		if(readPreference == null || (options != null && readPreference.equals(options.readPreference))) {
+			return options;
+		}
+		if(options == null) {
+			return findOptions().readPreference(readPreference);
+		}
+		return new FindOptions(options.projection, options.limit, options.skip, options.sort, options.hint).batchSize(options.batchSize).readPreference(readPreference);
+	}
+	/** Options with the projection derived from the result class, if auto projection is on and the options have no projection */
+	private FindAndModifyOptions withAutoProjection (FindAndModifyOptions options, Class<?> clazz) {
+		Query projection = autoProjection(options != null ? options.projection : null, clazz);
+		if(projection == null) {
+			return options;
+		}
+		if(options == null) {
+			return findAndModifyOptions().projection(projection);
+		}
+		return new FindAndModifyOptions(projection, options.sort, options.returnNew, options.upsert);
+	}
+	/** Options with the projection derived from the result class, if auto projection is on and the options have no projection */
+	private FindAndRemoveOptions withAutoProjection (FindAndRemoveOptions options, Class<?> clazz) {
+		Query projection = autoProjection(options != null ? options.projection : null, clazz);
+		if(projection == null) {
+			return options;
+		}
+		return new FindAndRemoveOptions(projection, options != null ? options.sort : null);
+	}
+	/** Projection derived from a class, null if auto projection is off, a projection is already set or the class cannot be projected */
+	private Query autoProjection (Query projection, Class<?> clazz) {
+		if(autoProjection == null || projection != null) {
+			return null;
+		}
+		return autoProjection.get(clazz);
+	}
+	/** Check if an error is a duplicate key error, from the legacy or the MongoCollection API */
+	private static boolean isDuplicateKey (MongoException e) {
+		return e instanceof DuplicateKeyException || 
+			(e instanceof MongoWriteException && ((MongoWriteException) e).getError().getCategory() == ErrorCategory.DUPLICATE_KEY);
+	}
+	/** Get the driver collection */
+	DBCollection getDBCollection (String collectionName) {
+		return jongo.getDatabase().getCollection(collectionName);
+	}
+	/** Convert a query to a DBObject using the jongo query parser */
+	DBObject toDBObject (Query query) {
+		return jongo.createQuery(query.query, query.params).toDBObject();
+	}
+	/** Parse a query with the jongo query parser for the driver collection API */
+	org.bson.conversions.Bson toBson (Query query) {
+		DBObject dbObject = toDBObject(query);
+		return dbObject instanceof org.bson.conversions.Bson ? (org.bson.conversions.Bson) dbObject : new BasicDBObject(dbObject.toMap());
+	}
+	/** Marshall an object using the configured mapper */
+	org.jongo.bson.BsonDocument marshall (Object object) {
+		return mapper.getMarshaller().marshall(object);
+	}
+	/** Unmarshall a raw document the same way jongo does for find results */
+	<T> T unmarshall (DBObject dbObject, Class<T> clazz) {
+		return jongo.getMapper().getUnmarshaller().unmarshall(Bson.createDocument(dbObject), clazz);
+	}
+	/** Wrap a mapper so query strings are parsed once and cached as templates */
+	private static Mapper cachingQueries (final Mapper mapper) {
+		final QueryFactory queryFactory = new CachingQueryFactory(mapper.getQueryFactory(), mapper.getMarshaller());
+		return new Mapper() {
+			@Override
+			public Marshaller getMarshaller () {
+				return mapper.getMarshaller();
+			}
+			@Override
+			public Unmarshaller getUnmarshaller () {
+				return mapper.getUnmarshaller();
+			}
+			@Override
+			public ObjectIdUpdater getObjectIdUpdater () {
+				return mapper.getObjectIdUpdater();
+			}
+			@Override
+			public QueryFactory getQueryFactory () {
+				return queryFactory;
+			}
+		};
+	}
+	/** Lazily unmarshall raw documents from a cursor */
+	private <T> Iterator<T> unmarshallIterator (final Iterator<DBObject> iterator, final Class<T> clazz) {
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext () {
+				return iterator.hasNext();
+			}
+			@Override
+			public T next () {
+				return unmarshall(iterator.next(), clazz);
+			}
+		};
+	}
+	/** Wrap a cursor in a stream that releases it when exhausted or closed */
+	private static <T> Stream<T> closeableStream (Iterator<T> iterator, Closeable closeable, MongoMetrics.Timer timer) {
+		return closeableStream(new AutoCloseIterator<>(iterator, closeable, timer));
+	}
+	private static <T> Stream<T> closeableStream (AutoCloseIterator<T> autoCloseIterator) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(autoCloseIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+			.onClose(autoCloseIterator::close);
+	}
+	/** Iterator that closes the underlying cursor once it is exhausted */
+	private static class AutoCloseIterator<T> implements Iterator<T>, Closeable {
+		private final Iterator<T> iterator;
+		private final Closeable closeable;
+		private final MongoMetrics.Timer timer;
+		private boolean closed = false;
+		private AutoCloseIterator (Iterator<T> iterator, Closeable closeable, MongoMetrics.Timer timer) {
+			this.iterator = iterator;
+			this.closeable = closeable;
+			this.timer = timer;
+		}
+		@Override
+		public boolean hasNext () {
+			if(closed) {
+				return false;
+			}
+			try {
+				if(iterator.hasNext()) {
+					return true;
+				}
+			} catch (RuntimeException e) {
+				timer.error(e);
+				close();
+				throw e;
+			}
+			close();
+			return false;
+		}
+		@Override
+		public T next () {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			timer.addDocument();
+			return iterator.next();
+		}
+		@Override
+		public void close () {
+			if(!closed) {
+				closed = true;
+				timer.stop();
+				try {
+					closeable.close();
+				} catch (IOException e) {}
+			}
 		}
 	}
 
@@ -552,6 +1985,31 @@ public class MongoDB {
 			return Arrays.deepHashCode(new Object[] {query, params});
 		}
 	}
+	/** Query string parsed once into a cached template, bind parameters to create queries that skip parsing */
+	public static class QueryTemplate {
+		@Getter
+		private String template;
+		private QueryTemplate(String template) {
+			this.template = template;
+		}
+		/** Create a query from the template with parameters */
+		public Query bind (Object ... params) {
+			return new Query(template, params);
+		}
+		/** Whether the template could be precompiled, templates with parameters in keys or in $oid, $regex or $date are parsed on every execution */
+		public boolean isCompiled () {
+			return CachingQueryFactory.compile(template).isCacheable();
+		}
+		@Override
+		public String toString() {
+			return template;
+		}
+	}
+	/** Compile a query template, all queries with the same string share the cached template */
+	public static QueryTemplate compile (String template) {
+		CachingQueryFactory.compile(template);
+		return new QueryTemplate(template);
+	}
 	/** Create a query for document id field */
 	public static Query idQuery (Object id) {
 		return query("{_id:#}", id);
@@ -561,10 +2019,168 @@ public class MongoDB {
 		return new Query(query, params);
 	}
 	
+	/** Page of results with the token to continue from */
+	public static class Page<T> {
+		@Getter
+		private List<T> results;
+		@Getter
+		private String nextToken;
+		private Page(List<T> results, String nextToken) {
+			this.results = results;
+			this.nextToken = nextToken;
+		}
+		/** Whether there are more results after this page */
+		public boolean hasNext() {
+			return nextToken != null;
+		}
+	}
+	
+	/** Page of results with the total count of matching documents */
+	public static class CountedPage<T> {
+		@Getter
+		private List<T> results;
+		@Getter
+		private long total;
+		@Getter
+		private boolean totalCapped;
+		private CountedPage(List<T> results, long total, boolean totalCapped) {
+			this.results = results;
+			this.total = total;
+			this.totalCapped = totalCapped;
+		}
+	}
+	
+	/** Sort keys with _id as the final tie-breaker, used to seek to a position in sorted results */
+	private static class SortKeys {
+		private final List<String> keys = new ArrayList<>();
+		private final List<Boolean> ascending = new ArrayList<>();
+		private SortKeys() {}
+		/** Parse a sort, null if it cannot be translated to range predicates */
+		private static SortKeys parse (DBObject sort) {
+			SortKeys sortKeys = new SortKeys();
+			for(String key : sort.keySet()) {
+				Object direction = sort.get(key);
+				if(!(direction instanceof Number) || ((Number)direction).intValue() == 0) {
+					return null;
+				}
+				sortKeys.keys.add(key);
+				sortKeys.ascending.add(((Number)direction).intValue() > 0);
+			}
+			if(!sortKeys.keys.contains("_id")) {
+				sortKeys.keys.add("_id");
+				sortKeys.ascending.add(true);
+			}
+			return sortKeys;
+		}
+		private DBObject sortObject () {
+			BasicDBObject sortObject = new BasicDBObject();
+			for(int i = 0; i < keys.size(); i++) {
+				sortObject.put(keys.get(i), ascending.get(i) ? 1 : -1);
+			}
+			return sortObject;
+		}
+		private DBObject projection () {
+			BasicDBObject projection = new BasicDBObject();
+			for(String key : keys) {
+				projection.put(key, 1);
+			}
+			return projection;
+		}
+		/** Get the sort key values of a document, an array value in the path is returned as is */
+		private List<Object> values (DBObject document) {
+			List<Object> values = new ArrayList<>();
+			for(String key : keys) {
+				Object value = document;
+				for(String field : key.split("\\.")) {
+					if(value instanceof List) {
+						break;
+					}
+					if(!(value instanceof DBObject)) {
+						value = null;
+						break;
+					}
+					value = ((DBObject)value).get(field);
+				}
+				values.add(value);
+			}
+			return values;
+		}
+		/** 
+		 * Predicate for documents sorted after (or before) the given sort key values.
+		 * Null sorts before all other values. Returns null for array or embedded document values, which do not compare by range the same way they sort.
+		 */
+		private DBObject seekPredicate (List<Object> values, boolean after) {
+			List<DBObject> clauses = new ArrayList<>();
+			BasicDBObject equalPrefix = new BasicDBObject();
+			for(int i = 0; i < keys.size(); i++) {
+				String key = keys.get(i);
+				Object value = values.get(i);
+				if(value instanceof DBObject || value instanceof Map || value instanceof Collection) {
+					return null;
+				}
+				boolean greater = after == ascending.get(i);
+				if(greater) {
+					BasicDBObject clause = new BasicDBObject(equalPrefix);
+					clause.put(key, value == null ? new BasicDBObject("$ne", null) : new BasicDBObject("$gt", value));
+					clauses.add(clause);
+				} else if(value != null) {
+					BasicDBObject clause = new BasicDBObject(equalPrefix);
+					clause.put("$or", Arrays.asList(new BasicDBObject(key, new BasicDBObject("$lt", value)), new BasicDBObject(key, null)));
+					clauses.add(clause);
+				}
+				equalPrefix.put(key, value);
+			}
+			if(clauses.isEmpty()) {
+				// nothing sorts after (or before) these values
+				return new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<>()));
+			}
+			return new BasicDBObject("$or", clauses);
+		}
+		private String encodeToken (List<Object> values) {
+			BasicBSONObject token = new BasicBSONObject("s", sortObject()).append("v", values);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(new BasicBSONEncoder().encode(token));
+		}
+		private List<Object> decodeToken (String token) {
+			BSONObject decoded;
+			try {
+				decoded = new BasicBSONDecoder().readObject(Base64.getUrlDecoder().decode(token));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid continuation token", e);
+			}
+			Object sort = decoded.get("s");
+			Object values = decoded.get("v");
+			if(!(sort instanceof BSONObject) || !matches((BSONObject) sort) || !(values instanceof List) || ((List<?>) values).size() != keys.size()) {
+				throw new IllegalArgumentException("Continuation token does not match the sort");
+			}
+			return new ArrayList<>((List<?>) values);
+		}
+		/** Check the sort of a token has the same keys in the same order with the same directions, map equality ignores the order */
+		private boolean matches (BSONObject sort) {
+			if(sort == null) {
+				return false;
+			}
+			List<String> tokenKeys = new ArrayList<>(sort.keySet());
+			if(!tokenKeys.equals(keys)) {
+				return false;
+			}
+			for(int i = 0; i < keys.size(); i++) {
+				Object direction = sort.get(keys.get(i));
+				if(!(direction instanceof Number) || ((Number) direction).intValue() > 0 != ascending.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
 	/** Options for FindOne */
 	public static class FindOneOptions {
+		@Getter
 		private Query projection;
+		@Getter
 		private String orderBy;
+		@Getter
+		private ReadPreference readPreference;
 		private FindOneOptions() {}
 		private FindOneOptions(Query projection, String orderBy) {
 			projection(projection);
@@ -578,6 +2194,11 @@ public class MongoDB {
 			this.orderBy = orderBy;
 			return this;
 		}
+		/** Read preference of this read, null for the configured one */
+		public FindOneOptions readPreference(ReadPreference readPreference) {
+			this.readPreference = readPreference;
+			return this;
+		}
 	}
 	/** Create options for FindOne */
 	public static FindOneOptions findOneOptions () {
@@ -590,11 +2211,20 @@ public class MongoDB {
 	
 	/** Options for Find */
 	public static class FindOptions {
+		@Getter
 		private Query projection;
+		@Getter
 		private int limit;
+		@Getter
 		private int skip;
+		@Getter
 		private String sort;
+		@Getter
 		private String hint;
+		@Getter
+		private int batchSize;
+		@Getter
+		private ReadPreference readPreference;
 		private FindOptions() {}
 		private FindOptions(Query projection, int limit, int skip, String sort, String hint) {
 			projection(projection);
@@ -623,7 +2253,60 @@ public class MongoDB {
 			this.hint = hint;
 			return this;
 		}
+		public FindOptions batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		/** Read preference of this read, null for the configured one */
+		public FindOptions readPreference(ReadPreference readPreference) {
+			this.readPreference = readPreference;
+			return this;
+		}
 	}
+	/** Lazy cursor over aggregation results, released once exhausted or closed */
+	public static class AggregateCursor<T> implements Iterator<T>, Iterable<T>, Closeable {
+		private final AutoCloseIterator<T> iterator;
+		private AggregateCursor(AutoCloseIterator<T> iterator) {
+			this.iterator = iterator;
+		}
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+		@Override
+		public T next() {
+			return iterator.next();
+		}
+		@Override
+		public Iterator<T> iterator() {
+			return this;
+		}
+		@Override
+		public void close() {
+			iterator.close();
+		}
+	}
+	
+	/** Summary of an aggregation written to a collection */
+	public static class AggregateSummary {
+		@Getter
+		private String target;
+		/** Estimated number of documents in the target collection afterwards */
+		@Getter
+		private long count;
+		@Getter
+		private long durationMillis;
+		private AggregateSummary(String target, long count, long durationMillis) {
+			this.target = target;
+			this.count = count;
+			this.durationMillis = durationMillis;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+	
 	/** Create options for Find */
 	public static FindOptions findOptions () {
 		return new FindOptions();
@@ -633,6 +2316,39 @@ public class MongoDB {
 		return new FindOptions(projection, limit, skip, sort, hint);
 	}
 	
+	/** Options for Aggregate */
+	public static class AggregateOptions {
+		@Getter
+		private boolean allowDiskUse;
+		@Getter
+		private int batchSize;
+		@Getter
+		private long maxTimeMillis;
+		private AggregateOptions() {}
+		/** Let stages like $group and $sort write temporary files instead of failing at the memory limit */
+		public AggregateOptions allowDiskUse() {
+			return allowDiskUse(true);
+		}
+		public AggregateOptions allowDiskUse(boolean allowDiskUse) {
+			this.allowDiskUse = allowDiskUse;
+			return this;
+		}
+		/** Number of results per batch fetched by the cursor */
+		public AggregateOptions batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		/** Abort the aggregation on the server after this long */
+		public AggregateOptions maxTimeMillis(long maxTimeMillis) {
+			this.maxTimeMillis = maxTimeMillis;
+			return this;
+		}
+	}
+	/** Create options for Aggregate */
+	public static AggregateOptions aggregateOptions () {
+		return new AggregateOptions();
+	}
+	
 	/** Options for FindAndModify */
 	public static class FindAndModifyOptions {
 		private Query projection;
@@ -707,8 +2423,12 @@ public class MongoDB {
 	
 	/** Options for Update */
 	public static class UpdateOptions {
+		@Getter
 		private boolean upsert;
+		@Getter
 		private boolean multi;
+		@Getter
+		private WriteConcern writeConcern;
 		private UpdateOptions() {}
 		private UpdateOptions(boolean upsert, boolean multi) {
 			upsert(upsert);
@@ -728,6 +2448,11 @@ public class MongoDB {
 			this.multi = multi;
 			return this;
 		}
+		/** Write concern of this update, null for the one of the collection */
+		public UpdateOptions writeConcern(WriteConcern writeConcern) {
+			this.writeConcern = writeConcern;
+			return this;
+		}
 	}
 	/** Create options for Update */
 	public static UpdateOptions updateOptions () {
@@ -738,6 +2463,13 @@ public class MongoDB {
 		return new UpdateOptions(upsert, multi);
 	}
 
+	/** Storage backend mapping objects to documents */
+	public enum Backend {
+		/** Map objects with jongo */
+		JONGO,
+		/** Encode and decode objects straight to and from BSON with the driver's codec API */
+		CODEC
+	}
 	public static class Config {
 		@Getter
 		private String dbName = null;
@@ -749,5 +2481,62 @@ public class MongoDB {
 		private String password = null;
 		@Getter
 		private String authDB = null;
+		@Getter
+		private Backend backend = Backend.JONGO;
+		/** 
+		 * Project find, findOne, cursorFind, findAndModify and findAndRemove results to the fields of the result class when no projection is given.
+		 * Objects read this way are partial, do not write them back with set.
+		 */
+		@Getter
+		private boolean autoProjection = false;
+		/** Connections kept open per server */
+		@Getter
+		private int minPoolSize = 0;
+		/** Maximum connections per server */
+		@Getter
+		private int maxPoolSize = 100;
+		/** Maximum wait for a free connection */
+		@Getter
+		private int maxWaitMillis = 120000;
+		@Getter
+		private int connectTimeoutMillis = 10000;
+		/** Socket read timeout, 0 for none */
+		@Getter
+		private int socketTimeoutMillis = 0;
+		@Getter
+		private int serverSelectionTimeoutMillis = 30000;
+		/** Wire compressors in order of preference, zlib or snappy (snappy needs snappy-java), null for none */
+		@Getter
+		private List<String> compressors = null;
+		/** Default read preference: primary, primaryPreferred, secondary, secondaryPreferred or nearest */
+		@Getter
+		private String readPreference = "primary";
+		/** Maximum replication lag of secondaries read from, 0 for no limit, at least 90 if set */
+		@Getter
+		private long maxStalenessSeconds = 0;
+		/** Send a second read for findOne, find and get when the first has not answered by the hedge deadline */
+		@Getter
+		private boolean hedgedReads = false;
+		/** Read preference of the hedge request, for another member than the first read */
+		@Getter
+		private String hedgeReadPreference = "secondaryPreferred";
+		/** Percentile of the latencies of the operation in the last 30 to 60 seconds used as hedge deadline */
+		@Getter
+		private double hedgePercentile = 0.95;
+		/** Hedge deadline while an operation has fewer than 100 recent latencies */
+		@Getter
+		private long hedgeDelayMillis = 50;
+		/** Lower bound of the hedge deadline */
+		@Getter
+		private long minHedgeDelayMillis = 5;
+		/** Maximum number of threads running hedged reads, reads beyond it are not hedged */
+		@Getter
+		private int maxHedgeThreads = 64;
+		/** Default write concern by name, see writeConcern */
+		@Getter
+		private String writeConcern = "acknowledged";
+		/** Write concern names by collection, for collections that differ from the default */
+		@Getter
+		private Map<String, String> collectionWriteConcerns = null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,411 @@
+package com.jkoh.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Operation metrics of a MongoDB instance by collection and operation.
+ * Records count, errors, documents and a latency histogram per (collection, operation), in-flight operations
+ * and open cursors. Recording is lock free: counters are LongAdders and latencies go to fixed log-linear buckets.
+ */
+public class MongoMetrics {
+	public enum Operation {
+		INDEX,
+		COUNT,
+		COUNT_POSITION,
+		FIND_ONE,
+		FIND,
+		CURSOR,
+		FIND_AND_MODIFY,
+		FIND_AND_REMOVE,
+		SET,
+		BULK_SET,
+		BULK_WRITE,
+		INSERT,
+		UPDATE,
+		REMOVE,
+		DISTINCT,
+		AGGREGATE
+	}
+	/** Listener called after every recorded operation, on the thread that ran it, exceptions it throws are logged and ignored */
+	public interface Listener {
+		/** Called when an operation or cursor completes, error is null if it succeeded */
+		public void onOperation(String collectionName, Operation operation, long durationNanos, long documents, Throwable error);
+	}
+
+	private final static Logger logger = LoggerFactory.getLogger(MongoMetrics.class);
+	private static final Operation[] OPERATIONS = Operation.values();
+	private final Map<String, AtomicReferenceArray<OperationMetrics>> collections = new ConcurrentHashMap<>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger openCursors = new AtomicInteger();
+	private final LongAdder hedgedReads = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private volatile boolean enabled = true;
+	private volatile QueryProfiler profiler = null;
+
+	MongoMetrics () {}
+
+	public void addListener (Listener listener) {
+		listeners.add(listener);
+	}
+	public void removeListener (Listener listener) {
+		listeners.remove(listener);
+	}
+	/** Turn recording on or off, it is on by default */
+	public void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+	}
+	/** Clear all recorded values */
+	public void reset () {
+		collections.clear();
+		hedgedReads.reset();
+		hedgeWins.reset();
+	}
+	/** Number of operations currently running */
+	public int getInFlight () {
+		return inFlight.get();
+	}
+	/** Number of streaming cursors currently open */
+	public int getOpenCursors () {
+		return openCursors.get();
+	}
+	/** Number of reads that sent a hedge request */
+	public long getHedgedReads () {
+		return hedgedReads.sum();
+	}
+	/** Number of hedged reads answered first by the hedge request */
+	public long getHedgeWins () {
+		return hedgeWins.sum();
+	}
+	void hedged (boolean won) {
+		if(won) {
+			hedgeWins.increment();
+		} else {
+			hedgedReads.increment();
+		}
+	}
+	/**
+	 * Latency percentile in microseconds of the recent operations on a collection, over the last one to two windows,
+	 * -1 if they have fewer samples than minCount. The value is recomputed at most once per refresh interval.
+	 */
+	long recentPercentileMicros (String collectionName, Operation operation, double percentile, long minCount) {
+		AtomicReferenceArray<OperationMetrics> metrics = collections.get(collectionName);
+		OperationMetrics operationMetrics = metrics != null ? metrics.get(operation.ordinal()) : null;
+		if(operationMetrics == null) {
+			return -1;
+		}
+		return operationMetrics.recent.percentileMicros(percentile, minCount);
+	}
+
+	void setProfiler (QueryProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/** Start timing an operation */
+	Timer start (String collectionName, Operation operation) {
+		if(!enabled) {
+			return Timer.NOOP;
+		}
+		inFlight.incrementAndGet();
+		if(operation == Operation.CURSOR) {
+			openCursors.incrementAndGet();
+		}
+		return new Timer(this, collectionName, operation);
+	}
+	private void record (Timer timer, long durationNanos) {
+		inFlight.decrementAndGet();
+		if(timer.operation == Operation.CURSOR) {
+			openCursors.decrementAndGet();
+		}
+		AtomicReferenceArray<OperationMetrics> metrics = collections.get(timer.collectionName);
+		if(metrics == null) {
+			metrics = collections.computeIfAbsent(timer.collectionName, key -> new AtomicReferenceArray<>(OPERATIONS.length));
+		}
+		int index = timer.operation.ordinal();
+		OperationMetrics operationMetrics = metrics.get(index);
+		if(operationMetrics == null) {
+			metrics.compareAndSet(index, null, new OperationMetrics());
+			operationMetrics = metrics.get(index);
+		}
+		operationMetrics.record(durationNanos, timer.documents, timer.error != null);
+		for(Listener listener : listeners) {
+			try {
+				listener.onOperation(timer.collectionName, timer.operation, durationNanos, timer.documents, timer.error);
+			} catch (RuntimeException e) {
+				// record runs in the finally blocks of operations, a listener must not replace their result or skip cache invalidation
+				logger.warn("Metrics listener failed", e);
+			}
+		}
+		QueryProfiler profiler = this.profiler;
+		if(profiler != null && timer.query != null && timer.error == null) {
+			profiler.record(timer.collectionName, timer.operation, timer.query, timer.sort, durationNanos, timer.documents);
+		}
+	}
+
+	/** Get a snapshot of all recorded operations */
+	public Snapshot getSnapshot () {
+		List<OperationStats> operations = new ArrayList<>();
+		for(Map.Entry<String, AtomicReferenceArray<OperationMetrics>> entry : collections.entrySet()) {
+			AtomicReferenceArray<OperationMetrics> metrics = entry.getValue();
+			for(int i = 0; i < metrics.length(); i++) {
+				OperationMetrics operationMetrics = metrics.get(i);
+				if(operationMetrics != null) {
+					operations.add(operationMetrics.toStats(entry.getKey(), OPERATIONS[i]));
+				}
+			}
+		}
+		return new Snapshot(inFlight.get(), openCursors.get(), operations);
+	}
+
+	/** Timing of one operation, call stop exactly once */
+	static class Timer {
+		private static final Timer NOOP = new Timer(null, null, null);
+		private final MongoMetrics metrics;
+		private final String collectionName;
+		private final Operation operation;
+		private final long startNanos;
+		private long documents = 0;
+		private Throwable error = null;
+		private MongoDB.Query query = null;
+		private String sort = null;
+		private Timer (MongoMetrics metrics, String collectionName, Operation operation) {
+			this.metrics = metrics;
+			this.collectionName = collectionName;
+			this.operation = operation;
+			this.startNanos = metrics != null ? System.nanoTime() : 0;
+		}
+		void documents (long documents) {
+			this.documents = documents;
+		}
+		void addDocument () {
+			documents++;
+		}
+		void error (Throwable error) {
+			this.error = error;
+		}
+		/** Attach the filter and sort of the operation for the query profiler */
+		Timer query (MongoDB.Query query, String sort) {
+			if(metrics != null && metrics.profiler != null) {
+				this.query = query;
+				this.sort = sort;
+			}
+			return this;
+		}
+		void stop () {
+			if(metrics != null) {
+				metrics.record(this, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	/** Counters and latency histogram of one operation on one collection */
+	private static class OperationMetrics {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder documents = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final RecentLatencies recent = new RecentLatencies();
+		private void record (long durationNanos, long documentCount, boolean error) {
+			count.increment();
+			if(error) {
+				errors.increment();
+			}
+			documents.add(documentCount);
+			totalNanos.add(durationNanos);
+			latencies.record(durationNanos);
+			recent.record(durationNanos);
+		}
+		private OperationStats toStats (String collectionName, Operation operation) {
+			long[] buckets = latencies.snapshot();
+			long total = 0;
+			for(long bucket : buckets) {
+				total += bucket;
+			}
+			long countValue = count.sum();
+			return new OperationStats(collectionName, operation, countValue, errors.sum(), documents.sum(),
+				countValue == 0 ? 0 : totalNanos.sum() / countValue / 1000,
+				LatencyHistogram.percentile(buckets, total, 0.5), LatencyHistogram.percentile(buckets, total, 0.99),
+				LatencyHistogram.percentile(buckets, total, 0.999), LatencyHistogram.percentile(buckets, total, 1));
+		}
+	}
+
+	/**
+	 * Log-linear histogram of latencies in microseconds, exact below 16us and within 12.5% above.
+	 */
+	static class LatencyHistogram {
+		private static final int LINEAR = 16;
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		void record (long durationNanos) {
+			buckets.incrementAndGet(index(Math.max(0, durationNanos / 1000)));
+		}
+		long[] snapshot () {
+			long[] values = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; i++) {
+				values[i] = buckets.get(i);
+			}
+			return values;
+		}
+		private static int index (long micros) {
+			if(micros < LINEAR) {
+				return (int) micros;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return LINEAR + (exponent - 4) * SUB_BUCKETS + subBucket;
+		}
+		/** Upper bound in microseconds of the values in a bucket */
+		private static long upperBound (int index) {
+			if(index < LINEAR) {
+				return index;
+			}
+			int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+			int subBucket = (index - LINEAR) % SUB_BUCKETS;
+			long bound = ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+			return bound < 0 ? Long.MAX_VALUE : bound;
+		}
+		static long percentile (long[] buckets, long total, double percentile) {
+			if(total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if(seen >= rank && buckets[i] > 0) {
+					return upperBound(i);
+				}
+			}
+			return upperBound(buckets.length - 1);
+		}
+	}
+
+	/**
+	 * Latencies of the current and the previous window, the current one becomes the previous one when a window has passed.
+	 * The last percentile computed is cached for a refresh interval, so frequent readers do not copy the buckets on every call.
+	 */
+	static class RecentLatencies {
+		private static final long WINDOW_MILLIS = 30000;
+		private static final long REFRESH_MILLIS = 1000;
+		private volatile LatencyHistogram current = new LatencyHistogram();
+		private volatile LatencyHistogram previous = new LatencyHistogram();
+		private long rotatedAt = System.currentTimeMillis();
+		private volatile CachedPercentile cached = null;
+		void record (long durationNanos) {
+			current.record(durationNanos);
+		}
+		long percentileMicros (double percentile, long minCount) {
+			long now = System.currentTimeMillis();
+			CachedPercentile cachedValue = cached;
+			if(cachedValue != null && cachedValue.percentile == percentile && cachedValue.minCount == minCount && now - cachedValue.computedAt < REFRESH_MILLIS) {
+				return cachedValue.micros;
+			}
+			synchronized (this) {
+				if(now - rotatedAt >= 2 * WINDOW_MILLIS) {
+					previous = new LatencyHistogram();
+					current = new LatencyHistogram();
+					rotatedAt = now;
+				} else if(now - rotatedAt >= WINDOW_MILLIS) {
+					previous = current;
+					current = new LatencyHistogram();
+					rotatedAt = now;
+				}
+				long[] buckets = previous.snapshot();
+				long[] currentBuckets = current.snapshot();
+				long total = 0;
+				for(int i = 0; i < buckets.length; i++) {
+					buckets[i] += currentBuckets[i];
+					total += buckets[i];
+				}
+				long micros = total < minCount ? -1 : LatencyHistogram.percentile(buckets, total, percentile);
+				cached = new CachedPercentile(percentile, minCount, micros, now);
+				return micros;
+			}
+		}
+		private static class CachedPercentile {
+			private final double percentile;
+			private final long minCount;
+			private final long micros;
+			private final long computedAt;
+			private CachedPercentile (double percentile, long minCount, long micros, long computedAt) {
+				this.percentile = percentile;
+				this.minCount = minCount;
+				this.micros = micros;
+				this.computedAt = computedAt;
+			}
+		}
+	}
+
+	/** Stats of one operation on one collection, latencies in microseconds */
+	public static class OperationStats {
+		@Getter
+		private String collectionName;
+		@Getter
+		private Operation operation;
+		@Getter
+		private long count;
+		@Getter
+		private long errors;
+		@Getter
+		private long documents;
+		@Getter
+		private long meanMicros;
+		@Getter
+		private long p50Micros;
+		@Getter
+		private long p99Micros;
+		@Getter
+		private long p999Micros;
+		@Getter
+		private long maxMicros;
+		private OperationStats (String collectionName, Operation operation, long count, long errors, long documents,
+			long meanMicros, long p50Micros, long p99Micros, long p999Micros, long maxMicros) {
+			this.collectionName = collectionName;
+			this.operation = operation;
+			this.count = count;
+			this.errors = errors;
+			this.documents = documents;
+			this.meanMicros = meanMicros;
+			this.p50Micros = p50Micros;
+			this.p99Micros = p99Micros;
+			this.p999Micros = p999Micros;
+			this.maxMicros = maxMicros;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+	/** Snapshot of all metrics */
+	public static class Snapshot {
+		@Getter
+		private int inFlight;
+		@Getter
+		private int openCursors;
+		@Getter
+		private List<OperationStats> operations;
+		private Snapshot (int inFlight, int openCursors, List<OperationStats> operations) {
+			this.inFlight = inFlight;
+			this.openCursors = openCursors;
+			this.operations = operations;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.mongodb.*;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import lombok.Getter;
+
+/**
+ * Work queue of jobs stored in a collection, claimed in batches under a visibility timeout.
+ * A claim picks up to N visible jobs in priority order and leases them with one multi update, so a worker
+ * spends three round trips per batch instead of one findAndModify per job. Jobs whose lease expires become
+ * visible again; acks and nacks only apply while the lease is held and are written in bulk by a BulkWriter.
+ * Consumers poll with exponential backoff while the queue is empty, and are woken early by enqueues through this instance.
+ */
+public class MongoQueue<T> implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(MongoQueue.class);
+	private static final String PAYLOAD = "payload";
+	private static final String PRIORITY = "priority";
+	private static final String VISIBLE_AT = "visibleAt";
+	private static final String OWNER = "owner";
+	private static final String ATTEMPTS = "attempts";
+	private static final String CREATED_AT = "createdAt";
+	private static final DBObject ORDER = new BasicDBObject(PRIORITY, -1).append(VISIBLE_AT, 1);
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Class<T> clazz;
+	private final Options options;
+	private final BulkWriter acks;
+	private final Set<Job<T>> inFlight = ConcurrentHashMap.newKeySet();
+	private final List<Poller> pollers = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService renewer;
+	private final Object wakeup = new Object();
+	private volatile boolean closed = false;
+
+	MongoQueue (MongoDB mongoDB, String collectionName, Class<T> clazz, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.clazz = clazz;
+		this.options = options;
+		this.acks = new BulkWriter(mongoDB, collectionName, BulkWriter.bulkWriterOptions().flushIntervalMillis(options.ackIntervalMillis));
+		mongoDB.index(collectionName, "{" + PRIORITY + ":-1," + VISIBLE_AT + ":1}", true);
+		mongoDB.index(collectionName, "{" + OWNER + ":1}", "{sparse:true,background:true}");
+		this.renewer = Executors.newSingleThreadScheduledExecutor(MongoDB.daemonThreadFactory("queue-renew-" + collectionName));
+		long renewInterval = Math.max(1, options.visibilityTimeoutMillis / 2);
+		this.renewer.scheduleWithFixedDelay(() -> renewAll(inFlight), renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/** Add a job with priority 0 */
+	public boolean enqueue (T payload) {
+		return enqueue(payload, 0, 0);
+	}
+	/** Add a job, higher priorities are claimed first */
+	public boolean enqueue (T payload, int priority) {
+		return enqueue(payload, priority, 0);
+	}
+	/** Add a job that becomes visible after a delay, higher priorities are claimed first */
+	public boolean enqueue (T payload, int priority, long delayMillis) {
+		return enqueueAll(Collections.singletonList(payload), priority, delayMillis) == 1;
+	}
+	/** Add jobs in one bulk insert and return the number added */
+	public int enqueueAll (List<T> payloads, int priority) {
+		return enqueueAll(payloads, priority, 0);
+	}
+	/** Add jobs that become visible after a delay in one bulk insert and return the number added */
+	public int enqueueAll (List<T> payloads, int priority, long delayMillis) {
+		if(payloads.isEmpty()) {
+			return 0;
+		}
+		Date now = new Date();
+		Date visibleAt = new Date(now.getTime() + delayMillis);
+		List<DBObject> documents = new ArrayList<>(payloads.size());
+		for(T payload : payloads) {
+			documents.add(new BasicDBObject("_id", new ObjectId())
+				.append(PAYLOAD, mongoDB.marshall(payload).toDBObject())
+				.append(PRIORITY, priority)
+				.append(VISIBLE_AT, visibleAt)
+				.append(ATTEMPTS, 0)
+				.append(CREATED_AT, now));
+		}
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.INSERT);
+		try {
+			mongoDB.getDBCollection(collectionName).insert(documents, new InsertOptions().continueOnError(true));
+			timer.documents(documents.size());
+			wakeUp();
+			return documents.size();
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("MongoQueue enqueue failed", e);
+			return 0;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/** Claim up to max visible jobs in priority order, leased for the visibility timeout */
+	public List<Job<T>> claim (int max) {
+		Date now = new Date();
+		DBCollection collection = mongoDB.getDBCollection(collectionName);
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.FIND_AND_MODIFY);
+		try {
+			DBObject visible = new BasicDBObject(VISIBLE_AT, new BasicDBObject("$lte", now));
+			List<Object> ids = new ArrayList<>(max);
+			try (DBCursor cursor = collection.find(visible, new BasicDBObject("_id", 1)).sort(ORDER).limit(max)) {
+				while(cursor.hasNext()) {
+					ids.add(cursor.next().get("_id"));
+				}
+			}
+			if(ids.isEmpty()) {
+				return Collections.emptyList();
+			}
+			String lease = new ObjectId().toHexString();
+			Date leasedUntil = new Date(now.getTime() + options.visibilityTimeoutMillis);
+			// only jobs still visible are leased, jobs taken by another worker in the meantime are skipped
+			collection.update(new BasicDBObject("_id", new BasicDBObject("$in", ids)).append(VISIBLE_AT, new BasicDBObject("$lte", now)),
+				new BasicDBObject("$set", new BasicDBObject(OWNER, lease).append(VISIBLE_AT, leasedUntil)).append("$inc", new BasicDBObject(ATTEMPTS, 1)),
+				false, true);
+			List<Job<T>> jobs = new ArrayList<>(ids.size());
+			try (DBCursor cursor = collection.find(new BasicDBObject(OWNER, lease)).sort(ORDER)) {
+				while(cursor.hasNext()) {
+					DBObject document = cursor.next();
+					jobs.add(new Job<>(document.get("_id"), lease, mongoDB.unmarshall((DBObject) document.get(PAYLOAD), clazz),
+						((Number) document.get(PRIORITY)).intValue(), ((Number) document.get(ATTEMPTS)).intValue()));
+				}
+			}
+			timer.documents(jobs.size());
+			return jobs;
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("MongoQueue claim failed", e);
+			return Collections.emptyList();
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Extend the lease of a job by the visibility timeout, false if the lease was lost */
+	public boolean renew (Job<T> job) {
+		return renewAll(Collections.singletonList(job)) == 1;
+	}
+	/** Extend the leases of jobs by the visibility timeout in one bulk write and return the number still leased */
+	public int renewAll (Collection<Job<T>> jobs) {
+		jobs = new ArrayList<>(jobs);
+		if(jobs.isEmpty()) {
+			return 0;
+		}
+		Date leasedUntil = new Date(System.currentTimeMillis() + options.visibilityTimeoutMillis);
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.BULK_WRITE);
+		try {
+			BulkWriteOperation bulkWriteOperation = mongoDB.getDBCollection(collectionName).initializeUnorderedBulkOperation();
+			for(Job<T> job : jobs) {
+				bulkWriteOperation.find(leased(job)).updateOne(new BasicDBObject("$set", new BasicDBObject(VISIBLE_AT, leasedUntil)));
+			}
+			int renewed = bulkWriteOperation.execute().getMatchedCount();
+			timer.documents(renewed);
+			return renewed;
+		} catch (MongoException e) {
+			timer.error(e);
+			logger.warn("MongoQueue renew failed", e);
+			return 0;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Remove a finished job, acks are batched and the future completes once written, with false if it failed */
+	public CompletableFuture<Boolean> ack (Job<T> job) {
+		inFlight.remove(job);
+		return acks.remove(leasedQuery(job));
+	}
+	/** Release a job to be claimed again after a delay, batched like acks */
+	public CompletableFuture<Boolean> nack (Job<T> job, long delayMillis) {
+		inFlight.remove(job);
+		return acks.update(leasedQuery(job), MongoDB.query("{$set:{" + VISIBLE_AT + ":#},$unset:{" + OWNER + ":1}}",
+			new Date(System.currentTimeMillis() + delayMillis)));
+	}
+	/** Write pending acks and nacks now */
+	public CompletableFuture<Void> flush () {
+		return acks.flush();
+	}
+
+	/**
+	 * Claim and handle jobs until the queue is closed, with the given number of workers.
+	 * Jobs are acked when the handler returns and released after the retry delay when it throws,
+	 * and their leases are renewed while the handler runs.
+	 */
+	public Closeable consume (int workers, Consumer<? super T> handler) {
+		Poller poller = new Poller(workers, handler);
+		pollers.add(poller);
+		return poller;
+	}
+	/** Stop the consumers, write pending acks and release jobs still in flight */
+	@Override
+	public void close () {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		mongoDB.removeCloseOnStop(this);
+		for(Poller poller : pollers) {
+			poller.close();
+		}
+		renewer.shutdown();
+		for(Job<T> job : new ArrayList<>(inFlight)) {
+			nack(job, 0);
+		}
+		acks.close();
+	}
+
+	private void wakeUp () {
+		synchronized (wakeup) {
+			wakeup.notifyAll();
+		}
+	}
+	private DBObject leased (Job<T> job) {
+		return new BasicDBObject("_id", job.id).append(OWNER, job.lease);
+	}
+	private Query leasedQuery (Job<T> job) {
+		return MongoDB.query("{_id:#," + OWNER + ":#}", job.id, job.lease);
+	}
+
+	/** Poller claiming batches for a pool of workers */
+	private class Poller implements Closeable, Runnable {
+		private final Consumer<? super T> handler;
+		private final Semaphore idle;
+		private final ExecutorService workers;
+		private final Thread poller;
+		private volatile boolean stopped = false;
+		private Poller (int workers, Consumer<? super T> handler) {
+			this.handler = handler;
+			this.idle = new Semaphore(workers);
+			this.workers = Executors.newFixedThreadPool(workers, MongoDB.daemonThreadFactory("queue-worker-" + collectionName));
+			this.poller = MongoDB.daemonThreadFactory("queue-poller-" + collectionName).newThread(this);
+			this.poller.start();
+		}
+		@Override
+		public void run () {
+			long backoff = options.minPollMillis;
+			while(!stopped) {
+				try {
+					idle.acquire();
+					int available = 1 + idle.drainPermits();
+					List<Job<T>> jobs = claim(Math.min(available, options.batchSize));
+					idle.release(available - jobs.size());
+					for(Job<T> job : jobs) {
+						inFlight.add(job);
+						workers.execute(() -> handle(job));
+					}
+					if(jobs.isEmpty()) {
+						synchronized (wakeup) {
+							wakeup.wait(backoff);
+						}
+						backoff = Math.min(backoff * 2, options.maxPollMillis);
+					} else {
+						backoff = options.minPollMillis;
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					logger.warn("MongoQueue consumer failed", e);
+				}
+			}
+		}
+		private void handle (Job<T> job) {
+			try {
+				handler.accept(job.payload);
+				ack(job);
+			} catch (RuntimeException e) {
+				logger.warn("MongoQueue job " + job.id + " failed", e);
+				nack(job, options.retryDelayMillis);
+			} finally {
+				idle.release();
+			}
+		}
+		@Override
+		public void close () {
+			stopped = true;
+			poller.interrupt();
+			workers.shutdown();
+			try {
+				if(!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+					logger.warn("MongoQueue workers for " + collectionName + " did not finish in time");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			pollers.remove(this);
+		}
+	}
+
+	/** Claimed job, acks, nacks and renewals only apply while its lease is held */
+	public static class Job<T> {
+		@Getter
+		private final Object id;
+		private final String lease;
+		@Getter
+		private final T payload;
+		@Getter
+		private final int priority;
+		/** Number of times the job was claimed, including this one */
+		@Getter
+		private final int attempts;
+		private Job (Object id, String lease, T payload, int priority, int attempts) {
+			this.id = id;
+			this.lease = lease;
+			this.payload = payload;
+			this.priority = priority;
+			this.attempts = attempts;
+		}
+	}
+
+	/** Options for MongoQueue */
+	public static class Options {
+		private long visibilityTimeoutMillis = 30000;
+		private int batchSize = 100;
+		private long minPollMillis = 10;
+		private long maxPollMillis = 1000;
+		private long retryDelayMillis = 1000;
+		private long ackIntervalMillis = 50;
+		private Options() {}
+		/** How long a claimed job stays hidden from other workers unless renewed */
+		public Options visibilityTimeoutMillis(long visibilityTimeoutMillis) {
+			this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+			return this;
+		}
+		/** Maximum number of jobs claimed per round trip by consumers */
+		public Options batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		/** Poll interval of consumers right after the queue became empty */
+		public Options minPollMillis(long minPollMillis) {
+			this.minPollMillis = minPollMillis;
+			return this;
+		}
+		/** Poll interval of consumers is doubled while the queue stays empty, up to this */
+		public Options maxPollMillis(long maxPollMillis) {
+			this.maxPollMillis = maxPollMillis;
+			return this;
+		}
+		/** Delay before a job whose handler threw can be claimed again */
+		public Options retryDelayMillis(long retryDelayMillis) {
+			this.retryDelayMillis = retryDelayMillis;
+			return this;
+		}
+		/** Acks and nacks are written at least this often */
+		public Options ackIntervalMillis(long ackIntervalMillis) {
+			this.ackIntervalMillis = ackIntervalMillis;
+			return this;
+		}
+	}
+	/** Create options for MongoQueue */
+	public static Options queueOptions () {
+		return new Options();
+	}
+}
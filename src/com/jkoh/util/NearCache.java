@@ -0,0 +1,160 @@
+package com.jkoh.util;
+
+import com.mongodb.DBObject;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+/**
+ * Bounded LRU cache of raw documents by id for one collection, used by MongoDB.get.
+ * Documents are kept in their raw form and unmarshalled on every hit, so callers never share instances.
+ * Missing ids can be cached as well for a separate TTL.
+ */
+public class NearCache {
+	private final Options options;
+	private final LinkedHashMap<Object, Entry> entries;
+	/** Bumped on every invalidation so loads that raced with a write are not cached */
+	private final AtomicLong generation = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	NearCache (Options options) {
+		this.options = options;
+		this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<Object, NearCache.Entry> eldest) {
+				if(size() > NearCache.this.options.maxSize) {
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/** Get a cached entry, null if it is not cached or has expired */
+	synchronized Entry lookup (Object id) {
+		Entry entry = entries.get(id);
+		if(entry != null && entry.expiresAt < System.currentTimeMillis()) {
+			entries.remove(id);
+			expirations.increment();
+			entry = null;
+		}
+		if(entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+	/** Current generation, read before loading a document */
+	long generation () {
+		return generation.get();
+	}
+	/** Cache a loaded document, or its absence if it is null, unless the cache was invalidated since the load started */
+	synchronized void put (Object id, DBObject document, long loadGeneration) {
+		long ttl = document != null ? options.ttlMillis : options.negativeTtlMillis;
+		if(ttl <= 0 || loadGeneration != generation.get()) {
+			return;
+		}
+		entries.put(id, new Entry(document, System.currentTimeMillis() + ttl));
+	}
+	/** Remove a document by id */
+	synchronized void invalidate (Object id) {
+		generation.incrementAndGet();
+		if(entries.remove(id) != null) {
+			invalidations.increment();
+		}
+	}
+	/** Remove all documents */
+	synchronized void invalidateAll () {
+		generation.incrementAndGet();
+		invalidations.add(entries.size());
+		entries.clear();
+	}
+
+	/** Get a snapshot of the cache statistics */
+	public Stats getStats () {
+		int size;
+		synchronized (this) {
+			size = entries.size();
+		}
+		return new Stats(size, hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), invalidations.sum());
+	}
+
+	/** Cached document, null document for a missing id */
+	static class Entry {
+		@Getter
+		private final DBObject document;
+		private final long expiresAt;
+		private Entry (DBObject document, long expiresAt) {
+			this.document = document;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/** Snapshot of near cache statistics */
+	public static class Stats {
+		@Getter
+		private long size;
+		@Getter
+		private long hits;
+		@Getter
+		private long misses;
+		@Getter
+		private long evictions;
+		@Getter
+		private long expirations;
+		@Getter
+		private long invalidations;
+		private Stats (long size, long hits, long misses, long evictions, long expirations, long invalidations) {
+			this.size = size;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.expirations = expirations;
+			this.invalidations = invalidations;
+		}
+		public double getHitRate () {
+			long requests = hits + misses;
+			return requests == 0 ? 0 : (double) hits / requests;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+
+	/** Options for NearCache */
+	public static class Options {
+		private int maxSize = 10000;
+		private long ttlMillis = 60000;
+		private long negativeTtlMillis = 0;
+		private Options() {}
+		/** Maximum number of cached ids, least recently used ids are evicted first */
+		public Options maxSize(int maxSize) {
+			this.maxSize = maxSize;
+			return this;
+		}
+		/** How long a document stays cached */
+		public Options ttlMillis(long ttlMillis) {
+			this.ttlMillis = ttlMillis;
+			return this;
+		}
+		/** How long a missing id stays cached, 0 to disable negative caching */
+		public Options negativeTtlMillis(long negativeTtlMillis) {
+			this.negativeTtlMillis = negativeTtlMillis;
+			return this;
+		}
+	}
+	/** Create options for NearCache */
+	public static Options nearCacheOptions () {
+		return new Options();
+	}
+}
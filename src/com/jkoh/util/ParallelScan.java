@@ -0,0 +1,435 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.mongodb.*;
+
+import lombok.Getter;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scan of a collection split into _id ranges, with one cursor per range.
+ * Ranges are split at the points returned by splitVector, or at quantiles of a $sample of _ids when the command is not
+ * available, as on mongos or without the privilege. Range queries on _id only match the BSON type of their bounds, so a last range
+ * holds the _ids of every other type, and a collection whose bounds are not all of one type is scanned as one range.
+ * forEach runs the ranges on a worker pool and can checkpoint the last _id handled in each range to a collection,
+ * so a scan that was interrupted resumes where each range stopped.
+ */
+public class ParallelScan<T> {
+	private final static Logger logger = LoggerFactory.getLogger(ParallelScan.class);
+	private static final DBObject ID_ORDER = new BasicDBObject("_id", 1);
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Query query;
+	private final Class<T> clazz;
+	private final Options options;
+	private final AtomicLong scanned = new AtomicLong();
+
+	ParallelScan (MongoDB mongoDB, String collectionName, Query query, Class<T> clazz, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.query = query;
+		this.clazz = clazz;
+		this.options = options;
+	}
+
+	/**
+	 * Pass every matching document to the consumer from the worker threads, and return true if every range completed.
+	 * A range stops at the first exception of the consumer. With a checkpoint collection, documents after the last checkpoint
+	 * of a range are passed again when the scan is resumed, and the checkpoints are removed once all ranges complete.
+	 */
+	public boolean forEach (Consumer<? super T> consumer) {
+		List<Range> ranges = options.checkpointCollection != null ? loadCheckpoints() : null;
+		if(ranges == null || ranges.isEmpty()) {
+			ranges = split();
+			saveCheckpoints(ranges);
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(options.parallelism, ranges.size()), MongoDB.daemonThreadFactory("scan-" + collectionName));
+		List<Future<Boolean>> results = new ArrayList<>();
+		for(Range range : ranges) {
+			results.add(workers.submit(() -> scan(range, consumer)));
+		}
+		workers.shutdown();
+		boolean completed = true;
+		for(Future<Boolean> result : results) {
+			try {
+				completed &= result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				workers.shutdownNow();
+				return false;
+			} catch (ExecutionException e) {
+				completed = false;
+			}
+		}
+		if(completed && options.checkpointCollection != null) {
+			checkpoints().remove(new BasicDBObject("scan", options.scanId));
+		}
+		return completed;
+	}
+	/**
+	 * Stream the matching documents as a parallel stream split by range, so ranges are read concurrently on the common pool.
+	 * Streams do not checkpoint, close the stream to release the cursors early.
+	 */
+	public Stream<T> stream () {
+		RangeSpliterator spliterator = new RangeSpliterator(split());
+		return StreamSupport.stream(spliterator, true).onClose(spliterator::close);
+	}
+	/** Number of documents passed to consumers or streams so far */
+	public long getScannedCount () {
+		return scanned.get();
+	}
+
+	/** Split the collection into ranges of about the same number of documents */
+	List<Range> split () {
+		List<Object> bounds = splitVector();
+		if(bounds == null) {
+			bounds = sampleBounds();
+		}
+		String boundType = bsonType(bounds);
+		if(!bounds.isEmpty() && boundType == null) {
+			logger.warn("Cannot split " + collectionName + " on _ids of several types, scanning it as one range");
+			bounds = Collections.emptyList();
+		}
+		List<Range> ranges = new ArrayList<>();
+		Object lower = null;
+		for(Object bound : bounds) {
+			ranges.add(new Range(ranges.size(), lower, bound, null));
+			lower = bound;
+		}
+		ranges.add(new Range(ranges.size(), lower, null, null));
+		if(!bounds.isEmpty()) {
+			ranges.add(new Range(ranges.size(), null, null, boundType));
+		}
+		return ranges;
+	}
+	/** $type alias of the bounds, null if they are of several types or of a type ranges cannot be split on */
+	private static String bsonType (List<Object> bounds) {
+		String type = null;
+		for(Object bound : bounds) {
+			String boundType = bound instanceof Number ? "number"
+				: bound instanceof String ? "string"
+				: bound instanceof ObjectId ? "objectId"
+				: bound instanceof Date ? "date"
+				: bound instanceof Boolean ? "bool"
+				: bound instanceof BSONTimestamp ? "timestamp"
+				: bound instanceof Binary || bound instanceof byte[] || bound instanceof UUID ? "binData"
+				: null;
+			if(boundType == null || (type != null && !type.equals(boundType))) {
+				return null;
+			}
+			type = boundType;
+		}
+		return type;
+	}
+	private List<Object> splitVector () {
+		DBCollection collection = mongoDB.getDBCollection(collectionName);
+		try {
+			long count = collection.getCount();
+			if(count == 0) {
+				return Collections.emptyList();
+			}
+			CommandResult result = collection.getDB().command(new BasicDBObject("splitVector", collection.getFullName())
+				.append("keyPattern", ID_ORDER)
+				.append("maxChunkSize", Integer.MAX_VALUE / (1024 * 1024))
+				.append("maxChunkObjects", Math.max(1, count / options.partitions)));
+			if(!result.ok()) {
+				logger.debug("splitVector unavailable on " + collectionName + ": " + result.getErrorMessage());
+				return null;
+			}
+			List<Object> bounds = new ArrayList<>();
+			for(Object splitKey : (List<?>) result.get("splitKeys")) {
+				bounds.add(((DBObject) splitKey).get("_id"));
+			}
+			return bounds;
+		} catch (MongoException e) {
+			logger.debug("splitVector failed on " + collectionName, e);
+			return null;
+		}
+	}
+	private List<Object> sampleBounds () {
+		int sampleSize = options.partitions * options.samplesPerPartition;
+		List<Comparable<Object>> ids = new ArrayList<>();
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.AGGREGATE);
+		try (Cursor cursor = mongoDB.getDBCollection(collectionName).aggregate(Arrays.asList(
+				new BasicDBObject("$sample", new BasicDBObject("size", sampleSize)),
+				new BasicDBObject("$project", new BasicDBObject("_id", 1))),
+				AggregationOptions.builder().allowDiskUse(true).build())) {
+			while(cursor.hasNext()) {
+				Object id = cursor.next().get("_id");
+				if(!(id instanceof Comparable)) {
+					logger.warn("Cannot split " + collectionName + " on _id of type " + id.getClass().getName() + ", scanning it as one range");
+					return Collections.emptyList();
+				}
+				@SuppressWarnings("unchecked")
+				Comparable<Object> comparable = (Comparable<Object>) id;
+				ids.add(comparable);
+			}
+			timer.documents(ids.size());
+			Collections.sort(ids);
+		} catch (MongoException | ClassCastException e) {
+			timer.error(e);
+			logger.warn("Sampling " + collectionName + " failed, scanning it as one range", e);
+			return Collections.emptyList();
+		} finally {
+			timer.stop();
+		}
+		List<Object> bounds = new ArrayList<>();
+		for(int i = 1; i < options.partitions; i++) {
+			Object bound = ids.isEmpty() ? null : ids.get(i * ids.size() / options.partitions);
+			if(bound != null && (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound))) {
+				bounds.add(bound);
+			}
+		}
+		return bounds;
+	}
+
+	/** Scan one range on the calling thread, false if it stopped early */
+	private boolean scan (Range range, Consumer<? super T> consumer) {
+		if(range.done) {
+			return true;
+		}
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.CURSOR);
+		long sinceCheckpoint = 0;
+		try (DBCursor cursor = open(range)) {
+			while(cursor.hasNext()) {
+				DBObject document = cursor.next();
+				consumer.accept(mongoDB.unmarshall(document, clazz));
+				timer.addDocument();
+				scanned.incrementAndGet();
+				range.last = document.get("_id");
+				if(++sinceCheckpoint >= options.checkpointInterval) {
+					saveCheckpoint(range);
+					sinceCheckpoint = 0;
+				}
+			}
+			range.done = true;
+			saveCheckpoint(range);
+			return true;
+		} catch (RuntimeException e) {
+			timer.error(e);
+			logger.warn("Scan of " + collectionName + " range " + range.index + " failed", e);
+			saveCheckpoint(range);
+			return false;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Open the cursor of a range, after its last checkpoint, the range of the other types is read again from its start */
+	DBCursor open (Range range) {
+		BasicDBObject idRange = new BasicDBObject();
+		if(range.excludedType != null) {
+			idRange.append("$not", new BasicDBObject("$type", range.excludedType));
+		} else if(range.last != null) {
+			idRange.append("$gt", range.last);
+		} else if(range.lower != null) {
+			idRange.append("$gte", range.lower);
+		}
+		if(range.upper != null) {
+			idRange.append("$lt", range.upper);
+		}
+		List<DBObject> conditions = new ArrayList<>();
+		if(query != null) {
+			conditions.add(mongoDB.toDBObject(query));
+		}
+		if(!idRange.isEmpty()) {
+			conditions.add(new BasicDBObject("_id", idRange));
+		}
+		DBObject rangeQuery = conditions.isEmpty() ? new BasicDBObject()
+			: conditions.size() == 1 ? conditions.get(0) : new BasicDBObject("$and", conditions);
+		DBCursor cursor = mongoDB.getDBCollection(collectionName).find(rangeQuery).sort(ID_ORDER).hint(ID_ORDER);
+		if(options.batchSize > 0) {
+			cursor.batchSize(options.batchSize);
+		}
+		return cursor;
+	}
+
+	private DBCollection checkpoints () {
+		return mongoDB.getDBCollection(options.checkpointCollection);
+	}
+	private List<Range> loadCheckpoints () {
+		List<Range> ranges = new ArrayList<>();
+		try (DBCursor cursor = checkpoints().find(new BasicDBObject("scan", options.scanId)).sort(new BasicDBObject("range", 1))) {
+			while(cursor.hasNext()) {
+				DBObject checkpoint = cursor.next();
+				Range range = new Range(((Number) checkpoint.get("range")).intValue(), checkpoint.get("lower"), checkpoint.get("upper"),
+					(String) checkpoint.get("excludedType"));
+				range.last = checkpoint.get("last");
+				range.done = Boolean.TRUE.equals(checkpoint.get("done"));
+				ranges.add(range);
+			}
+		} catch (MongoException e) {
+			logger.warn("Loading checkpoints of scan " + options.scanId + " failed", e);
+			return null;
+		}
+		if(!ranges.isEmpty()) {
+			logger.info("Resuming scan " + options.scanId + " of " + collectionName + " from its checkpoints");
+		}
+		return ranges;
+	}
+	private void saveCheckpoints (List<Range> ranges) {
+		if(options.checkpointCollection == null) {
+			return;
+		}
+		for(Range range : ranges) {
+			saveCheckpoint(range);
+		}
+	}
+	private void saveCheckpoint (Range range) {
+		if(options.checkpointCollection == null) {
+			return;
+		}
+		try {
+			checkpoints().save(new BasicDBObject("_id", options.scanId + ":" + range.index)
+				.append("scan", options.scanId)
+				.append("range", range.index)
+				.append("lower", range.lower)
+				.append("upper", range.upper)
+				.append("excludedType", range.excludedType)
+				.append("last", range.last)
+				.append("done", range.done));
+		} catch (MongoException e) {
+			logger.warn("Saving checkpoint of scan " + options.scanId + " failed", e);
+		}
+	}
+
+	/** Range of _ids from lower inclusive to upper exclusive, null bounds are open, or of the _ids not of the excluded type */
+	static class Range {
+		@Getter
+		private final int index;
+		@Getter
+		private final Object lower;
+		@Getter
+		private final Object upper;
+		@Getter
+		private final String excludedType;
+		private volatile Object last;
+		private volatile boolean done;
+		Range (int index, Object lower, Object upper, String excludedType) {
+			this.index = index;
+			this.lower = lower;
+			this.upper = upper;
+			this.excludedType = excludedType;
+		}
+	}
+	/** Spliterator over ranges, split by halving the ranges left and read one range cursor at a time */
+	private class RangeSpliterator implements Spliterator<T>, Closeable {
+		private final List<Range> ranges;
+		private final List<RangeSpliterator> splits = new CopyOnWriteArrayList<>();
+		private int next = 0;
+		private DBCursor cursor;
+		private MongoMetrics.Timer timer;
+		private RangeSpliterator (List<Range> ranges) {
+			this.ranges = ranges;
+		}
+		@Override
+		public boolean tryAdvance (Consumer<? super T> action) {
+			while(cursor == null || !cursor.hasNext()) {
+				closeCursor();
+				if(next >= ranges.size()) {
+					return false;
+				}
+				cursor = open(ranges.get(next++));
+				timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.CURSOR);
+			}
+			DBObject document = cursor.next();
+			timer.addDocument();
+			scanned.incrementAndGet();
+			action.accept(mongoDB.unmarshall(document, clazz));
+			return true;
+		}
+		@Override
+		public Spliterator<T> trySplit () {
+			int left = ranges.size() - next;
+			if(left < 2) {
+				return null;
+			}
+			int middle = next + left / 2;
+			RangeSpliterator split = new RangeSpliterator(new ArrayList<>(ranges.subList(middle, ranges.size())));
+			ranges.subList(middle, ranges.size()).clear();
+			splits.add(split);
+			return split;
+		}
+		@Override
+		public long estimateSize () {
+			return Long.MAX_VALUE;
+		}
+		@Override
+		public int characteristics () {
+			return Spliterator.NONNULL;
+		}
+		private void closeCursor () {
+			if(cursor != null) {
+				cursor.close();
+				timer.stop();
+				cursor = null;
+			}
+		}
+		@Override
+		public void close () {
+			closeCursor();
+			for(RangeSpliterator split : splits) {
+				split.close();
+			}
+		}
+	}
+
+	/** Options for ParallelScan */
+	public static class Options {
+		private int partitions = Runtime.getRuntime().availableProcessors() * 4;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private int samplesPerPartition = 20;
+		private int batchSize = 0;
+		private String checkpointCollection = null;
+		private String scanId = null;
+		private long checkpointInterval = 1000;
+		private Options() {}
+		/** Number of ranges to split the collection into */
+		public Options partitions(int partitions) {
+			this.partitions = partitions;
+			return this;
+		}
+		/** Number of ranges scanned at the same time by forEach */
+		public Options parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+		/** Number of sampled _ids per range when splitVector is not available */
+		public Options samplesPerPartition(int samplesPerPartition) {
+			this.samplesPerPartition = samplesPerPartition;
+			return this;
+		}
+		/** Cursor batch size of each range */
+		public Options batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		/** Save the progress of forEach as scanId in a collection and resume from it */
+		public Options checkpoint(String checkpointCollection, String scanId) {
+			this.checkpointCollection = checkpointCollection;
+			this.scanId = scanId;
+			return this;
+		}
+		/** Save the progress of a range after this many documents */
+		public Options checkpointInterval(long checkpointInterval) {
+			this.checkpointInterval = checkpointInterval;
+			return this;
+		}
+	}
+	/** Create options for ParallelScan */
+	public static Options parallelScanOptions () {
+		return new Options();
+	}
+}
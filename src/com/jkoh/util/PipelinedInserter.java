@@ -0,0 +1,164 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.mongodb.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fire-and-forget inserter for loss tolerant documents of a single collection, such as telemetry events.
+ * Documents are marshalled on the calling thread and queued, and one writer thread sends them as unacknowledged batch inserts,
+ * which do not wait for a reply, so batches follow each other on one connection with many writes in flight.
+ * Nothing reports whether a document was written: write errors, duplicate keys and documents dropped while the queue is full are lost.
+ */
+public class PipelinedInserter implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(PipelinedInserter.class);
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Options options;
+	private final BlockingQueue<DBObject> queue;
+	private final Thread writer;
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	/** Held shared by adds and exclusively by close, so no document is queued once the writer thread may have exited */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+
+	PipelinedInserter (MongoDB mongoDB, String collectionName, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.options = options;
+		this.queue = new ArrayBlockingQueue<>(options.capacity);
+		this.writer = MongoDB.daemonThreadFactory("inserter-" + collectionName).newThread(this::run);
+		this.writer.start();
+	}
+
+	/** Queue an object for insert, false if it was dropped because the queue is full */
+	public <T> boolean insert (T object) {
+		return add(mongoDB.marshall(object).toDBObject());
+	}
+	/** Queue a document for insert, false if it was dropped because the queue is full */
+	public boolean insert (Query document) {
+		return add(mongoDB.toDBObject(document));
+	}
+	/** Send the queued documents, then stop the writer thread */
+	@Override
+	public void close () {
+		closeLock.writeLock().lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		mongoDB.removeCloseOnStop(this);
+		try {
+			writer.join(TimeUnit.MINUTES.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(writer.isAlive()) {
+			logger.warn("PipelinedInserter for " + collectionName + " did not finish in time");
+		}
+	}
+	/** Number of documents sent, not necessarily written */
+	public long getSentCount () {
+		return sent.sum();
+	}
+	/** Number of documents dropped because the queue was full */
+	public long getDroppedCount () {
+		return dropped.sum();
+	}
+	/** Number of documents queued */
+	public int getPendingCount () {
+		return queue.size();
+	}
+
+	private boolean add (DBObject document) {
+		closeLock.readLock().lock();
+		try {
+			if(closed) {
+				throw new IllegalStateException("PipelinedInserter for " + collectionName + " is closed");
+			}
+			if(options.blockWhenFull) {
+				try {
+					queue.put(document);
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else if(queue.offer(document)) {
+				return true;
+			}
+			dropped.increment();
+			return false;
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+	private void run () {
+		InsertOptions insertOptions = new InsertOptions().writeConcern(WriteConcern.UNACKNOWLEDGED).continueOnError(true);
+		List<DBObject> batch = new ArrayList<>(options.maxBatchSize);
+		while(!closed || !queue.isEmpty()) {
+			try {
+				DBObject first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) {
+					continue;
+				}
+				batch.add(first);
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, options.maxBatchSize - 1);
+			MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.INSERT);
+			try {
+				mongoDB.getDBCollection(collectionName).insert(batch, insertOptions);
+				timer.documents(batch.size());
+				sent.add(batch.size());
+			} catch (RuntimeException e) {
+				timer.error(e);
+				logger.warn("PipelinedInserter batch failed", e);
+			} finally {
+				timer.stop();
+				batch.clear();
+			}
+		}
+	}
+
+	/** Options for PipelinedInserter */
+	public static class Options {
+		private int capacity = 100000;
+		private int maxBatchSize = 1000;
+		private boolean blockWhenFull = false;
+		private Options() {}
+		/** Maximum number of queued documents */
+		public Options capacity(int capacity) {
+			this.capacity = capacity;
+			return this;
+		}
+		/** Maximum number of documents per insert */
+		public Options maxBatchSize(int maxBatchSize) {
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+		/** Block callers while the queue is full instead of dropping their documents */
+		public Options blockWhenFull(boolean blockWhenFull) {
+			this.blockWhenFull = blockWhenFull;
+			return this;
+		}
+	}
+	/** Create options for PipelinedInserter */
+	public static Options pipelinedInserterOptions () {
+		return new Options();
+	}
+}
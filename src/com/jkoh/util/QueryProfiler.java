@@ -0,0 +1,422 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.jkoh.util.MongoMetrics.Operation;
+import com.mongodb.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+/**
+ * Slow query log of a MongoDB instance, grouped by query shape.
+ * A shape is the collection, operation, filter and sort with every value replaced by "?", so queries that differ only in
+ * parameters are grouped. Operations slower than the threshold, or sampled at the sample rate, are recorded, and the first time a
+ * shape is recorded its filter and sort are explained on a background thread. Shapes that scan the collection or examine many more
+ * documents than they return get an index suggestion, equality fields first, then sort fields, then range fields.
+ */
+public class QueryProfiler {
+	private final static Logger logger = LoggerFactory.getLogger(QueryProfiler.class);
+	private static final Set<String> EQUALITY_OPERATORS = new HashSet<>(Arrays.asList("$eq", "$in", "$all"));
+	private static final Set<String> RANGE_OPERATORS = new HashSet<>(Arrays.asList("$gt", "$gte", "$lt", "$lte", "$ne", "$nin", "$exists", "$regex", "$elemMatch", "$type", "$size", "$mod"));
+	private final MongoDB mongoDB;
+	private final Options options;
+	private final Map<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+	private final ExecutorService explainer;
+
+	QueryProfiler (MongoDB mongoDB, Options options) {
+		this.mongoDB = mongoDB;
+		this.options = options;
+		this.explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+			MongoDB.daemonThreadFactory("query-profiler"), new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/** Record a completed operation if it is slow or sampled */
+	void record (String collectionName, Operation operation, Query query, String sort, long durationNanos, long documents) {
+		boolean slow = durationNanos >= options.slowMillis * 1000000;
+		if(!slow && (options.sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= options.sampleRate)) {
+			return;
+		}
+		DBObject filter;
+		DBObject sortObject;
+		try {
+			filter = query != null ? mongoDB.toDBObject(query) : new BasicDBObject();
+			sortObject = sort != null ? mongoDB.toDBObject(MongoDB.query(sort)) : null;
+		} catch (RuntimeException e) {
+			return;
+		}
+		String key = collectionName + " " + operation + " " + JsonUtil.toJson(shape(filter)) + (sortObject != null ? " " + JsonUtil.toJson(shape(sortObject)) : "");
+		ShapeStats stats = shapes.get(key);
+		if(stats == null) {
+			if(shapes.size() >= options.maxShapes) {
+				return;
+			}
+			ShapeStats created = new ShapeStats(collectionName, operation, JsonUtil.toJson(shape(filter)), sortObject != null ? sortObject.toString() : null);
+			stats = shapes.putIfAbsent(key, created);
+			if(stats == null) {
+				stats = created;
+				if(options.explain) {
+					final ShapeStats explained = created;
+					explainer.execute(() -> explain(explained, filter, sortObject));
+				}
+			}
+		}
+		stats.record(durationNanos, documents, slow);
+		if(slow && options.logSlow) {
+			logger.warn("Slow " + operation + " on " + collectionName + " took " + durationNanos / 1000000 + "ms: " + stats.shape);
+		}
+	}
+
+	/** Get the recorded shapes, slowest total time first */
+	public List<ShapeStats> getShapes () {
+		List<ShapeStats> list = new ArrayList<>(shapes.values());
+		list.sort((a, b) -> Long.compare(b.totalNanos.sum(), a.totalNanos.sum()));
+		return list;
+	}
+	/** Get the suggested indexes, one per collection and index, for MongoDB.index */
+	public List<IndexSuggestion> getSuggestions () {
+		Map<String, IndexSuggestion> suggestions = new LinkedHashMap<>();
+		for(ShapeStats stats : getShapes()) {
+			if(stats.suggestedIndex == null) {
+				continue;
+			}
+			String key = stats.collectionName + " " + stats.suggestedIndex;
+			IndexSuggestion suggestion = suggestions.get(key);
+			if(suggestion == null) {
+				suggestion = new IndexSuggestion(stats.collectionName, stats.suggestedIndex);
+				suggestions.put(key, suggestion);
+			}
+			suggestion.shapes.add(stats.shape);
+			suggestion.count += stats.count.sum();
+			suggestion.totalMillis += stats.totalNanos.sum() / 1000000;
+		}
+		return new ArrayList<>(suggestions.values());
+	}
+	/** Get a report of the recorded shapes and suggested indexes for review */
+	public Report getReport () {
+		return new Report(getShapes(), getSuggestions());
+	}
+	/** Forget all recorded shapes */
+	public void reset () {
+		shapes.clear();
+	}
+	void close () {
+		explainer.shutdownNow();
+	}
+
+	/** Explain a shape once with the parameters of the first recorded query, running its plan for the execution stats, and derive an index suggestion */
+	private void explain (ShapeStats stats, DBObject filter, DBObject sort) {
+		try {
+			// DBCursor.explain only asks for queryPlanner verbosity, the examined counts need executionStats
+			DBCollection collection = mongoDB.getDBCollection(stats.collectionName);
+			BasicDBObject find = new BasicDBObject("find", collection.getName()).append("filter", filter);
+			if(sort != null) {
+				find.append("sort", sort);
+			}
+			CommandResult explain = collection.getDB().command(new BasicDBObject("explain", find).append("verbosity", "executionStats"));
+			explain.throwOnError();
+			DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+			DBObject winningPlan = queryPlanner != null ? (DBObject) queryPlanner.get("winningPlan") : null;
+			List<String> stages = new ArrayList<>();
+			stats.indexName = planStages(winningPlan, stages);
+			stats.collectionScan = stages.contains("COLLSCAN");
+			stats.inMemorySort = stages.contains("SORT");
+			DBObject executionStats = (DBObject) explain.get("executionStats");
+			if(executionStats != null) {
+				stats.keysExamined = ((Number) executionStats.get("totalKeysExamined")).longValue();
+				stats.docsExamined = ((Number) executionStats.get("totalDocsExamined")).longValue();
+				stats.returned = ((Number) executionStats.get("nReturned")).longValue();
+			}
+			stats.explained = true;
+			boolean inefficient = stats.collectionScan || stats.inMemorySort
+				|| stats.docsExamined > options.examinedRatio * Math.max(1, stats.returned);
+			if(inefficient) {
+				stats.suggestedIndex = suggestIndex(filter, sort);
+			}
+		} catch (RuntimeException e) {
+			logger.debug("Explain of " + stats.shape + " on " + stats.collectionName + " failed", e);
+		}
+	}
+	/** Collect the stages of a plan, and return the name of the index it uses */
+	private static String planStages (DBObject plan, List<String> stages) {
+		if(plan == null) {
+			return null;
+		}
+		String indexName = null;
+		stages.add(String.valueOf(plan.get("stage")));
+		if(plan.get("indexName") != null) {
+			indexName = String.valueOf(plan.get("indexName"));
+		}
+		List<DBObject> children = new ArrayList<>();
+		if(plan.get("inputStage") instanceof DBObject) {
+			children.add((DBObject) plan.get("inputStage"));
+		}
+		if(plan.get("inputStages") instanceof List) {
+			for(Object child : (List<?>) plan.get("inputStages")) {
+				children.add((DBObject) child);
+			}
+		}
+		for(DBObject child : children) {
+			String childIndex = planStages(child, stages);
+			if(indexName == null) {
+				indexName = childIndex;
+			}
+		}
+		return indexName;
+	}
+	/** Index on equality fields, then sort fields, then range fields, null if the filter has none */
+	static String suggestIndex (DBObject filter, DBObject sort) {
+		LinkedHashSet<String> equality = new LinkedHashSet<>();
+		LinkedHashSet<String> range = new LinkedHashSet<>();
+		collectFields(filter, equality, range);
+		BasicDBObject index = new BasicDBObject();
+		for(String field : equality) {
+			index.append(field, 1);
+		}
+		if(sort != null) {
+			for(String field : sort.keySet()) {
+				Object direction = sort.get(field);
+				if(!index.containsField(field) && direction instanceof Number) {
+					index.append(field, ((Number) direction).intValue() < 0 ? -1 : 1);
+				}
+			}
+		}
+		for(String field : range) {
+			if(!index.containsField(field)) {
+				index.append(field, 1);
+			}
+		}
+		if(index.isEmpty() || (index.size() == 1 && index.containsField("_id"))) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder("{");
+		for(String field : index.keySet()) {
+			if(builder.length() > 1) {
+				builder.append(',');
+			}
+			builder.append('\'').append(field).append("':").append(index.get(field));
+		}
+		return builder.append('}').toString();
+	}
+	private static void collectFields (DBObject filter, Set<String> equality, Set<String> range) {
+		for(String field : filter.keySet()) {
+			Object value = filter.get(field);
+			if(field.equals("$and") && value instanceof List) {
+				for(Object condition : (List<?>) value) {
+					if(condition instanceof DBObject) {
+						collectFields((DBObject) condition, equality, range);
+					}
+				}
+			} else if(field.startsWith("$")) {
+				// $or, $nor, $expr, $text and $where cannot be served by a single compound index
+				continue;
+			} else if(value instanceof DBObject && !(value instanceof List) && isOperatorObject((DBObject) value)) {
+				boolean isEquality = false;
+				for(String operator : ((DBObject) value).keySet()) {
+					isEquality |= EQUALITY_OPERATORS.contains(operator);
+				}
+				if(isEquality) {
+					equality.add(field);
+				} else {
+					range.add(field);
+				}
+			} else {
+				equality.add(field);
+			}
+		}
+	}
+	private static boolean isOperatorObject (DBObject value) {
+		for(String key : value.keySet()) {
+			if(!key.startsWith("$")) {
+				return false;
+			}
+			if(!EQUALITY_OPERATORS.contains(key) && !RANGE_OPERATORS.contains(key) && !key.equals("$not")) {
+				return true;
+			}
+		}
+		return !value.keySet().isEmpty();
+	}
+	/** Replace every value with "?", keeping operators, field names and the structure of $and, $or and $nor */
+	static Object shape (Object value) {
+		if(value instanceof DBObject && !(value instanceof List)) {
+			Map<String, Object> shape = new LinkedHashMap<>();
+			DBObject dbObject = (DBObject) value;
+			for(String key : dbObject.keySet()) {
+				Object child = dbObject.get(key);
+				if((key.equals("$and") || key.equals("$or") || key.equals("$nor")) && child instanceof List) {
+					List<Object> conditions = new ArrayList<>();
+					for(Object condition : (List<?>) child) {
+						conditions.add(shape(condition));
+					}
+					shape.put(key, conditions);
+				} else {
+					shape.put(key, shape(child));
+				}
+			}
+			return shape;
+		}
+		return "?";
+	}
+
+	/** Recorded operations of one query shape */
+	public static class ShapeStats {
+		@Getter
+		private final String collectionName;
+		@Getter
+		private final Operation operation;
+		@Getter
+		private final String shape;
+		@Getter
+		private final String sort;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder slowCount = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAdder documents = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		@Getter
+		private volatile boolean explained = false;
+		@Getter
+		private volatile boolean collectionScan = false;
+		@Getter
+		private volatile boolean inMemorySort = false;
+		@Getter
+		private volatile String indexName = null;
+		@Getter
+		private volatile long keysExamined = 0;
+		@Getter
+		private volatile long docsExamined = 0;
+		@Getter
+		private volatile long returned = 0;
+		@Getter
+		private volatile String suggestedIndex = null;
+		private ShapeStats (String collectionName, Operation operation, String shape, String sort) {
+			this.collectionName = collectionName;
+			this.operation = operation;
+			this.shape = shape;
+			this.sort = sort;
+		}
+		private void record (long durationNanos, long documentCount, boolean slow) {
+			count.increment();
+			if(slow) {
+				slowCount.increment();
+			}
+			totalNanos.add(durationNanos);
+			documents.add(documentCount);
+			maxNanos.accumulateAndGet(durationNanos, Math::max);
+		}
+		/** Number of recorded operations, slow or sampled */
+		public long getCount () {
+			return count.sum();
+		}
+		public long getSlowCount () {
+			return slowCount.sum();
+		}
+		public long getTotalMillis () {
+			return totalNanos.sum() / 1000000;
+		}
+		public long getMeanMillis () {
+			long countValue = count.sum();
+			return countValue == 0 ? 0 : totalNanos.sum() / countValue / 1000000;
+		}
+		public long getMaxMillis () {
+			return maxNanos.get() / 1000000;
+		}
+		public long getDocuments () {
+			return documents.sum();
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+
+	/** Index suggested for the shapes that would use it */
+	public static class IndexSuggestion {
+		@Getter
+		private String collectionName;
+		/** Index specification for MongoDB.index */
+		@Getter
+		private String index;
+		@Getter
+		private List<String> shapes = new ArrayList<>();
+		@Getter
+		private long count;
+		@Getter
+		private long totalMillis;
+		private IndexSuggestion (String collectionName, String index) {
+			this.collectionName = collectionName;
+			this.index = index;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJson(this);
+		}
+	}
+
+	/** Report of recorded shapes and suggested indexes */
+	public static class Report {
+		@Getter
+		private List<ShapeStats> shapes;
+		@Getter
+		private List<IndexSuggestion> suggestions;
+		private Report (List<ShapeStats> shapes, List<IndexSuggestion> suggestions) {
+			this.shapes = shapes;
+			this.suggestions = suggestions;
+		}
+		@Override
+		public String toString() {
+			return JsonUtil.toJsonPretty(this);
+		}
+	}
+
+	/** Options for QueryProfiler */
+	public static class Options {
+		private long slowMillis = 100;
+		private double sampleRate = 0;
+		private int maxShapes = 1000;
+		private boolean explain = true;
+		private double examinedRatio = 10;
+		private boolean logSlow = false;
+		private Options() {}
+		/** Record operations slower than this */
+		public Options slowMillis(long slowMillis) {
+			this.slowMillis = slowMillis;
+			return this;
+		}
+		/** Also record this fraction of faster operations */
+		public Options sampleRate(double sampleRate) {
+			this.sampleRate = sampleRate;
+			return this;
+		}
+		/** Stop recording new shapes once this many are recorded */
+		public Options maxShapes(int maxShapes) {
+			this.maxShapes = maxShapes;
+			return this;
+		}
+		/** Explain each new shape once */
+		public Options explain(boolean explain) {
+			this.explain = explain;
+			return this;
+		}
+		/** Suggest an index when a shape examines more than this many documents per document returned */
+		public Options examinedRatio(double examinedRatio) {
+			this.examinedRatio = examinedRatio;
+			return this;
+		}
+		/** Log a warning for every slow operation */
+		public Options logSlow(boolean logSlow) {
+			this.logSlow = logSlow;
+			return this;
+		}
+	}
+	/** Create options for QueryProfiler */
+	public static Options profilerOptions () {
+		return new Options();
+	}
+}
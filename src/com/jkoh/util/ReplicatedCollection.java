@@ -0,0 +1,532 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+import com.mongodb.*;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonTimestamp;
+import org.bson.codecs.DecoderContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory replica of a whole collection, loaded once and kept current by tailing a change stream.
+ * Reads by id and simple queries are answered locally: equality, $in and range conditions on fields, combined with $and,
+ * using the declared secondary indexes when they cover a condition and a scan otherwise. Documents are kept raw and
+ * unmarshalled on every read, so callers never share instances. When the change stream cannot be resumed, because the resume
+ * token fell off the oplog or the collection was dropped or renamed, the collection is loaded again.
+ * Needs a replica set or sharded cluster, change streams are not available on a standalone server.
+ */
+public class ReplicatedCollection<T> implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(ReplicatedCollection.class);
+	private static final Set<Integer> HISTORY_LOST_CODES = new HashSet<>(Arrays.asList(136, 280, 286));
+	private static final Set<String> OPERATORS = new HashSet<>(Arrays.asList("$eq", "$in", "$gt", "$gte", "$lt", "$lte"));
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Class<T> clazz;
+	private final Options options;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Thread tailer;
+	private final LongAdder events = new LongAdder();
+	private final LongAdder resyncs = new LongAdder();
+	private Map<Object, DBObject> documents = new HashMap<>();
+	private Map<String, TreeMap<Object, Set<Object>>> indexes = new LinkedHashMap<>();
+	private MongoCursor<ChangeStreamDocument<BasicDBObject>> cursor = null;
+	private ClientSession session = null;
+	private BsonDocument resumeToken = null;
+	/** Operation time the stream was opened at, to resume from while no change has arrived to take a resume token from */
+	private BsonTimestamp startOperationTime = null;
+	private volatile boolean loaded = false;
+	private volatile long lagMillis = -1;
+	private volatile long lastPollMillis = 0;
+	private volatile boolean closed = false;
+
+	ReplicatedCollection (MongoDB mongoDB, String collectionName, Class<T> clazz, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.clazz = clazz;
+		this.options = options;
+		for(String field : options.indexes) {
+			indexes.put(field, new TreeMap<>(ShardedMongoDB::compareValues));
+		}
+		try {
+			sync();
+		} catch (MongoException e) {
+			logger.warn("ReplicatedCollection failed to load " + collectionName + ", retrying in the background", e);
+			closeCursor();
+		}
+		this.tailer = MongoDB.daemonThreadFactory("replica-" + collectionName).newThread(this::run);
+		this.tailer.start();
+	}
+
+	/** Get a document by id, null if it is missing */
+	public T get (Object id) {
+		DBObject document;
+		lock.readLock().lock();
+		try {
+			document = documents.get(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return document != null ? mongoDB.unmarshall(document, clazz) : null;
+	}
+	/** Find documents matching a query */
+	public List<T> find (Query query) {
+		return find(query, null);
+	}
+	/** Find documents matching a query, sorted, skipped and limited by the options, projections are not applied */
+	public List<T> find (Query query, FindOptions options) {
+		DBObject filter = mongoDB.toDBObject(query);
+		List<Condition> conditions = new ArrayList<>();
+		parse(filter, conditions);
+		List<DBObject> matches = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for(DBObject document : candidates(conditions)) {
+				if(matches(document, conditions)) {
+					matches.add(document);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(options != null && options.getSort() != null) {
+			DBObject sort = mongoDB.toDBObject(MongoDB.query(options.getSort()));
+			matches.sort((a, b) -> {
+				for(String key : sort.keySet()) {
+					int compare = ShardedMongoDB.compareValues(value(a, key), value(b, key)) * (((Number) sort.get(key)).intValue() < 0 ? -1 : 1);
+					if(compare != 0) {
+						return compare;
+					}
+				}
+				return 0;
+			});
+		}
+		int skip = options != null ? Math.min(options.getSkip(), matches.size()) : 0;
+		int end = options != null && options.getLimit() > 0 ? Math.min(matches.size(), skip + options.getLimit()) : matches.size();
+		List<T> results = new ArrayList<>(end - skip);
+		for(DBObject document : matches.subList(skip, end)) {
+			results.add(mongoDB.unmarshall(document, clazz));
+		}
+		return results;
+	}
+	/** Find the first document matching a query, null if none does */
+	public T findOne (Query query) {
+		List<T> results = find(query, MongoDB.findOptions().limit(1));
+		return results.isEmpty() ? null : results.get(0);
+	}
+	/** Count documents matching a query */
+	public long count (Query query) {
+		DBObject filter = mongoDB.toDBObject(query);
+		List<Condition> conditions = new ArrayList<>();
+		parse(filter, conditions);
+		long count = 0;
+		lock.readLock().lock();
+		try {
+			for(DBObject document : candidates(conditions)) {
+				if(matches(document, conditions)) {
+					count++;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return count;
+	}
+	/** Declare a secondary index on a field, dotted paths and array fields are supported */
+	public void index (String field) {
+		lock.writeLock().lock();
+		try {
+			if(!indexes.containsKey(field)) {
+				TreeMap<Object, Set<Object>> index = new TreeMap<>(ShardedMongoDB::compareValues);
+				for(Map.Entry<Object, DBObject> entry : documents.entrySet()) {
+					addToIndex(index, field, entry.getKey(), entry.getValue());
+				}
+				indexes.put(field, index);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	/** Number of documents */
+	public int size () {
+		lock.readLock().lock();
+		try {
+			return documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	/** Check if the collection was loaded */
+	public boolean isLoaded () {
+		return loaded;
+	}
+	/**
+	 * How far the replica is behind the server, the time since the cluster time of the last applied change, 0 when the last poll
+	 * found no pending change, -1 if unknown. Use getLastPollMillis to detect a stalled change stream.
+	 */
+	public long getLagMillis () {
+		return lagMillis;
+	}
+	/** Time of the last poll of the change stream */
+	public long getLastPollMillis () {
+		return lastPollMillis;
+	}
+	/** Number of changes applied */
+	public long getEventCount () {
+		return events.sum();
+	}
+	/** Number of full loads after the change stream could not be resumed */
+	public long getResyncCount () {
+		return resyncs.sum();
+	}
+	/** Stop tailing the change stream */
+	@Override
+	public void close () {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		mongoDB.removeCloseOnStop(this);
+		try {
+			tailer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run () {
+		long backoffMillis = 100;
+		while(!closed) {
+			try {
+				if(cursor == null) {
+					sync();
+				}
+				ChangeStreamDocument<BasicDBObject> event = cursor.tryNext();
+				lastPollMillis = System.currentTimeMillis();
+				if(event == null) {
+					lagMillis = 0;
+				} else {
+					apply(event);
+				}
+				backoffMillis = 100;
+			} catch (MongoException e) {
+				closeCursor();
+				if(e instanceof MongoCommandException && HISTORY_LOST_CODES.contains(((MongoCommandException) e).getErrorCode())
+						|| e instanceof MongoQueryException && HISTORY_LOST_CODES.contains(((MongoQueryException) e).getErrorCode())) {
+					logger.warn("ReplicatedCollection lost the change stream of " + collectionName + ", loading it again", e);
+					resumeToken = null;
+					startOperationTime = null;
+				} else if(!closed) {
+					logger.warn("ReplicatedCollection change stream of " + collectionName + " failed", e);
+					sleep(backoffMillis);
+					backoffMillis = Math.min(backoffMillis * 2, options.maxBackoffMillis);
+				}
+			}
+		}
+		closeCursor();
+	}
+	/**
+	 * Open the change stream, resuming after the last change, or from the time the stream was first opened if no change
+	 * arrived since, otherwise open it and then load the whole collection.
+	 */
+	private void sync () {
+		MongoCollection<BasicDBObject> collection = mongoDB.getMongoDatabase().getCollection(collectionName, BasicDBObject.class);
+		if(resumeToken != null || startOperationTime != null) {
+			ChangeStreamIterable<BasicDBObject> stream = collection.watch(BasicDBObject.class).fullDocument(FullDocument.UPDATE_LOOKUP)
+				.maxAwaitTime(options.maxAwaitMillis, TimeUnit.MILLISECONDS);
+			cursor = (resumeToken != null ? stream.resumeAfter(resumeToken) : stream.startAtOperationTime(startOperationTime)).iterator();
+			return;
+		}
+		// the stream is opened before the load, so changes made during the load are applied after it, in a session to learn
+		// the operation time it starts at
+		session = mongoDB.startSession();
+		cursor = collection.watch(session, BasicDBObject.class).fullDocument(FullDocument.UPDATE_LOOKUP)
+			.maxAwaitTime(options.maxAwaitMillis, TimeUnit.MILLISECONDS).iterator();
+		BsonTimestamp openedAt = session.getOperationTime();
+		Map<Object, DBObject> loadedDocuments = new HashMap<>();
+		try (DBCursor documentCursor = mongoDB.getDBCollection(collectionName).find().batchSize(options.batchSize)) {
+			while(documentCursor.hasNext()) {
+				DBObject document = documentCursor.next();
+				loadedDocuments.put(document.get("_id"), document);
+			}
+		}
+		lock.writeLock().lock();
+		try {
+			Map<String, TreeMap<Object, Set<Object>>> loadedIndexes = new LinkedHashMap<>();
+			for(String field : indexes.keySet()) {
+				TreeMap<Object, Set<Object>> index = new TreeMap<>(ShardedMongoDB::compareValues);
+				for(Map.Entry<Object, DBObject> entry : loadedDocuments.entrySet()) {
+					addToIndex(index, field, entry.getKey(), entry.getValue());
+				}
+				loadedIndexes.put(field, index);
+			}
+			documents = loadedDocuments;
+			indexes = loadedIndexes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		// only resumable from the opening time once the load completed
+		startOperationTime = openedAt;
+		if(loaded) {
+			resyncs.increment();
+		}
+		loaded = true;
+		logger.info("ReplicatedCollection loaded " + loadedDocuments.size() + " documents of " + collectionName);
+	}
+	private void apply (ChangeStreamDocument<BasicDBObject> event) {
+		switch(event.getOperationType()) {
+			case INSERT:
+			case UPDATE:
+			case REPLACE:
+			case DELETE:
+				Object id = decode(event.getDocumentKey()).get("_id");
+				DBObject document = event.getFullDocument();
+				lock.writeLock().lock();
+				try {
+					DBObject previous = document != null ? documents.put(id, document) : documents.remove(id);
+					for(Map.Entry<String, TreeMap<Object, Set<Object>>> index : indexes.entrySet()) {
+						if(previous != null) {
+							removeFromIndex(index.getValue(), index.getKey(), id, previous);
+						}
+						if(document != null) {
+							addToIndex(index.getValue(), index.getKey(), id, document);
+						}
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+				break;
+			default:
+				// drop, rename or invalidate, the stream cannot continue
+				closeCursor();
+				resumeToken = null;
+				startOperationTime = null;
+				return;
+		}
+		resumeToken = event.getResumeToken();
+		events.increment();
+		lagMillis = event.getClusterTime() != null ? Math.max(0, System.currentTimeMillis() - event.getClusterTime().getTime() * 1000L) : -1;
+	}
+	private void closeCursor () {
+		if(cursor != null) {
+			try {
+				cursor.close();
+			} catch (RuntimeException e) {}
+			cursor = null;
+		}
+		if(session != null) {
+			try {
+				session.close();
+			} catch (RuntimeException e) {}
+			session = null;
+		}
+	}
+
+	/** Documents to check for the conditions, from the index of the first indexed condition or all of them */
+	private Collection<DBObject> candidates (List<Condition> conditions) {
+		for(Condition condition : conditions) {
+			TreeMap<Object, Set<Object>> index = indexes.get(condition.field);
+			if(index == null) {
+				continue;
+			}
+			Set<Object> ids = new LinkedHashSet<>();
+			if(condition.operator.equals("$eq")) {
+				ids.addAll(index.getOrDefault(condition.value, Collections.emptySet()));
+			} else if(condition.operator.equals("$in")) {
+				for(Object value : (List<?>) condition.value) {
+					ids.addAll(index.getOrDefault(value, Collections.emptySet()));
+				}
+			} else {
+				boolean lower = condition.operator.startsWith("$g");
+				boolean inclusive = condition.operator.endsWith("e");
+				Map<Object, Set<Object>> range = lower ? index.tailMap(condition.value, inclusive) : index.headMap(condition.value, inclusive);
+				for(Set<Object> rangeIds : range.values()) {
+					ids.addAll(rangeIds);
+				}
+			}
+			List<DBObject> candidates = new ArrayList<>(ids.size());
+			for(Object id : ids) {
+				candidates.add(documents.get(id));
+			}
+			return candidates;
+		}
+		return documents.values();
+	}
+	private static void parse (DBObject filter, List<Condition> conditions) {
+		for(String field : filter.keySet()) {
+			Object value = filter.get(field);
+			if(field.equals("$and") && value instanceof List) {
+				for(Object clause : (List<?>) value) {
+					parse((DBObject) clause, conditions);
+				}
+			} else if(field.startsWith("$")) {
+				throw new IllegalArgumentException("Unsupported operator for a local query: " + field);
+			} else if(value instanceof DBObject && !(value instanceof List) && !((DBObject) value).keySet().isEmpty()
+					&& ((DBObject) value).keySet().iterator().next().startsWith("$")) {
+				for(String operator : ((DBObject) value).keySet()) {
+					if(!OPERATORS.contains(operator)) {
+						throw new IllegalArgumentException("Unsupported operator for a local query: " + operator);
+					}
+					Object operand = ((DBObject) value).get(operator);
+					if(operator.equals("$in") && !(operand instanceof List)) {
+						throw new IllegalArgumentException("$in needs an array");
+					}
+					conditions.add(new Condition(field, operator, operand));
+				}
+			} else {
+				conditions.add(new Condition(field, "$eq", value));
+			}
+		}
+	}
+	private static boolean matches (DBObject document, List<Condition> conditions) {
+		for(Condition condition : conditions) {
+			if(!condition.matches(values(document, condition.field))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	private static void addToIndex (TreeMap<Object, Set<Object>> index, String field, Object id, DBObject document) {
+		for(Object value : values(document, field)) {
+			index.computeIfAbsent(value, k -> new HashSet<>()).add(id);
+		}
+	}
+	private static void removeFromIndex (TreeMap<Object, Set<Object>> index, String field, Object id, DBObject document) {
+		for(Object value : values(document, field)) {
+			Set<Object> ids = index.get(value);
+			if(ids != null && ids.remove(id) && ids.isEmpty()) {
+				index.remove(value);
+			}
+		}
+	}
+	/** Value of a dotted path, null if missing */
+	private static Object value (DBObject document, String path) {
+		Object value = document;
+		for(String field : path.split("\\.")) {
+			value = value instanceof DBObject && !(value instanceof List) ? ((DBObject) value).get(field) : null;
+		}
+		return value;
+	}
+	/** Values a path matches on: the value, or each element of an array value, null if missing */
+	private static List<Object> values (DBObject document, String path) {
+		Object value = value(document, path);
+		if(value instanceof List) {
+			List<Object> values = new ArrayList<>((List<?>) value);
+			if(values.isEmpty()) {
+				values.add(null);
+			}
+			return values;
+		}
+		return Collections.singletonList(value);
+	}
+	private static DBObject decode (BsonDocument document) {
+		return MongoClient.getDefaultCodecRegistry().get(BasicDBObject.class).decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+	}
+	private static void sleep (long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** One condition on a field */
+	private static class Condition {
+		private final String field;
+		private final String operator;
+		private final Object value;
+		private Condition (String field, String operator, Object value) {
+			this.field = field;
+			this.operator = operator;
+			this.value = value;
+		}
+		private boolean matches (List<Object> values) {
+			for(Object candidate : values) {
+				if(matches(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		private boolean matches (Object candidate) {
+			switch(operator) {
+				case "$eq":
+					return ShardedMongoDB.compareValues(candidate, value) == 0;
+				case "$in":
+					for(Object option : (List<?>) value) {
+						if(ShardedMongoDB.compareValues(candidate, option) == 0) {
+							return true;
+						}
+					}
+					return false;
+				default:
+					// ranges only match values of the same type, as on the server
+					if(candidate == null || value == null || typeDiffers(candidate, value)) {
+						return false;
+					}
+					int compare = ShardedMongoDB.compareValues(candidate, value);
+					switch(operator) {
+						case "$gt":
+							return compare > 0;
+						case "$gte":
+							return compare >= 0;
+						case "$lt":
+							return compare < 0;
+						default:
+							return compare <= 0;
+					}
+			}
+		}
+		private static boolean typeDiffers (Object a, Object b) {
+			return !(a instanceof Number && b instanceof Number) && a.getClass() != b.getClass();
+		}
+	}
+
+	/** Options for ReplicatedCollection */
+	public static class Options {
+		private List<String> indexes = new ArrayList<>();
+		private int batchSize = 1000;
+		private long maxAwaitMillis = 1000;
+		private long maxBackoffMillis = 30000;
+		private Options() {}
+		/** Declare secondary indexes on fields, built during the load */
+		public Options index(String... fields) {
+			indexes.addAll(Arrays.asList(fields));
+			return this;
+		}
+		/** Batch size of the load */
+		public Options batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		/** How long a poll of the change stream waits for changes */
+		public Options maxAwaitMillis(long maxAwaitMillis) {
+			this.maxAwaitMillis = maxAwaitMillis;
+			return this;
+		}
+		/** Maximum wait between retries after the change stream failed */
+		public Options maxBackoffMillis(long maxBackoffMillis) {
+			this.maxBackoffMillis = maxBackoffMillis;
+			return this;
+		}
+	}
+	/** Create options for ReplicatedCollection */
+	public static Options replicatedCollectionOptions () {
+		return new Options();
+	}
+}
@@ -0,0 +1,604 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.*;
+import com.mongodb.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Client side sharding over several MongoDB clusters.
+ * Operations by _id go to the cluster owning the id on a consistent hash ring with virtual nodes, other queries are sent to
+ * every cluster and their results merged: finds are merge sorted on the sort of the query, counts and updates are summed.
+ * Adding a cluster moves only the documents whose owner changed, online: until the rebalance completes, reads by id fall back
+ * to the previous owner, writes by id go to the new owner, and scatter queries drop documents seen twice while they are moved.
+ */
+public class ShardedMongoDB {
+	private final static Logger logger = LoggerFactory.getLogger(ShardedMongoDB.class);
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private final Options options;
+	private final ExecutorService executor;
+	private volatile Ring ring;
+	private volatile Ring previousRing = null;
+
+	/** Shard over the clusters of the configs, keyed by shard name */
+	public ShardedMongoDB (Map<String, MongoDB.Config> configs) {
+		this(configs, shardedOptions());
+	}
+	/** Shard over the clusters of the configs, keyed by shard name */
+	public ShardedMongoDB (Map<String, MongoDB.Config> configs, Options options) {
+		if(configs.isEmpty()) {
+			throw new IllegalArgumentException("ShardedMongoDB needs at least one shard");
+		}
+		this.options = options;
+		Map<String, MongoDB> shards = new LinkedHashMap<>();
+		for(Map.Entry<String, MongoDB.Config> config : configs.entrySet()) {
+			shards.put(config.getKey(), new MongoDB(config.getValue()));
+		}
+		this.ring = new Ring(shards, options.virtualNodes);
+		// bounded, a saturated pool runs the operation on the calling thread instead of adding threads when a shard is slow
+		this.executor = new ThreadPoolExecutor(0, options.maxScatterThreads, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<>(), MongoDB.daemonThreadFactory("sharded-mongodb"), (task, pool) -> task.run());
+	}
+	/** Connect to every shard, false if any failed */
+	public boolean start () {
+		boolean started = true;
+		for(MongoDB shard : ring.shards.values()) {
+			started &= shard.start();
+		}
+		return started;
+	}
+	public void stop () {
+		for(MongoDB shard : ring.shards.values()) {
+			shard.stop();
+		}
+		executor.shutdownNow();
+	}
+
+	/** Get the shards by name */
+	public Map<String, MongoDB> getShards () {
+		return Collections.unmodifiableMap(ring.shards);
+	}
+	/** Get the shard owning an id */
+	public MongoDB shardFor (Object id) {
+		return ring.owner(id);
+	}
+	/** Check if documents are being moved to a new shard */
+	public boolean isRebalancing () {
+		return previousRing != null;
+	}
+
+	/** Get a document by id */
+	public <T> T get (Class<T> clazz, String id) {
+		return get(clazz.getSimpleName(), id, clazz);
+	}
+	/** Get a document by id from its owner, or from its previous owner while rebalancing */
+	public <T> T get (String collectionName, String id, Class<T> clazz) {
+		MongoDB owner = ring.owner(id);
+		Ring previous = previousRing;
+		T result = owner.get(collectionName, id, clazz);
+		if(result == null && previous != null && previous.owner(id) != owner) {
+			result = getMoving(collectionName, id, clazz, owner, previous.owner(id));
+		}
+		return result;
+	}
+	/** Get documents by ids */
+	public <T> List<T> getMany (Class<T> clazz, Collection<String> ids) {
+		return getMany(clazz.getSimpleName(), ids, clazz);
+	}
+	/** Get documents by ids with one getMany per shard, in the order of the ids with null for missing ids, null if any shard failed */
+	public <T> List<T> getMany (String collectionName, Collection<String> ids, Class<T> clazz) {
+		// one ring for the whole call, addShard can swap it between the loops
+		Ring ring = this.ring;
+		Ring previous = previousRing;
+		Map<MongoDB, List<String>> idsByShard = new LinkedHashMap<>();
+		for(String id : ids) {
+			idsByShard.computeIfAbsent(ring.owner(id), k -> new ArrayList<>()).add(id);
+		}
+		Map<MongoDB, List<T>> resultsByShard = new HashMap<>();
+		List<MongoDB> shards = new ArrayList<>(idsByShard.keySet());
+		List<List<T>> shardResults = scatter(shards, shard -> shard.getMany(collectionName, idsByShard.get(shard), clazz));
+		for(int i = 0; i < shards.size(); i++) {
+			if(shardResults.get(i) == null) {
+				return null;
+			}
+			resultsByShard.put(shards.get(i), shardResults.get(i));
+		}
+		Map<MongoDB, Integer> positions = new HashMap<>();
+		List<T> results = new ArrayList<>(ids.size());
+		for(String id : ids) {
+			MongoDB shard = ring.owner(id);
+			int position = positions.merge(shard, 1, Integer::sum) - 1;
+			T result = resultsByShard.get(shard).get(position);
+			if(result == null && previous != null && previous.owner(id) != shard) {
+				result = getMoving(collectionName, id, clazz, shard, previous.owner(id));
+			}
+			results.add(result);
+		}
+		return results;
+	}
+	/** Upsert */
+	public <T> boolean set (T object) {
+		return set(object.getClass().getSimpleName(), object);
+	}
+	/** Upsert on the owner of the _id of the object, an _id is generated if it has none */
+	public <T> boolean set (String collectionName, T object) {
+		MongoDB owner = ring.owner(firstShard().objectId(object));
+		Ring previous = previousRing;
+		boolean written = owner.set(collectionName, object);
+		if(written && previous != null) {
+			// the copy on the previous owner is stale now, the rebalance would not move it over this one but reads could fall back to it
+			MongoDB previousOwner = previous.owner(firstShard().objectId(object));
+			if(previousOwner != owner) {
+				previousOwner.remove(collectionName, MongoDB.idQuery(firstShard().objectId(object)));
+			}
+		}
+		return written;
+	}
+	/** Insert */
+	public <T> boolean insert (T object) {
+		return insert(object.getClass().getSimpleName(), object);
+	}
+	/** Insert on the owner of the _id of the object, an _id is generated if it has none */
+	public <T> boolean insert (String collectionName, T object) {
+		return ring.owner(firstShard().objectId(object)).insert(collectionName, object);
+	}
+	/** Update a document by id */
+	public <T> int updateById (Class<T> clazz, String id, Query modifier) {
+		return updateById(clazz.getSimpleName(), id, modifier);
+	}
+	/** Update a document by id on its owner, moving it there first while rebalancing */
+	public int updateById (String collectionName, String id, Query modifier) {
+		MongoDB owner = ring.owner(id);
+		Ring previous = previousRing;
+		if(previous != null && previous.owner(id) != owner) {
+			MongoDB previousOwner = previous.owner(id);
+			DBObject document = previousOwner.getDBCollection(collectionName).findOne(previousOwner.toDBObject(MongoDB.idQuery(id)));
+			if(document != null) {
+				move(collectionName, document, previousOwner, owner);
+			}
+		}
+		return owner.update(collectionName, MongoDB.idQuery(id), modifier);
+	}
+	/** Remove a document by id */
+	public <T> int removeById (Class<T> clazz, String id) {
+		return removeById(clazz.getSimpleName(), id);
+	}
+	/** Remove a document by id from its owner, and from its previous owner while rebalancing */
+	public int removeById (String collectionName, String id) {
+		MongoDB owner = ring.owner(id);
+		Ring previous = previousRing;
+		int n = owner.remove(collectionName, MongoDB.idQuery(id));
+		if(previous != null && previous.owner(id) != owner) {
+			n += previous.owner(id).remove(collectionName, MongoDB.idQuery(id));
+		}
+		return n;
+	}
+
+	/** Create an index on every shard */
+	public void index (String collectionName, String index) {
+		scatter(shard -> {
+			shard.index(collectionName, index);
+			return null;
+		});
+	}
+	/** Count documents on every shard */
+	public <T> long count (Class<T> clazz, Query query) {
+		return count(clazz.getSimpleName(), query);
+	}
+	/** Count documents on every shard and sum the counts, documents being moved by a rebalance can be counted twice */
+	public long count (String collectionName, Query query) {
+		long count = 0;
+		for(long shardCount : scatter(shard -> shard.count(collectionName, query))) {
+			count += shardCount;
+		}
+		return count;
+	}
+	/** Check if a document exists on any shard */
+	public boolean exists (String collectionName, Query query) {
+		return scatter(shard -> shard.exists(collectionName, query)).contains(true);
+	}
+	/** Find a document on every shard */
+	public <T> T findOne (Class<T> clazz, Query query, FindOneOptions options) {
+		return findOne(clazz.getSimpleName(), query, clazz, options);
+	}
+	/** Find a document on every shard, the first by the order of the options, or of the shards if it has none */
+	public <T> T findOne (String collectionName, Query query, Class<T> clazz, FindOneOptions options) {
+		FindOptions findOptions = MongoDB.findOptions().limit(1);
+		if(options != null) {
+			findOptions.projection(options.getProjection()).sort(options.getOrderBy()).readPreference(options.getReadPreference());
+		}
+		List<T> results = find(collectionName, query, clazz, findOptions);
+		return results.isEmpty() ? null : results.get(0);
+	}
+	/** Find documents on every shard */
+	public <T> List<T> find (Class<T> clazz, Query query) {
+		return find(clazz.getSimpleName(), query, clazz, null);
+	}
+	/** Find documents on every shard */
+	public <T> List<T> find (Class<T> clazz, Query query, FindOptions options) {
+		return find(clazz.getSimpleName(), query, clazz, options);
+	}
+	/**
+	 * Find documents on every shard and merge them on the sort of the options, skip and limit apply to the merged results.
+	 * Each shard is asked for skip + limit documents, so deep skips are as costly as on one shard times the number of shards.
+	 */
+	public <T> List<T> find (String collectionName, Query query, Class<T> clazz, FindOptions options) {
+		int skip = options != null ? options.getSkip() : 0;
+		int limit = options != null ? options.getLimit() : 0;
+		FindOptions shardOptions = options;
+		if(options != null && skip > 0) {
+			shardOptions = MongoDB.findOptions().projection(options.getProjection()).limit(limit > 0 ? skip + limit : 0).sort(options.getSort())
+				.hint(options.getHint()).batchSize(options.getBatchSize()).readPreference(options.getReadPreference());
+		}
+		final FindOptions findOptions = shardOptions;
+		// the ring before the rebalance state, a swap after the scatter must not turn off the dedup of its results
+		Ring ring = this.ring;
+		boolean dedup = previousRing != null;
+		List<List<T>> shardResults = scatter(new ArrayList<>(ring.shards.values()), shard -> shard.find(collectionName, query, clazz, findOptions));
+		MongoDB mapper = firstShard();
+		List<String> sortKeys = new ArrayList<>();
+		List<Integer> directions = new ArrayList<>();
+		if(options != null && options.getSort() != null) {
+			DBObject sort = mapper.toDBObject(MongoDB.query(options.getSort()));
+			for(String key : sort.keySet()) {
+				sortKeys.add(key);
+				directions.add(((Number) sort.get(key)).intValue() < 0 ? -1 : 1);
+			}
+		}
+		// k-way merge of the sorted shard results, in shard order when unsorted
+		PriorityQueue<Head<T>> heads = new PriorityQueue<>((a, b) -> {
+			for(int i = 0; i < sortKeys.size(); i++) {
+				int compare = compareValues(a.values.get(i), b.values.get(i)) * directions.get(i);
+				if(compare != 0) {
+					return compare;
+				}
+			}
+			return Integer.compare(a.shard, b.shard);
+		});
+		for(int i = 0; i < shardResults.size(); i++) {
+			Head<T> head = new Head<>(i, shardResults.get(i).iterator());
+			if(head.advance(mapper, sortKeys, dedup)) {
+				heads.add(head);
+			}
+		}
+		List<T> results = new ArrayList<>();
+		Set<Object> seen = dedup ? new HashSet<>() : null;
+		int skipped = 0;
+		while(!heads.isEmpty() && (limit <= 0 || results.size() < limit)) {
+			Head<T> head = heads.poll();
+			if(seen == null || seen.add(head.id)) {
+				if(skipped < skip) {
+					skipped++;
+				} else {
+					results.add(head.value);
+				}
+			}
+			if(head.advance(mapper, sortKeys, dedup)) {
+				heads.add(head);
+			}
+		}
+		return results;
+	}
+	/** Update documents on every shard and sum the updated counts, upserts need an owner so use updateById or set */
+	public int update (String collectionName, Query query, Query modifier, UpdateOptions options) {
+		if(options != null && options.isUpsert()) {
+			throw new IllegalArgumentException("Upsert is not supported across shards, use updateById or set");
+		}
+		int n = 0;
+		for(int shardCount : scatter(shard -> shard.update(collectionName, query, modifier, options))) {
+			n += shardCount;
+		}
+		return n;
+	}
+	/** Update documents on every shard and sum the updated counts */
+	public int update (String collectionName, Query query, Query modifier) {
+		return update(collectionName, query, modifier, null);
+	}
+	/** Remove documents on every shard and sum the removed counts */
+	public int remove (String collectionName, Query query) {
+		int n = 0;
+		for(int shardCount : scatter(shard -> shard.remove(collectionName, query))) {
+			n += shardCount;
+		}
+		return n;
+	}
+
+	/**
+	 * Add a shard and move the documents of the collections it now owns, while serving reads and writes.
+	 * The future completes with the number of documents moved, if it fails the rebalance can be resumed with rebalance.
+	 */
+	public synchronized CompletableFuture<Long> addShard (String name, MongoDB.Config config, Collection<String> collectionNames) {
+		if(previousRing != null) {
+			throw new IllegalStateException("A rebalance is already running");
+		}
+		if(ring.shards.containsKey(name)) {
+			throw new IllegalArgumentException("Shard " + name + " already exists");
+		}
+		MongoDB shard = new MongoDB(config);
+		if(!shard.start()) {
+			throw new IllegalStateException("Failed to connect to shard " + name);
+		}
+		Map<String, MongoDB> shards = new LinkedHashMap<>(ring.shards);
+		shards.put(name, shard);
+		for(String collectionName : collectionNames) {
+			copyIndexes(collectionName, firstShard(), shard);
+		}
+		previousRing = ring;
+		ring = new Ring(shards, options.virtualNodes);
+		return rebalance(collectionNames);
+	}
+	/** Move every document of the collections not on its owner to its owner, in the background */
+	public CompletableFuture<Long> rebalance (Collection<String> collectionNames) {
+		final Ring target = ring;
+		return CompletableFuture.supplyAsync(() -> {
+			long moved = 0;
+			for(String collectionName : collectionNames) {
+				for(MongoDB source : target.shards.values()) {
+					moved += rebalance(collectionName, source, target);
+				}
+			}
+			synchronized (this) {
+				if(ring == target) {
+					previousRing = null;
+				}
+			}
+			logger.info("Rebalance moved " + moved + " documents");
+			return moved;
+		}, executor).whenComplete((moved, e) -> {
+			if(e != null) {
+				logger.warn("Rebalance failed", e);
+			}
+		});
+	}
+
+	private long rebalance (String collectionName, MongoDB source, Ring target) {
+		long moved = 0;
+		try (DBCursor cursor = source.getDBCollection(collectionName).find().batchSize(options.rebalanceBatchSize).addOption(Bytes.QUERYOPTION_NOTIMEOUT)) {
+			while(cursor.hasNext()) {
+				DBObject document = cursor.next();
+				MongoDB owner = target.owner(document.get("_id"));
+				if(owner != source) {
+					move(collectionName, document, source, owner);
+					moved++;
+				}
+			}
+		}
+		return moved;
+	}
+	/**
+	 * Copy a document to its new owner unless it was written there since, then remove it from its previous owner.
+	 * The source is only removed while it is still the version copied. When a scatter update or remove changed it in between,
+	 * the copy is replaced by the new version, or removed, unless the document was written on the new owner since, and the
+	 * source is compared again.
+	 */
+	private void move (String collectionName, DBObject document, MongoDB source, MongoDB target) {
+		DBCollection sourceCollection = source.getDBCollection(collectionName);
+		DBCollection targetCollection = target.getDBCollection(collectionName);
+		DBObject copied = null;
+		try {
+			targetCollection.insert(document);
+			copied = document;
+		} catch (DuplicateKeyException e) {
+			// written on the new owner after the rebalance started, that version wins
+		}
+		while(sourceCollection.remove(sameDocument(document)).getN() == 0) {
+			DBObject current = sourceCollection.findOne(new BasicDBObject("_id", document.get("_id")));
+			if(current == null) {
+				if(copied != null) {
+					targetCollection.remove(sameDocument(copied));
+				}
+				break;
+			}
+			if(copied != null && targetCollection.update(sameDocument(copied), current).getN() == 1) {
+				copied = current;
+			} else {
+				copied = null;
+			}
+			document = current;
+		}
+		source.invalidateNearCache(collectionName);
+		target.invalidateNearCache(collectionName);
+	}
+	/** Filter matching a document only while it is exactly this version, field order included, fields added since fail it too */
+	private static DBObject sameDocument (DBObject document) {
+		return new BasicDBObject("_id", document.get("_id"))
+			.append("$expr", new BasicDBObject("$eq", Arrays.asList("$$ROOT", new BasicDBObject("$literal", document))));
+	}
+	private void copyIndexes (String collectionName, MongoDB source, MongoDB target) {
+		for(DBObject index : source.getDBCollection(collectionName).getIndexInfo()) {
+			if("_id_".equals(index.get("name"))) {
+				continue;
+			}
+			BasicDBObject indexOptions = new BasicDBObject(index.toMap());
+			DBObject keys = (DBObject) indexOptions.remove("key");
+			indexOptions.remove("ns");
+			indexOptions.remove("v");
+			target.getDBCollection(collectionName).createIndex(keys, indexOptions);
+		}
+	}
+	/**
+	 * Get a document missing on its owner from its previous owner, then from its owner again: a move can insert the copy
+	 * after the read of the owner and remove the source before the read of the previous owner, the copy is inserted by then
+	 */
+	private <T> T getMoving (String collectionName, String id, Class<T> clazz, MongoDB owner, MongoDB previousOwner) {
+		T result = previousOwner.get(collectionName, id, clazz);
+		return result != null ? result : owner.get(collectionName, id, clazz);
+	}
+	private MongoDB firstShard () {
+		return ring.shards.values().iterator().next();
+	}
+	private <R> List<R> scatter (Function<MongoDB, R> operation) {
+		return scatter(new ArrayList<>(ring.shards.values()), operation);
+	}
+	/** Run an operation on each shard concurrently and return the results in the order of the shards */
+	private <R> List<R> scatter (List<MongoDB> shards, Function<MongoDB, R> operation) {
+		if(shards.size() == 1) {
+			return Collections.singletonList(operation.apply(shards.get(0)));
+		}
+		List<CompletableFuture<R>> futures = new ArrayList<>(shards.size());
+		for(MongoDB shard : shards) {
+			futures.add(CompletableFuture.supplyAsync(() -> operation.apply(shard), executor));
+		}
+		try {
+			return AsyncMongoDB.all(futures).join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	/** Hash of a routing key, the first 8 bytes of its MD5 so it is stable across processes */
+	static long hash (String key) {
+		byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for(int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+	/** Compare two values in the BSON sort order of their types, then by value */
+	static int compareValues (Object a, Object b) {
+		int compare = Integer.compare(typeOrder(a), typeOrder(b));
+		if(compare != 0 || a == null) {
+			return compare;
+		}
+		if(a instanceof Number) {
+			Number x = (Number) a;
+			Number y = (Number) b;
+			if((x instanceof Long || x instanceof Integer) && (y instanceof Long || y instanceof Integer)) {
+				return Long.compare(x.longValue(), y.longValue());
+			}
+			return Double.compare(x.doubleValue(), y.doubleValue());
+		}
+		if(a instanceof List) {
+			List<?> x = (List<?>) a;
+			List<?> y = (List<?>) b;
+			for(int i = 0; i < Math.min(x.size(), y.size()); i++) {
+				compare = compareValues(x.get(i), y.get(i));
+				if(compare != 0) {
+					return compare;
+				}
+			}
+			return Integer.compare(x.size(), y.size());
+		}
+		if(a instanceof Comparable && a.getClass() == b.getClass()) {
+			@SuppressWarnings("unchecked")
+			Comparable<Object> comparable = (Comparable<Object>) a;
+			return comparable.compareTo(b);
+		}
+		return a.toString().compareTo(b.toString());
+	}
+	private static int typeOrder (Object value) {
+		if(value == null) {
+			return 0;
+		} else if(value instanceof Number) {
+			return 1;
+		} else if(value instanceof String) {
+			return 2;
+		} else if(value instanceof List) {
+			return 4;
+		} else if(value instanceof DBObject || value instanceof Map) {
+			return 3;
+		} else if(value instanceof byte[] || value instanceof org.bson.types.Binary) {
+			return 5;
+		} else if(value instanceof org.bson.types.ObjectId) {
+			return 6;
+		} else if(value instanceof Boolean) {
+			return 7;
+		} else if(value instanceof Date) {
+			return 8;
+		}
+		return 9;
+	}
+
+	/** Next result of one shard with its sort key values */
+	private static class Head<T> {
+		private final int shard;
+		private final Iterator<T> iterator;
+		private T value;
+		private Object id;
+		private List<Object> values = Collections.emptyList();
+		private Head (int shard, Iterator<T> iterator) {
+			this.shard = shard;
+			this.iterator = iterator;
+		}
+		private boolean advance (MongoDB mapper, List<String> sortKeys, boolean withId) {
+			if(!iterator.hasNext()) {
+				return false;
+			}
+			value = iterator.next();
+			if(sortKeys.isEmpty() && !withId) {
+				return true;
+			}
+			DBObject document = mapper.marshall(value).toDBObject();
+			id = document.get("_id");
+			values = new ArrayList<>(sortKeys.size());
+			for(String key : sortKeys) {
+				Object fieldValue = document;
+				for(String field : key.split("\\.")) {
+					fieldValue = fieldValue instanceof DBObject ? ((DBObject) fieldValue).get(field) : null;
+				}
+				values.add(fieldValue);
+			}
+			return true;
+		}
+	}
+
+	/** Consistent hash ring of the shards, immutable */
+	private static class Ring {
+		private final Map<String, MongoDB> shards;
+		private final TreeMap<Long, MongoDB> nodes = new TreeMap<>();
+		private Ring (Map<String, MongoDB> shards, int virtualNodes) {
+			this.shards = shards;
+			for(Map.Entry<String, MongoDB> shard : shards.entrySet()) {
+				for(int i = 0; i < virtualNodes; i++) {
+					nodes.put(hash(shard.getKey() + "#" + i), shard.getValue());
+				}
+			}
+		}
+		private MongoDB owner (Object id) {
+			Map.Entry<Long, MongoDB> node = nodes.ceilingEntry(hash(String.valueOf(id)));
+			return node != null ? node.getValue() : nodes.firstEntry().getValue();
+		}
+	}
+
+	/** Options for ShardedMongoDB */
+	public static class Options {
+		private int virtualNodes = 160;
+		private int rebalanceBatchSize = 500;
+		private int maxScatterThreads = 64;
+		private Options() {}
+		/** Points per shard on the hash ring, more spread ids more evenly */
+		public Options virtualNodes(int virtualNodes) {
+			this.virtualNodes = virtualNodes;
+			return this;
+		}
+		/** Batch size of the cursors scanning shards during a rebalance */
+		public Options rebalanceBatchSize(int rebalanceBatchSize) {
+			this.rebalanceBatchSize = rebalanceBatchSize;
+			return this;
+		}
+		/** Maximum number of threads running operations on shards, operations run on the calling thread when all are busy */
+		public Options maxScatterThreads(int maxScatterThreads) {
+			this.maxScatterThreads = maxScatterThreads;
+			return this;
+		}
+	}
+	/** Create options for ShardedMongoDB */
+	public static Options shardedOptions () {
+		return new Options();
+	}
+}
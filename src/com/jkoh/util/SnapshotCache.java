@@ -0,0 +1,419 @@
+package com.jkoh.util;
+
+import com.jkoh.util.MongoDB.Query;
+import com.mongodb.*;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.LazyBSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Query results of a collection kept in a local snapshot file, so a restarted service can read them without querying them again.
+ * The snapshot holds the raw BSON of the documents back to back, with an index file of their _id and offset and a meta file
+ * with the query and the watermark, the highest value of the watermark field written. On creation an existing snapshot of the
+ * same query is mapped and served at once, then caught up with a delta query for documents whose watermark field is at or past
+ * the watermark. Documents are read from the mapped file and unmarshalled on every read, only the index and the documents of
+ * the deltas are on the heap, until persist writes them into a new snapshot.
+ * Removed documents, and documents that no longer match the query, are only dropped by refresh, deltas cannot see them.
+ */
+public class SnapshotCache<T> implements Closeable {
+	private final static Logger logger = LoggerFactory.getLogger(SnapshotCache.class);
+	private static final int VERSION = 1;
+	/** Documents never cross a segment boundary, so each one can be read from a single mapping */
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private final MongoDB mongoDB;
+	private final String collectionName;
+	private final Query query;
+	private final Class<T> clazz;
+	private final Options options;
+	private final Path dataFile;
+	private final Path indexFile;
+	private final Path metaFile;
+	private volatile Snapshot snapshot = new Snapshot();
+	private volatile Object watermark = null;
+	private volatile boolean closed = false;
+
+	SnapshotCache (MongoDB mongoDB, String collectionName, Query query, Class<T> clazz, Options options) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.query = query;
+		this.clazz = clazz;
+		this.options = options;
+		String name = options.name != null ? options.name : collectionName;
+		this.dataFile = options.directory.resolve(name + ".bson");
+		this.indexFile = options.directory.resolve(name + ".idx");
+		this.metaFile = options.directory.resolve(name + ".meta");
+		if(open()) {
+			catchUp();
+		} else {
+			refresh();
+		}
+	}
+
+	/** Get a document by id, null if it is missing */
+	public T get (Object id) {
+		byte[] bytes = snapshot.read(id);
+		return bytes != null ? mongoDB.unmarshall(decode(bytes), clazz) : null;
+	}
+	/** Pass every document to the consumer, the snapshot in file order, then the documents of the deltas */
+	public void forEach (Consumer<? super T> consumer) {
+		Snapshot current = snapshot;
+		for(int i = 0; i < current.ids.length; i++) {
+			if(!current.delta.containsKey(current.ids[i])) {
+				consumer.accept(mongoDB.unmarshall(decode(current.read(i)), clazz));
+			}
+		}
+		for(byte[] bytes : current.delta.values()) {
+			consumer.accept(mongoDB.unmarshall(decode(bytes), clazz));
+		}
+	}
+	/** Number of documents */
+	public int size () {
+		return snapshot.size();
+	}
+	/** Highest value of the watermark field seen, null before the first load */
+	public Object getWatermark () {
+		return watermark;
+	}
+	/** Number of documents read by deltas since the snapshot was written */
+	public int getDeltaCount () {
+		return snapshot.delta.size();
+	}
+
+	/** Read the documents changed since the watermark, and return their number, -1 if the query failed */
+	public synchronized int catchUp () {
+		if(watermark == null) {
+			return refresh() ? size() : -1;
+		}
+		Object from = watermark;
+		if(from instanceof Date && options.overlapMillis > 0) {
+			from = new Date(((Date) from).getTime() - options.overlapMillis);
+		}
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.FIND);
+		int read = 0;
+		try (DBCursor cursor = open(new BasicDBObject(options.watermarkField, new BasicDBObject("$gte", from)))) {
+			Object highest = watermark;
+			while(cursor.hasNext()) {
+				LazyBSONObject document = (LazyBSONObject) cursor.next();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(document.getBSONSize());
+				document.pipe(bytes);
+				snapshot.delta.put(document.get("_id"), bytes.toByteArray());
+				highest = highest(highest, document.get(options.watermarkField));
+				read++;
+			}
+			timer.documents(read);
+			watermark = highest;
+			return read;
+		} catch (MongoException | IOException e) {
+			timer.error(e);
+			logger.warn("SnapshotCache catch up of " + collectionName + " failed", e);
+			return -1;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Run the query again into a new snapshot and serve it, false if it failed and the current one is still served */
+	public synchronized boolean refresh () {
+		MongoMetrics.Timer timer = mongoDB.getMetrics().start(collectionName, MongoMetrics.Operation.FIND);
+		try (DBCursor cursor = open(null); SnapshotWriter writer = new SnapshotWriter()) {
+			while(cursor.hasNext()) {
+				LazyBSONObject document = (LazyBSONObject) cursor.next();
+				writer.write(document.get("_id"), document.getBSONSize(), document::pipe);
+				writer.watermark(document.get(options.watermarkField));
+			}
+			timer.documents(writer.count);
+			writer.commit();
+			return true;
+		} catch (MongoException | IOException e) {
+			timer.error(e);
+			logger.warn("SnapshotCache refresh of " + collectionName + " failed", e);
+			return false;
+		} finally {
+			timer.stop();
+		}
+	}
+	/** Write the snapshot and the documents of the deltas into a new snapshot, false if it failed */
+	public synchronized boolean persist () {
+		Snapshot current = snapshot;
+		if(current.delta.isEmpty() && current.mapped) {
+			return true;
+		}
+		try (SnapshotWriter writer = new SnapshotWriter()) {
+			for(int i = 0; i < current.ids.length; i++) {
+				if(!current.delta.containsKey(current.ids[i])) {
+					byte[] bytes = current.read(i);
+					writer.write(current.ids[i], bytes.length, out -> out.write(bytes));
+				}
+			}
+			for(Map.Entry<Object, byte[]> entry : current.delta.entrySet()) {
+				byte[] bytes = entry.getValue();
+				writer.write(entry.getKey(), bytes.length, out -> out.write(bytes));
+			}
+			writer.watermark(watermark);
+			writer.commit();
+			return true;
+		} catch (IOException e) {
+			logger.warn("SnapshotCache persist of " + collectionName + " failed", e);
+			return false;
+		}
+	}
+	/** Stop serving the snapshot, the mapping is released once it is garbage collected */
+	@Override
+	public void close () {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		mongoDB.removeCloseOnStop(this);
+		snapshot = new Snapshot();
+	}
+
+	/** Map the snapshot files if they exist and were written for the same query, false otherwise */
+	private boolean open () {
+		if(!Files.exists(metaFile) || !Files.exists(dataFile) || !Files.exists(indexFile)) {
+			return false;
+		}
+		try {
+			BSONObject meta = new BasicBSONDecoder().readObject(Files.readAllBytes(metaFile));
+			if(((Number) meta.get("version")).intValue() != VERSION || !queryString().equals(meta.get("query"))
+				|| !options.watermarkField.equals(meta.get("watermarkField"))) {
+				logger.info("SnapshotCache of " + collectionName + " was written for another query, loading it again");
+				return false;
+			}
+			int count = ((Number) meta.get("count")).intValue();
+			long length = ((Number) meta.get("length")).longValue();
+			Object[] ids = new Object[count];
+			long[] offsets = new long[count];
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(indexFile))) {
+				BasicBSONDecoder decoder = new BasicBSONDecoder();
+				for(int i = 0; i < count; i++) {
+					BSONObject entry = decoder.readObject(in);
+					ids[i] = entry.get("_id");
+					offsets[i] = ((Number) entry.get("offset")).longValue();
+				}
+			}
+			snapshot = new Snapshot(ids, offsets, map(length));
+			watermark = meta.get("watermark");
+			logger.info("SnapshotCache of " + collectionName + " serving " + count + " documents from " + dataFile);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("SnapshotCache of " + collectionName + " could not read " + metaFile + ", loading it again", e);
+			return false;
+		}
+	}
+	private MappedByteBuffer[] map (long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+			if(channel.size() < length) {
+				throw new IOException(dataFile + " is shorter than its meta");
+			}
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for(int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+			return segments;
+		}
+	}
+	/** Cursor over the query, and a condition, decoded lazily to keep the raw bytes of the documents */
+	private DBCursor open (DBObject condition) {
+		List<DBObject> conditions = new ArrayList<>();
+		if(query != null) {
+			conditions.add(mongoDB.toDBObject(query));
+		}
+		if(condition != null) {
+			conditions.add(condition);
+		}
+		DBObject filter = conditions.isEmpty() ? new BasicDBObject()
+			: conditions.size() == 1 ? conditions.get(0) : new BasicDBObject("$and", conditions);
+		DBCursor cursor = mongoDB.getDBCollection(collectionName).find(filter).setDecoderFactory(LazyDBDecoder.FACTORY);
+		if(options.batchSize > 0) {
+			cursor.batchSize(options.batchSize);
+		}
+		return cursor;
+	}
+	private String queryString () {
+		return query != null ? mongoDB.toDBObject(query).toString() : "{}";
+	}
+	private Object highest (Object current, Object value) {
+		return value != null && (current == null || ShardedMongoDB.compareValues(value, current) > 0) ? value : current;
+	}
+	private static DBObject decode (byte[] bytes) {
+		return new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+	}
+
+	/** Mapped snapshot files with the documents of the deltas read since they were written */
+	private static class Snapshot {
+		private final Object[] ids;
+		private final long[] offsets;
+		private final MappedByteBuffer[] segments;
+		private final Map<Object, Integer> positions;
+		private final Map<Object, byte[]> delta = new ConcurrentHashMap<>();
+		private final boolean mapped;
+		private Snapshot () {
+			this(new Object[0], new long[0], new MappedByteBuffer[0]);
+		}
+		private Snapshot (Object[] ids, long[] offsets, MappedByteBuffer[] segments) {
+			this.ids = ids;
+			this.offsets = offsets;
+			this.segments = segments;
+			this.positions = new HashMap<>(ids.length * 4 / 3 + 1);
+			for(int i = 0; i < ids.length; i++) {
+				positions.put(ids[i], i);
+			}
+			this.mapped = segments.length > 0;
+		}
+		private int size () {
+			int size = ids.length;
+			for(Object id : delta.keySet()) {
+				if(!positions.containsKey(id)) {
+					size++;
+				}
+			}
+			return size;
+		}
+		private byte[] read (Object id) {
+			byte[] bytes = delta.get(id);
+			if(bytes != null) {
+				return bytes;
+			}
+			Integer position = positions.get(id);
+			return position != null ? read(position) : null;
+		}
+		/** Copy a document out of its segment, with a duplicate so concurrent reads do not share a position */
+		private byte[] read (int position) {
+			ByteBuffer segment = segments[(int) (offsets[position] / SEGMENT_SIZE)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int start = (int) (offsets[position] % SEGMENT_SIZE);
+			byte[] bytes = new byte[segment.getInt(start)];
+			segment.position(start);
+			segment.get(bytes);
+			return bytes;
+		}
+	}
+	private interface DocumentBytes {
+		void writeTo(OutputStream out) throws IOException;
+	}
+	/** Writer of new snapshot files next to the current ones, moved over them on commit */
+	private class SnapshotWriter implements Closeable {
+		private final Path tmpData = dataFile.resolveSibling(dataFile.getFileName() + ".tmp");
+		private final Path tmpIndex = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		private final OutputStream data;
+		private final OutputStream index;
+		private final BasicBSONEncoder encoder = new BasicBSONEncoder();
+		private final List<Object> ids = new ArrayList<>();
+		private final List<Long> offsets = new ArrayList<>();
+		private long length = 0;
+		private int count = 0;
+		private Object highest = null;
+		private boolean committed = false;
+		private SnapshotWriter () throws IOException {
+			Files.createDirectories(options.directory);
+			this.data = new BufferedOutputStream(Files.newOutputStream(tmpData), 1 << 16);
+			this.index = new BufferedOutputStream(Files.newOutputStream(tmpIndex), 1 << 16);
+		}
+		private void write (Object id, int size, DocumentBytes document) throws IOException {
+			long left = SEGMENT_SIZE - length % SEGMENT_SIZE;
+			if(size > left) {
+				for(long i = 0; i < left; i++) {
+					data.write(0);
+				}
+				length += left;
+			}
+			document.writeTo(data);
+			index.write(encoder.encode(new BasicBSONObject("_id", id).append("offset", length)));
+			ids.add(id);
+			offsets.add(length);
+			length += size;
+			count++;
+		}
+		private void watermark (Object value) {
+			highest = highest(highest, value);
+		}
+		/** Move the files over the current snapshot, meta last so a crash leaves no meta for a partial snapshot, and map them */
+		private void commit () throws IOException {
+			data.close();
+			index.close();
+			Files.deleteIfExists(metaFile);
+			Files.move(tmpData, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpIndex, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Path tmpMeta = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+			Files.write(tmpMeta, encoder.encode(new BasicBSONObject("version", VERSION)
+				.append("collection", collectionName)
+				.append("query", queryString())
+				.append("watermarkField", options.watermarkField)
+				.append("watermark", highest)
+				.append("count", count)
+				.append("length", length)
+				.append("createdAt", new Date())));
+			Files.move(tmpMeta, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			long[] offsetArray = new long[count];
+			for(int i = 0; i < count; i++) {
+				offsetArray[i] = offsets.get(i);
+			}
+			snapshot = new Snapshot(ids.toArray(), offsetArray, map(length));
+			watermark = highest;
+			committed = true;
+		}
+		@Override
+		public void close () throws IOException {
+			data.close();
+			index.close();
+			if(!committed) {
+				Files.deleteIfExists(tmpData);
+				Files.deleteIfExists(tmpIndex);
+			}
+		}
+	}
+
+	/** Options for SnapshotCache */
+	public static class Options {
+		private Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "mongodb-snapshots");
+		private String name = null;
+		private String watermarkField = "updatedAt";
+		private long overlapMillis = 1000;
+		private int batchSize = 1000;
+		private Options() {}
+		/** Directory of the snapshot files */
+		public Options directory(Path directory) {
+			this.directory = directory;
+			return this;
+		}
+		/** Name of the snapshot files, defaults to the collection name */
+		public Options name(String name) {
+			this.name = name;
+			return this;
+		}
+		/** Field set on every insert and update, a date or _id for collections that are only inserted into */
+		public Options watermarkField(String watermarkField) {
+			this.watermarkField = watermarkField;
+			return this;
+		}
+		/** Time before a date watermark also read by deltas, for writes that commit out of order */
+		public Options overlapMillis(long overlapMillis) {
+			this.overlapMillis = overlapMillis;
+			return this;
+		}
+		/** Number of documents per batch of the queries */
+		public Options batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+	}
+	/** Create options for SnapshotCache */
+	public static Options snapshotCacheOptions () {
+		return new Options();
+	}
+}
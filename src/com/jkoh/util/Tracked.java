@@ -0,0 +1,63 @@
+package com.jkoh.util;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import lombok.Getter;
+
+/**
+ * Object loaded from a collection with a snapshot of its document, so MongoDB.update can write only the fields changed since.
+ * Modify the object in place, then update it. With a version field the update only applies if the stored version is still the
+ * one of the snapshot, and increments it.
+ */
+public class Tracked<T> {
+	private final MongoDB mongoDB;
+	@Getter
+	private final String collectionName;
+	@Getter
+	private final T object;
+	@Getter
+	private final String versionField;
+	private DBObject snapshot;
+
+	Tracked (MongoDB mongoDB, String collectionName, T object, String versionField) {
+		this.mongoDB = mongoDB;
+		this.collectionName = collectionName;
+		this.object = object;
+		this.versionField = versionField;
+		this.snapshot = mongoDB.marshall(object).toDBObject();
+	}
+
+	/** Modifier for the changes since the snapshot, empty if nothing changed */
+	public DBObject getChanges () {
+		return changes(mongoDB.marshall(object).toDBObject());
+	}
+	/** Check if the object changed since the snapshot */
+	public boolean isChanged () {
+		return !getChanges().keySet().isEmpty();
+	}
+	/** Version of the snapshot, null without a version field or if the document has none */
+	public Number getVersion () {
+		return versionField != null ? (Number) snapshot.get(versionField) : null;
+	}
+
+	Object id () {
+		return snapshot.get("_id");
+	}
+	/** Modifier from the snapshot to a document, the version field is left to the update */
+	DBObject changes (DBObject document) {
+		if(versionField != null) {
+			document = new BasicDBObject(document.toMap());
+			if(snapshot.containsField(versionField)) {
+				document.put(versionField, snapshot.get(versionField));
+			} else {
+				document.removeField(versionField);
+			}
+		}
+		return DocumentDiff.diff(snapshot, document);
+	}
+	/** Take a new snapshot after the changes were written */
+	void written (DBObject document) {
+		snapshot = document;
+	}
+}